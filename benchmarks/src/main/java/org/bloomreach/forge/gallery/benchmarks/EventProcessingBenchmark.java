@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bloomreach.forge.gallery.benchmarks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.bloomreach.forge.gallery.BackgroundGalleryProcessorModule;
+import org.bloomreach.forge.gallery.BackgroundScalingGalleryProcessor;
+import org.bloomreach.forge.gallery.BackgroundWorkerPool;
+import org.bloomreach.forge.gallery.ImageCreationEvent;
+import org.bloomreach.forge.gallery.PooledScalingGalleryProcessor;
+import org.hippoecm.frontend.plugins.gallery.imageutil.ImageUtils;
+import org.hippoecm.frontend.plugins.gallery.imageutil.ScalingParameters;
+import org.hippoecm.frontend.plugins.gallery.processor.ScalingGalleryProcessor;
+import org.hippoecm.repository.gallery.HippoGalleryNodeType;
+import org.onehippo.repository.util.JcrConstants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Handles an image creation event for N variants from event to save, the way {@link BackgroundGalleryProcessorModule}
+ * does: {@code handleEvent} hands the event off to the worker pool, a worker reads the image set, creates all variants
+ * and saves its session. Every invocation waits for that save, so the sample time is the latency from event to save,
+ * including the hand-off to the pool.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true"})
+public class EventProcessingBenchmark {
+
+    // widths of typical variants; heights follow from a 4:3 aspect ratio
+    private static final int[] VARIANT_WIDTHS = {60, 160, 320, 480, 640, 800, 1024, 1280, 1600, 1920, 2400, 3200};
+    private static final long SAVE_TIMEOUT = 60;
+
+    @Param({"1", "4", "12"})
+    private int variants;
+
+    @Param({"1", "12"})
+    private int megapixels;
+
+    @Param({"jpeg", "png"})
+    private String format;
+
+    @Param({"false", "true"})
+    private boolean parallelScaling;
+
+    @Param({"false", "true"})
+    private boolean reuseBuffers;
+
+    private BenchmarkModule module;
+    private Node imageSet;
+    private ImageCreationEvent event;
+
+    /**
+     * Module with a fixed set of variants, whose workers share the session of the in-memory repository and report
+     * every save.
+     */
+    static class BenchmarkModule extends BackgroundGalleryProcessorModule {
+
+        private final Session session;
+        private final int variants;
+        private final boolean reuseBuffers;
+        private volatile CountDownLatch saved = new CountDownLatch(1);
+
+        BenchmarkModule(final Session session, final int variants, final boolean reuseBuffers) {
+            this.session = session;
+            this.variants = variants;
+            this.reuseBuffers = reuseBuffers;
+        }
+
+        /**
+         * Configures the module with the defaults, except that events are processed right away instead of after the
+         * initial delay, and starts the worker pool and the scaling executor.
+         */
+        void start(final InMemoryRepository repository, final boolean parallelScaling) throws RepositoryException {
+            final Node config = repository.getRootNode().addNode("config", "nt:unstructured");
+            config.setProperty("delay", 0L);
+            config.setProperty("reuseBuffers", reuseBuffers);
+            config.setProperty("maxParallelVariants", parallelScaling ? 4L : 1L);
+            doConfigure(config);
+            startWorkerPool();
+            startScalingExecutor();
+        }
+
+        void stop() {
+            doShutdown();
+        }
+
+        /**
+         * Posts an event the way the event bus does and waits until a worker has saved its variants.
+         */
+        void handleAndAwaitSave(final ImageCreationEvent event) throws InterruptedException {
+            final CountDownLatch latch = new CountDownLatch(1);
+            saved = latch;
+            handleEvent(event);
+            if (!latch.await(SAVE_TIMEOUT, TimeUnit.SECONDS)) {
+                // errors are logged and swallowed by the module, so do not measure the error path
+                throw new IllegalStateException("Variants of " + event.nodePath() + " were not saved");
+            }
+        }
+
+        @Override
+        protected Session createWorkerSession() {
+            return session;
+        }
+
+        @Override
+        protected void save(final Session session, final long size, final String description,
+                            final BackgroundWorkerPool.SessionTask redo) throws RepositoryException {
+            super.save(session, size, description, redo);
+            saved.countDown();
+        }
+
+        @Override
+        protected ScalingGalleryProcessor createScalingGalleryProcessor() {
+            final BackgroundScalingGalleryProcessor processor = reuseBuffers
+                    ? new PooledScalingGalleryProcessor() : new BackgroundScalingGalleryProcessor();
+            for (int i = 0; i < variants; i++) {
+                final int width = VARIANT_WIDTHS[i % VARIANT_WIDTHS.length];
+                processor.addScalingParameters(getVariantName(i), new ScalingParameters(width, width * 3 / 4, false,
+                        ImageUtils.ScalingStrategy.QUALITY, 0.95f));
+            }
+            return processor;
+        }
+    }
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        final InMemoryRepository repository = new InMemoryRepository();
+        final String mimeType = TestImages.getMimeType(format);
+        imageSet = TestImages.addImageSet(repository, "image." + format,
+                TestImages.createImage(megapixels, format), mimeType);
+
+        final Map<String, String> variantTypes = new LinkedHashMap<>();
+        for (int i = 0; i < variants; i++) {
+            variantTypes.put(getVariantName(i), HippoGalleryNodeType.IMAGE);
+        }
+        event = new ImageCreationEvent("benchmark")
+                .nodePath(imageSet.getPath())
+                .mimeType(mimeType)
+                .fileName(imageSet.getName())
+                .variants(variantTypes);
+        module = new BenchmarkModule(repository.getSession(), variants, reuseBuffers);
+        module.start(repository, parallelScaling);
+
+        module.handleAndAwaitSave(event);
+        if (!imageSet.hasNode(getVariantName(variants - 1))
+                || !imageSet.getNode(getVariantName(variants - 1)).hasProperty(JcrConstants.JCR_DATA)) {
+            throw new IllegalStateException("Variants of " + imageSet.getPath() + " were not created");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        module.stop();
+    }
+
+    @Benchmark
+    public void handleEvent() throws Exception {
+        // existing variants would be skipped as up to date
+        for (int i = 0; i < variants; i++) {
+            imageSet.getNode(getVariantName(i)).remove();
+        }
+        module.handleAndAwaitSave(event);
+    }
+
+    private static String getVariantName(final int index) {
+        return "variant" + index;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bloomreach.forge.gallery.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.ValueFactory;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Minimal in-memory stand-in for a JCR repository: just enough of {@link Session}, {@link Node}, {@link Property},
+ * {@link ValueFactory} and {@link Binary} for the gallery processor to read an original and write variants. Saving
+ * is a no-op, so the benchmarks measure the processing, not a persistence layer.
+ */
+public class InMemoryRepository {
+
+    private final InMemoryNode root = new InMemoryNode(null, "");
+    private final Session session = proxy(Session.class, new SessionHandler());
+    private final ValueFactory valueFactory = proxy(ValueFactory.class, (proxy, method, args) -> {
+        if (method.getName().equals("createBinary")) {
+            return new InMemoryBinary(IOUtils.toByteArray((InputStream) args[0]));
+        }
+        throw new UnsupportedOperationException("ValueFactory." + method.getName());
+    });
+
+    public Session getSession() {
+        return session;
+    }
+
+    public Node getRootNode() {
+        return root.node;
+    }
+
+    public static Binary createBinary(final byte[] data) {
+        return new InMemoryBinary(data);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(final Class<T> type, final InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(InMemoryRepository.class.getClassLoader(), new Class[]{type}, handler);
+    }
+
+    private InMemoryNode resolve(final InMemoryNode start, final String relPath) throws PathNotFoundException {
+        InMemoryNode current = start;
+        for (String segment : relPath.split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            current = current.children.get(segment);
+            if (current == null) {
+                throw new PathNotFoundException(relPath);
+            }
+        }
+        return current;
+    }
+
+    private class SessionHandler implements InvocationHandler {
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "getNode":
+                    return resolve(root, (String) args[0]).node;
+                case "nodeExists":
+                case "itemExists":
+                    try {
+                        resolve(root, (String) args[0]);
+                        return true;
+                    } catch (PathNotFoundException e) {
+                        return false;
+                    }
+                case "getRootNode":
+                    return root.node;
+                case "getValueFactory":
+                    return valueFactory;
+                case "save":
+                case "refresh":
+                case "logout":
+                    return null;
+                case "hasPendingChanges":
+                    return false;
+                case "isLive":
+                    return true;
+                case "getUserID":
+                    return "admin";
+                default:
+                    throw new UnsupportedOperationException("Session." + method.getName());
+            }
+        }
+    }
+
+    private class InMemoryNode implements InvocationHandler {
+
+        private final InMemoryNode parent;
+        private final String name;
+        private final Map<String, InMemoryNode> children = new LinkedHashMap<>();
+        private final Map<String, Object> properties = new LinkedHashMap<>();
+        private final Node node;
+
+        private InMemoryNode(final InMemoryNode parent, final String name) {
+            this.parent = parent;
+            this.name = name;
+            this.node = proxy(Node.class, this);
+        }
+
+        private String getPath() {
+            if (parent == null) {
+                return "/";
+            }
+            return (parent.parent == null ? "" : parent.getPath()) + "/" + name;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "getName":
+                    return name;
+                case "getPath":
+                    return getPath();
+                case "getIdentifier":
+                    return getPath();
+                case "getParent":
+                    return parent == null ? null : parent.node;
+                case "getSession":
+                    return session;
+                case "addNode": {
+                    final InMemoryNode child = new InMemoryNode(this, (String) args[0]);
+                    children.put(child.name, child);
+                    return child.node;
+                }
+                case "getNode":
+                    return resolve(this, (String) args[0]).node;
+                case "hasNode":
+                    try {
+                        resolve(this, (String) args[0]);
+                        return true;
+                    } catch (PathNotFoundException e) {
+                        return false;
+                    }
+                case "hasProperty":
+                    return properties.containsKey(args[0]);
+                case "setProperty":
+                    properties.put((String) args[0], args[1]);
+                    return null;
+                case "getProperty": {
+                    final Object value = properties.get(args[0]);
+                    if (value == null) {
+                        throw new PathNotFoundException((String) args[0]);
+                    }
+                    return proxy(Property.class, new PropertyHandler(value));
+                }
+                case "remove":
+                    if (parent != null) {
+                        parent.children.remove(name);
+                    }
+                    return null;
+                case "isNodeType":
+                    return false;
+                case "canAddMixin":
+                    return true;
+                case "addMixin":
+                    return null;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return getPath();
+                default:
+                    throw new UnsupportedOperationException("Node." + method.getName());
+            }
+        }
+    }
+
+    private static class PropertyHandler implements InvocationHandler {
+
+        private final Object value;
+
+        private PropertyHandler(final Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "getBinary":
+                    return value;
+                case "getString":
+                    return String.valueOf(value);
+                case "getLong":
+                    return ((Number) value).longValue();
+                case "getDouble":
+                    return ((Number) value).doubleValue();
+                case "getBoolean":
+                    return value;
+                case "getDate":
+                    return (Calendar) value;
+                default:
+                    throw new UnsupportedOperationException("Property." + method.getName());
+            }
+        }
+    }
+
+    private static class InMemoryBinary implements Binary {
+
+        private final byte[] data;
+
+        private InMemoryBinary(final byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public InputStream getStream() {
+            return new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public int read(final byte[] b, final long position) throws IOException, RepositoryException {
+            if (position >= data.length) {
+                return -1;
+            }
+            final int length = (int) Math.min(b.length, data.length - position);
+            System.arraycopy(data, (int) position, b, 0, length);
+            return length;
+        }
+
+        @Override
+        public long getSize() {
+            return data.length;
+        }
+
+        @Override
+        public void dispose() {
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bloomreach.forge.gallery.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+
+import org.bloomreach.forge.gallery.BackgroundScalingGalleryProcessor;
+import org.hippoecm.frontend.plugins.gallery.imageutil.ImageUtils;
+import org.hippoecm.frontend.plugins.gallery.imageutil.ScalingParameters;
+import org.hippoecm.repository.gallery.HippoGalleryNodeType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scales one original image to one variant with {@link BackgroundScalingGalleryProcessor#initGalleryResource}, per
+ * scaling strategy, original size and image format.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true"})
+public class ScalingBenchmark {
+
+    private static final String VARIANT = "hippogallery:picture";
+    private static final int VARIANT_WIDTH = 800;
+    private static final int VARIANT_HEIGHT = 600;
+    private static final float COMPRESSION_QUALITY = 0.95f;
+
+    @Param({"SPEED", "QUALITY"})
+    private String strategy;
+
+    @Param({"1", "12", "40"})
+    private int megapixels;
+
+    @Param({"jpeg", "png", "gif"})
+    private String format;
+
+    private BackgroundScalingGalleryProcessor processor;
+    private Node imageSet;
+    private byte[] original;
+    private String mimeType;
+    private Calendar lastModified;
+
+    @Setup
+    public void setUp() throws Exception {
+        processor = new BackgroundScalingGalleryProcessor();
+        processor.addScalingParameters(VARIANT, new ScalingParameters(VARIANT_WIDTH, VARIANT_HEIGHT, false,
+                ImageUtils.ScalingStrategy.valueOf(strategy), COMPRESSION_QUALITY));
+
+        mimeType = TestImages.getMimeType(format);
+        original = TestImages.createImage(megapixels, format);
+        imageSet = TestImages.addImageSet(new InMemoryRepository(), "image." + format, original, mimeType);
+        lastModified = Calendar.getInstance();
+    }
+
+    @Benchmark
+    public Node scale() throws Exception {
+        // adding the variant again replaces the one of the previous invocation
+        final Node variant = imageSet.addNode(VARIANT, HippoGalleryNodeType.IMAGE);
+        processor.initGalleryResource(variant, new ByteArrayInputStream(original), mimeType, imageSet.getName(), lastModified);
+        return variant;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bloomreach.forge.gallery.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.hippoecm.repository.gallery.HippoGalleryNodeType;
+import org.onehippo.repository.util.JcrConstants;
+
+/**
+ * Generates the original images the benchmarks scale, so they run without any test data or network access.
+ */
+final class TestImages {
+
+    private TestImages() {
+    }
+
+    static String getMimeType(final String format) {
+        return "image/" + format;
+    }
+
+    /**
+     * Encodes a synthetic image of about the given number of megapixels, with a 4:3 aspect ratio. The image is a
+     * gradient with some noise, so it neither compresses unrealistically well nor is pure noise.
+     */
+    static byte[] createImage(final int megapixels, final String format) throws IOException {
+        final int width = (int) Math.sqrt(megapixels * 1_000_000d * 4 / 3);
+        final int height = width * 3 / 4;
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final Random random = new Random(megapixels);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int noise = random.nextInt(32);
+                final int red = (x * 255 / width + noise) & 0xff;
+                final int green = (y * 255 / height + noise) & 0xff;
+                final int blue = ((x + y) * 255 / (width + height) + noise) & 0xff;
+                image.setRGB(x, y, red << 16 | green << 8 | blue);
+            }
+        }
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, format, output)) {
+            throw new IOException("No image writer for format " + format);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Adds an image set with the given original image to the root of a repository.
+     */
+    static Node addImageSet(final InMemoryRepository repository, final String name, final byte[] data,
+                            final String mimeType) throws RepositoryException {
+        final Node imageSet = repository.getRootNode().addNode(name, HippoGalleryNodeType.IMAGE_SET);
+        imageSet.setProperty(HippoGalleryNodeType.IMAGE_SET_FILE_NAME, name);
+        final Node original = imageSet.addNode(HippoGalleryNodeType.IMAGE_SET_ORIGINAL, HippoGalleryNodeType.IMAGE);
+        original.setProperty(JcrConstants.JCR_MIME_TYPE, mimeType);
+        original.setProperty(JcrConstants.JCR_DATA, InMemoryRepository.createBinary(data));
+        original.setProperty(JcrConstants.JCR_LAST_MODIFIED, Calendar.getInstance());
+        return imageSet;
+    }
+}
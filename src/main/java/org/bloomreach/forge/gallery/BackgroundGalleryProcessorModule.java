@@ -16,21 +16,40 @@
 
 package org.bloomreach.forge.gallery;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.time.LocalTime;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventListener;
 
 import org.apache.wicket.util.io.IOUtils;
 
@@ -57,109 +76,676 @@ public class BackgroundGalleryProcessorModule extends AbstractReconfigurableDaem
 
     private static final String GALLERY_PROCESSOR_SERVICE_PATH = "/hippo:configuration/hippo:frontend/cms/cms-services/galleryProcessorService";
 
-    private static final long MAX_DELAY = Long.MAX_VALUE;
-    private static final int DEFAULT_MAX_RETRY = 5;
-    private static final int DEFAULT_DELAY = 1000;
+    private static final long SHUTDOWN_TIMEOUT = 10;
+    private static final String CLUSTER_NODE_ID_PROPERTY = "org.apache.jackrabbit.core.cluster.node_id";
+    private static final String CONFIG_PARAM_PRIORITY = "priority";
 
-    private ScalingGalleryProcessor scalingProcessor;
-    private int maxRetry = DEFAULT_MAX_RETRY;
-    private int delay = DEFAULT_DELAY;
+    private volatile ScalingGalleryProcessor scalingProcessor;
+    private volatile RetryPolicy retryPolicy = new RetryPolicy();
+    private volatile BackgroundWorkerPool.Config workerPoolConfig = new BackgroundWorkerPool.Config();
+    private volatile ConcurrencyController.Config concurrencyConfig = new ConcurrencyController.Config();
+    private volatile RepositoryJobQueue.Config jobQueueConfig = new RepositoryJobQueue.Config();
+    private volatile SaveBatch.Config saveConfig = new SaveBatch.Config();
+    private volatile BackgroundScalingGalleryProcessor.Config processorConfig = new BackgroundScalingGalleryProcessor.Config();
+    private volatile VariantCache.Config variantCacheConfig = new VariantCache.Config();
+    private volatile TempFileStore.Config tempFileConfig = new TempFileStore.Config();
+    private volatile ReconciliationScan.Config reconciliationConfig = new ReconciliationScan.Config();
+    private volatile RegenerationScan.Config regenerationConfig = new RegenerationScan.Config();
+    // a lock rather than a monitor, so a worker on a virtual thread does not hold on to its carrier thread
+    private final ReentrantLock sessionLock = new ReentrantLock();
+    private volatile BackgroundWorkerPool workerPool;
+    private volatile ScheduledExecutorService retryScheduler;
+    private final AtomicInteger pendingRetries = new AtomicInteger();
+    private volatile ExecutorService handOffExecutor;
+    // events waiting for their delayed first attempt, or for room in the work queue on the hand-off thread
+    private final AtomicInteger handOffBacklog = new AtomicInteger();
+    private volatile RepositoryJobQueue jobQueue;
+    private volatile VariantCache variantCacheIndex;
+    private volatile ForkJoinPool scalingExecutor;
+    private volatile TempFileStore tempFiles;
+    private volatile ConcurrencyController concurrencyController;
+    private ScheduledFuture<?> concurrencyAdjuster;
+    private ScheduledFuture<?> jobPoller;
+    private ReconciliationScan reconciliationScan;
+    private RegenerationScan regenerationScan;
+    private RegenerationScan.Config runningRegeneration;
+    private final ThreadLocal<SaveBatch> saveBatch = ThreadLocal.withInitial(SaveBatch::new);
+    private final BackgroundProcessorMetrics metrics = new BackgroundProcessorMetrics();
+    private final MemoryBudget memoryBudget = new MemoryBudget(BackgroundScalingGalleryProcessor.Config.DEFAULT_MEMORY_BUDGET);
+    private final PendingEvents pendingEvents = new PendingEvents();
+    private EventListener galleryProcessorServiceListener;
 
+    /**
+     * Hands the event off to the worker pool, so the event bus thread is not blocked by image scaling. When the
+     * repository job queue is enabled, the event is stored as a job first, to be claimed by any cluster node. As the
+     * event is posted before the upload is saved, the first attempt to process it is made after {@code delay}.
+     */
     @Subscribe
     public void handleEvent(ImageCreationEvent event) {
+        if (event.isBatch()) {
+            @SuppressWarnings("unchecked")
+            final List<ImageCreationEvent> assets = event.assets();
+            log.debug("Received ImageCreationEvent for {} image sets", assets.size());
+            assets.forEach(asset -> metrics.eventReceived());
+            enqueueAll(assets, retryPolicy.getDelay());
+            return;
+        }
         log.debug("Received ImageCreationEvent for nodePath {} with variants: {}", event.nodePath(), event.variants());
+        metrics.eventReceived();
+        enqueueAll(Collections.singletonList(event), retryPolicy.getDelay());
+    }
 
+    /**
+     * Hands an event of a reconciliation or regeneration scan off without ever dropping it, as the scan saves its
+     * checkpoint past the image set afterwards: the event is stored as a job, or waits for room in the work queue
+     * whatever the overflow policy.
+     *
+     * @throws IllegalStateException when the event cannot be handed off, to stop the scan before its next checkpoint
+     */
+    protected void enqueue(final ImageCreationEvent event) {
+        final RepositoryJobQueue queue = jobQueue;
+        if (queue != null) {
+            try {
+                if (queue.add(event, 0)) {
+                    metrics.eventCoalesced();
+                }
+                pollJobsLater(0);
+                return;
+            } catch (RepositoryException e) {
+                log.error("Cannot store job for {}, processing it without the job queue", event.nodePath(), e);
+            }
+        }
+        final BackgroundWorkerPool pool = workerPool;
+        if (pool == null) {
+            throw new IllegalStateException("Module not initialized, cannot create variants for " + event.nodePath());
+        }
+        if (!pendingEvents.add(event, 0)) {
+            log.debug("Merged ImageCreationEvent for {} into the one waiting", event.nodePath());
+            metrics.eventCoalesced();
+            return;
+        }
         try {
-            retry(() -> {
-                InputStream stream = null;
+            if (!pool.put("ImageCreationEvent for " + event.nodePath(), getLane(event), new PendingEventTask(event.nodePath()))) {
+                pendingEvents.take(event.nodePath());
+                throw new IllegalStateException("Module shut down, cannot create variants for " + event.nodePath());
+            }
+        } catch (InterruptedException e) {
+            pendingEvents.take(event.nodePath());
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted, cannot create variants for " + event.nodePath(), e);
+        }
+    }
+
+    protected void enqueueAll(final List<ImageCreationEvent> events) {
+        enqueueAll(events, 0);
+    }
+
+    /**
+     * Enqueues the single events of a batch event, to be processed in batches of at most {@code eventBatchSize} image
+     * sets when not using the repository job queue.
+     *
+     * @param delay milliseconds before the first attempt to process the events
+     */
+    protected void enqueueAll(final List<ImageCreationEvent> events, final long delay) {
+        final RepositoryJobQueue queue = jobQueue;
+        final List<ImageCreationEvent> notStored = new ArrayList<>();
+        for (ImageCreationEvent event : events) {
+            if (queue != null) {
                 try {
-                    if (scalingProcessor == null) {
-                        scalingProcessor = createScalingGalleryProcessor();
+                    if (queue.add(event, delay)) {
+                        metrics.eventCoalesced();
                     }
+                    continue;
+                } catch (RepositoryException e) {
+                    log.error("Cannot store job for {}, processing it without the job queue", event.nodePath(), e);
+                }
+            }
+            notStored.add(event);
+        }
+        if (queue != null && notStored.size() < events.size()) {
+            pollJobsLater(delay);
+        }
+        if (notStored.isEmpty()) {
+            return;
+        }
+        if (delay > 0) {
+            submitLater(notStored, 0, delay, false);
+        } else if (notStored.size() == 1) {
+            submit(notStored.get(0), 0);
+        } else {
+            submitAll(notStored);
+        }
+    }
 
-                    final Node imageRoot = session.getNode(event.nodePath());
-                    final Node original = imageRoot.getNode(HippoGalleryNodeType.IMAGE_SET_ORIGINAL);
+    /**
+     * Hands events off to the worker pool, in tasks of at most {@code eventBatchSize} image sets. Events for image sets
+     * that already have an event waiting for a worker are merged into those.
+     */
+    protected void submitAll(final List<ImageCreationEvent> events) {
+        final BackgroundWorkerPool pool = workerPool;
+        if (pool == null) {
+            log.warn("Module not initialized, cannot create variants for {} image sets", events.size());
+            return;
+        }
+        final int eventBatchSize = saveConfig.getEventBatchSize();
+        for (Map.Entry<BackgroundWorkerPool.Lane, List<String>> lane : addPending(events, 0).entrySet()) {
+            final List<String> nodePaths = lane.getValue();
+            for (int from = 0; from < nodePaths.size(); from += eventBatchSize) {
+                final List<String> batch = new ArrayList<>(nodePaths.subList(from, Math.min(from + eventBatchSize, nodePaths.size())));
+                pool.submit("ImageCreationEvent for " + batch.size() + " image sets", lane.getKey(), new PendingBatchTask(batch));
+            }
+        }
+    }
 
-                    @SuppressWarnings("unchecked")
-                    final Map<String, String> variantNamesToTypes = event.variants();
+    /**
+     * Adds events to the pending events, merging them into the events waiting for the same image sets.
+     *
+     * @return the paths of the image sets that were not waiting yet, by the lane to process them in
+     */
+    private Map<BackgroundWorkerPool.Lane, List<String>> addPending(final List<ImageCreationEvent> events, final int attempt) {
+        final Map<BackgroundWorkerPool.Lane, List<String>> nodePaths = new EnumMap<>(BackgroundWorkerPool.Lane.class);
+        for (ImageCreationEvent event : events) {
+            if (pendingEvents.add(event, attempt)) {
+                nodePaths.computeIfAbsent(getLane(event), lane -> new ArrayList<>()).add(event.nodePath());
+            } else {
+                log.debug("Merged ImageCreationEvent for {} into the one waiting", event.nodePath());
+                metrics.eventCoalesced();
+            }
+        }
+        return nodePaths;
+    }
 
-                    for (final String name : variantNamesToTypes.keySet()) {
-                        final String type = variantNamesToTypes.get(name);
-                        log.debug("--> creating image variant {} of type {}", name, type);
+    /**
+     * Hands an event off to the worker pool. An event for an image set that already has an event waiting for a worker
+     * is merged into that one.
+     */
+    protected void submit(final ImageCreationEvent event, final int attempt) {
+        final BackgroundWorkerPool pool = workerPool;
+        if (pool == null) {
+            log.warn("Module not initialized, cannot create variants for {}", event.nodePath());
+            return;
+        }
+        if (!pendingEvents.add(event, attempt)) {
+            log.debug("Merged ImageCreationEvent for {} into the one waiting", event.nodePath());
+            metrics.eventCoalesced();
+            return;
+        }
+        pool.submit("ImageCreationEvent for " + event.nodePath(), getLane(event), new PendingEventTask(event.nodePath()));
+    }
 
-                        final Node variantNode = imageRoot.addNode(name, type);
-                        stream = original.getProperty(JcrConstants.JCR_DATA).getBinary().getStream();
-                        scalingProcessor.initGalleryResource(variantNode, stream, event.mimeType(), event.fileName(), Calendar.getInstance());
-                    }
-                    session.save();
+    /**
+     * @return the lane of the worker pool to process an event in: events posted by the applications editors work in
+     * go ahead of events posted by imports and of reconciliation
+     */
+    protected BackgroundWorkerPool.Lane getLane(final ImageCreationEvent event) {
+        return workerPoolConfig.getInteractiveApplications().contains(event.application())
+                ? BackgroundWorkerPool.Lane.INTERACTIVE : BackgroundWorkerPool.Lane.BULK;
+    }
 
-                } catch (final PathNotFoundException e) {
-                    log.debug("Image root (or 'original' subnode) not found, will retry again");
-                    throw e;
-                } catch (RepositoryException e) {
-                    log.error(e.getClass().getName() + " during creation of variants for " + event.nodePath(), e);
-                    refresh();
-                    throw e;
-                } finally {
-                    IOUtils.closeQuietly(stream);
-                }
-                return null;
-            });
-        } catch (Exception e) {
+    /**
+     * Creates the variants of an image creation event. When the image set is not there yet, a retry is scheduled.
+     *
+     * @param event the event to process
+     * @param session the JCR session of the worker processing the event
+     * @param attempt number of earlier attempts to process this event
+     */
+    protected void processEvent(final ImageCreationEvent event, final Session session, final int attempt) {
+        try {
+            final long size = createVariants(event, session);
+            save(session, size, "variants of " + event.nodePath(), redoSession -> processEvent(event, redoSession, attempt));
+        } catch (final PathNotFoundException e) {
+            /*
+             * In case of PathNotFoundException (original might not be there yet)
+             * we want to retry to create image at later time
+             */
+            log.debug("Image root (or 'original' subnode) not found, will retry again");
+            scheduleRetry(event, attempt, e);
+        } catch (RepositoryException e) {
+            log.error(e.getClass().getName() + " during creation of variants for " + event.nodePath(), e);
+            metrics.failed();
+            refresh(session);
+        } catch (RuntimeException e) {
             log.error("Error creating variant", e);
+            metrics.failed();
+            refresh(session);
         }
+    }
 
+    /**
+     * Creates the variants of a batch of image sets with the same scaling processor, saving them together. When one
+     * image set fails, the unsaved changes of the batch are discarded and the image sets before it are processed and
+     * saved one by one; when an image set is not there yet, a retry is scheduled for that one alone.
+     *
+     * @param nodePaths paths of the image sets with an event waiting in the pending events
+     * @param session the JCR session of the worker processing the batch
+     */
+    protected void processBatch(final List<String> nodePaths, final Session session) {
+        // the batch is saved or discarded on its own, without the changes the worker had not saved yet
+        flushSaveBatch(session);
+        final SaveBatch batch = new SaveBatch();
+        ScalingGalleryProcessor processor = null;
+        for (String nodePath : nodePaths) {
+            final PendingEvents.Pending pending = pendingEvents.take(nodePath);
+            if (pending == null) {
+                continue;
+            }
+            final ImageCreationEvent event = pending.getEvent();
+            final int attempt = pending.getAttempt();
+            try {
+                if (processor == null) {
+                    processor = getScalingProcessor();
+                }
+                final long size = createVariants(event, session, processor, false);
+                batch.add("variants of " + nodePath, size, redoSession -> processEvent(event, redoSession, attempt));
+                if (batch.isFull(Integer.MAX_VALUE, saveConfig.getSaveBatchBytes(), Long.MAX_VALUE)) {
+                    flushBatch(batch, session);
+                }
+            } catch (final PathNotFoundException e) {
+                log.debug("Image root (or 'original' subnode) of {} not found, will retry again", nodePath);
+                scheduleRetry(event, attempt, e);
+            } catch (RepositoryException | RuntimeException e) {
+                log.error(e.getClass().getName() + " during creation of variants for " + nodePath, e);
+                metrics.failed();
+                batch.redo(session);
+            }
+        }
+        flushBatch(batch, session);
+    }
+
+    private void flushBatch(final SaveBatch batch, final Session session) {
+        if (!batch.isEmpty()) {
+            final long start = System.nanoTime();
+            batch.flush(session);
+            metrics.recordSave(System.nanoTime() - start);
+        }
     }
 
-    protected void retry(final Callable<Void> command) throws Exception {
-        final ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
+    /**
+     * Creates the variants of a job claimed from the repository job queue. The job is removed in the same save as the
+     * variants, so they are never saved progressively; when the image set is not there yet, the job is released to be
+     * claimed again after the backoff delay.
+     */
+    protected void processJob(final RepositoryJobQueue queue, final RepositoryJobQueue.Job job, final Session session) {
+        final ImageCreationEvent event = job.getEvent();
         try {
-            long delay = this.delay;
-            for (int i = 0; i < maxRetry; i++) {
-                final ScheduledFuture<Void> future = executor.schedule(command, delay, TimeUnit.MILLISECONDS);
-                try {
-                    future.get();
-                    return;
-                } catch (final ExecutionException e) {
-                    Throwable cause = e.getCause();
-                    /*
-                     * In case of PathNotFoundException (original might not be there yet)
-                     * we want to retry to create image at later time
-                     */
-                    final boolean lastRetry = i == (maxRetry - 1);
-                    if (lastRetry || !(cause instanceof PathNotFoundException)) {
-                        executor.shutdownNow();
-                        return;
-                    }
-                    delay = backoff(i);
+            if (!queue.isLeased(job, session)) {
+                log.info("Skipping {}: its lease expired and was taken over by another cluster node", job);
+                return;
+            }
+            final long size = createVariants(event, session, getScalingProcessor(), false);
+            if (!queue.complete(job, session)) {
+                log.warn("Discarding the variants of {}: its lease expired and was taken over by another cluster node", job);
+                refresh(session);
+                return;
+            }
+            save(session, size, job.toString(), redoSession -> processJob(queue, job, redoSession));
+            log.debug("Completed {}", job);
+        } catch (final PathNotFoundException e) {
+            log.debug("Image root (or 'original' subnode) not found for {}, will retry again", job);
+            updateJob(queue, job, e);
+        } catch (RepositoryException | RuntimeException e) {
+            log.error(e.getClass().getName() + " during creation of variants for " + event.nodePath(), e);
+            refresh(session);
+            failJob(queue, job, e);
+        }
+    }
+
+    /**
+     * Reschedules or fails a job in the session of the queue, so the changes of other events waiting in the save
+     * batch of the worker are not saved along.
+     */
+    private void updateJob(final RepositoryJobQueue queue, final RepositoryJobQueue.Job job, final Exception cause) {
+        final RetryPolicy retry = retryPolicy;
+        if (job.getAttempts() >= retry.getMaxRetry()) {
+            log.error("Error creating variant: giving up on {} after {} retries", job, job.getAttempts(), cause);
+            failJob(queue, job, cause);
+            return;
+        }
+        try {
+            final long retryDelay = retry.jitter(retry.backoff(job.getAttempts()));
+            queue.reschedule(job, retryDelay);
+            metrics.retryScheduled(job.getAttempts() + 1);
+            log.debug("retry #{} of {} scheduled in {} milliseconds due to {}", job.getAttempts() + 1, job, retryDelay, cause.getMessage());
+        } catch (RepositoryException e) {
+            log.error("Cannot reschedule {}, it will be retried when its lease expires", job, e);
+        }
+    }
+
+    private void failJob(final RepositoryJobQueue queue, final RepositoryJobQueue.Job job, final Exception cause) {
+        metrics.failed();
+        try {
+            queue.fail(job, cause);
+        } catch (RepositoryException e) {
+            log.error("Cannot mark {} as failed, it will be retried when its lease expires", job, e);
+        }
+    }
+
+    /**
+     * Saves the changes made for one event. On a worker with save batching enabled, the changes are kept in the
+     * worker's batch until the batch is full or the worker runs out of work.
+     *
+     * @param size number of bytes of binary data in the changes
+     * @param redo processes the event again, in case saving the batch fails
+     */
+    protected void save(final Session session, final long size, final String description,
+                        final BackgroundWorkerPool.SessionTask redo) throws RepositoryException {
+        final SaveBatch.Config config = saveConfig;
+        if (config.getSaveBatchSize() <= 1 || !BackgroundWorkerPool.isWorkerThread() || saveBatch.get().isFlushing()) {
+            final long start = System.nanoTime();
+            session.save();
+            metrics.recordSave(System.nanoTime() - start);
+            return;
+        }
+
+        final SaveBatch batch = saveBatch.get();
+        batch.add(description, size, redo);
+        if (batch.isFull(config.getSaveBatchSize(), config.getSaveBatchBytes(), config.getSaveBatchLatency())) {
+            flushSaveBatch(session);
+        }
+    }
+
+    protected void flushSaveBatch(final Session session) {
+        flushBatch(saveBatch.get(), session);
+    }
+
+    /**
+     * Creates the variants of an image creation event, without saving them.
+     *
+     * @return the number of bytes of image data created
+     * @throws PathNotFoundException when the image set or its original is not (yet) there
+     */
+    protected long createVariants(final ImageCreationEvent event, final Session session) throws RepositoryException {
+        return createVariants(event, session, getScalingProcessor(), saveConfig.isProgressiveSave());
+    }
+
+    /**
+     * Creates the variants of an image creation event with the given scaling processor, without saving them.
+     *
+     * @param progressive whether to save every variant as soon as it is created
+     * @see #createVariants(ImageCreationEvent, Session)
+     */
+    protected long createVariants(final ImageCreationEvent event, final Session session,
+                                  final ScalingGalleryProcessor scalingProcessor, final boolean progressive) throws RepositoryException {
+        final Node imageRoot = session.getNode(event.nodePath());
+        final Node original = imageRoot.getNode(HippoGalleryNodeType.IMAGE_SET_ORIGINAL);
+
+        final Calendar originalLastModified = JcrUtils.getDateProperty(original, JcrConstants.JCR_LAST_MODIFIED, null);
+        final Long eventLastModified = event.lastModified();
+        if (eventLastModified != null && originalLastModified != null && originalLastModified.getTimeInMillis() > eventLastModified) {
+            log.debug("Skipping variants of {}: its original was replaced after the event", event.nodePath());
+            metrics.eventSuperseded();
+            return 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        Map<String, String> variantNamesToTypes = getVariantsToCreate(imageRoot, event.variants(), originalLastModified,
+                event.regenerate() ? scalingProcessor.getScalingParametersMap() : null);
+
+        // with more variants to come, save each variant right away so it shows up before the others are done
+        final BackgroundScalingGalleryProcessor.VariantListener listener = progressive && variantNamesToTypes.size() > 1
+                ? variant -> saveVariant(session, variant) : null;
+
+        if (scalingProcessor instanceof BackgroundScalingGalleryProcessor) {
+            final BackgroundScalingGalleryProcessor backgroundProcessor = (BackgroundScalingGalleryProcessor) scalingProcessor;
+            variantNamesToTypes = backgroundProcessor.sortVariants(variantNamesToTypes);
+            // decode the original once for all variants
+            return backgroundProcessor.initGalleryResources(imageRoot, original, variantNamesToTypes,
+                    event.mimeType(), event.fileName(), Calendar.getInstance(), listener);
+        }
+
+        for (final String name : variantNamesToTypes.keySet()) {
+            final String type = variantNamesToTypes.get(name);
+            log.debug("--> creating image variant {} of type {}", name, type);
+
+            final Node variantNode = imageRoot.addNode(name, type);
+            final long start = System.nanoTime();
+            final InputStream stream = original.getProperty(JcrConstants.JCR_DATA).getBinary().getStream();
+            try {
+                scalingProcessor.initGalleryResource(variantNode, stream, event.mimeType(), event.fileName(), Calendar.getInstance());
+            } finally {
+                IOUtils.closeQuietly(stream);
+            }
+            final ScalingParameters parameters = scalingProcessor.getScalingParameters(name);
+            if (processorConfig.isStampFingerprints() && parameters != null && !VariantFingerprint.stamp(variantNode, parameters)) {
+                log.debug("Cannot stamp variant {} with a fingerprint", variantNode.getPath());
+            }
+            metrics.recordScale(name, System.nanoTime() - start);
+            metrics.variantCreated(name);
+            if (listener != null) {
+                listener.variantCreated(variantNode);
+            }
+        }
+        return 0;
+    }
+
+    private void saveVariant(final Session session, final Node variant) throws RepositoryException {
+        log.debug("Saving variant {}", variant.getPath());
+        final long start = System.nanoTime();
+        session.save();
+        metrics.recordSave(System.nanoTime() - start);
+    }
+
+    /**
+     * Filters out the variants that already exist and are at least as recent as the original. Variants that are older
+     * than the original are removed, to be created again.
+     */
+    protected Map<String, String> getVariantsToCreate(final Node imageRoot, final Map<String, String> variants,
+                                                      final Calendar originalLastModified) throws RepositoryException {
+        return getVariantsToCreate(imageRoot, variants, originalLastModified, null);
+    }
 
-                    log.info("retry #{} scheduled in {} milliseconds due to {}", i + 1, delay, cause.getMessage());
+    /**
+     * Filters out the variants that already exist and are up to date. Variants that are older than the original, or
+     * when regenerating, have a fingerprint that differs from their current scaling parameters, are removed, to be
+     * created again.
+     *
+     * @param regenerateParameters the current scaling parameters by variant name when regenerating, otherwise null
+     */
+    protected Map<String, String> getVariantsToCreate(final Node imageRoot, final Map<String, String> variants,
+                                                      final Calendar originalLastModified,
+                                                      final Map<String, ScalingParameters> regenerateParameters) throws RepositoryException {
+        final Map<String, String> toCreate = new LinkedHashMap<>();
+        for (Map.Entry<String, String> variant : variants.entrySet()) {
+            final Node existing = JcrUtils.getNodeIfExists(imageRoot, variant.getKey());
+            if (existing != null) {
+                final Calendar variantLastModified = JcrUtils.getDateProperty(existing, JcrConstants.JCR_LAST_MODIFIED, null);
+                final ScalingParameters parameters = regenerateParameters == null ? null : regenerateParameters.get(variant.getKey());
+                if (parameters != null && VariantFingerprint.isStale(existing, parameters)) {
+                    log.debug("Replacing variant {} of {} with fingerprint {} by one with {}", variant.getKey(),
+                            imageRoot.getPath(), VariantFingerprint.get(existing), VariantFingerprint.of(parameters));
+                } else if (originalLastModified == null || variantLastModified == null || !variantLastModified.before(originalLastModified)) {
+                    log.debug("Variant {} of {} is up to date", variant.getKey(), imageRoot.getPath());
+                    metrics.variantSkipped();
+                    continue;
+                } else {
+                    log.debug("Replacing variant {} of {} that is older than the original", variant.getKey(), imageRoot.getPath());
                 }
+                existing.remove();
+            }
+            toCreate.put(variant.getKey(), variant.getValue());
+        }
+        return toCreate;
+    }
 
+    /**
+     * Claims as many due jobs from the repository job queue as there are workers free to process them, so the jobs are
+     * spread over the cluster nodes and are processed well before their lease expires.
+     */
+    protected void pollJobs() {
+        final RepositoryJobQueue queue = jobQueue;
+        final BackgroundWorkerPool pool = workerPool;
+        if (queue == null || pool == null) {
+            return;
+        }
+        final int idleWorkers = pool.getWorkerLimit() - pool.getActiveCount() - pool.getQueueSize();
+        if (idleWorkers <= 0) {
+            return;
+        }
+        try {
+            for (RepositoryJobQueue.Job job : queue.claim(Math.min(jobQueueConfig.getClaimBatchSize(), idleWorkers))) {
+                log.debug("Claimed {}", job);
+                if (!pool.offer(job.toString(), getLane(job.getEvent()), workerSession -> processJob(queue, job, workerSession))) {
+                    queue.release(job);
+                }
             }
-        } finally {
-            if (!executor.isShutdown()) {
-                executor.shutdownNow();
+        } catch (RepositoryException | RuntimeException e) {
+            log.error("Error claiming jobs from {}", jobQueueConfig.getJobsPath(), e);
+        }
+    }
+
+    private void pollJobsLater(final long delay) {
+        final ScheduledExecutorService scheduler = retryScheduler;
+        if (scheduler != null) {
+            try {
+                scheduler.schedule(this::pollJobs, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                log.debug("Module shut down, not polling for jobs");
             }
+        }
+    }
 
+    /**
+     * Schedules the event to be processed again after the backoff delay of the given attempt. Waiting retries do not
+     * occupy a thread: when their delay has passed they are put back in the work queue.
+     */
+    protected void scheduleRetry(final ImageCreationEvent event, final int attempt, final Exception cause) {
+        final RetryPolicy retry = retryPolicy;
+        if (attempt >= retry.getMaxRetry() || retryScheduler == null) {
+            log.error("Error creating variant: giving up on {} after {} retries", event.nodePath(), attempt, cause);
+            metrics.failed();
+            return;
         }
+        if (pendingRetries.incrementAndGet() > retry.getMaxPendingRetries()) {
+            pendingRetries.decrementAndGet();
+            log.error("Error creating variant: more than {} retries pending, giving up on {}", retry.getMaxPendingRetries(),
+                    event.nodePath(), cause);
+            metrics.failed();
+            return;
+        }
+        metrics.retryScheduled(attempt + 1);
+
+        final long retryDelay = retry.jitter(retry.backoff(attempt));
+        log.debug("retry #{} of {} scheduled in {} milliseconds due to {}", attempt + 1, event.nodePath(), retryDelay,
+                cause.getMessage());
+        submitLater(Collections.singletonList(event), attempt + 1, retryDelay, true);
     }
 
     /**
-     * Exponential backoff
+     * Hands events off to the worker pool after a delay. Until then they are counted as pending retries or, for first
+     * attempts, in the hand-off backlog, which both count as background backlog.
      *
-     * @param attempt current attempt
-     * @return exponential backoff in milliseconds
+     * @param retry whether the events are counted as pending retries until they are handed off
      */
-    protected long backoff(int attempt) {
-        long duration = delay * (long) Math.pow(2, attempt);
-        if (duration < 0) {
-            duration = MAX_DELAY;
+    private void submitLater(final List<ImageCreationEvent> events, final int attempt, final long delay,
+                             final boolean retry) {
+        final AtomicInteger waiting = retry ? pendingRetries : handOffBacklog;
+        if (!retry) {
+            handOffBacklog.addAndGet(events.size());
+        }
+        final ScheduledExecutorService scheduler = retryScheduler;
+        try {
+            if (scheduler == null) {
+                throw new RejectedExecutionException();
+            }
+            scheduler.schedule(() -> {
+                try {
+                    offerAll(events, attempt);
+                } finally {
+                    waiting.addAndGet(-events.size());
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            waiting.addAndGet(-events.size());
+            log.warn("Module shut down, cannot create variants for {} image sets", events.size());
         }
-        return Math.min(Math.max(duration, delay), MAX_DELAY);
     }
 
-    protected void refresh() {
+    /**
+     * Offers events to the worker pool without blocking, merging them into the events waiting for the same image
+     * sets. The scheduler thread doing so also retries, polls for jobs and adjusts the number of workers, so tasks the
+     * work queue has no room for are submitted from the hand-off thread instead, where the overflow policy applies to
+     * them: they wait for room in the queue, are dropped or are processed on the hand-off thread.
+     */
+    private void offerAll(final List<ImageCreationEvent> events, final int attempt) {
+        final BackgroundWorkerPool pool = workerPool;
+        if (pool == null) {
+            log.warn("Module shut down, cannot create variants for {} image sets", events.size());
+            return;
+        }
+        final int eventBatchSize = saveConfig.getEventBatchSize();
+        for (Map.Entry<BackgroundWorkerPool.Lane, List<String>> lane : addPending(events, attempt).entrySet()) {
+            final List<String> nodePaths = lane.getValue();
+            for (int from = 0; from < nodePaths.size(); from += eventBatchSize) {
+                final List<String> batch = new ArrayList<>(nodePaths.subList(from, Math.min(from + eventBatchSize, nodePaths.size())));
+                final BackgroundWorkerPool.SessionTask task = batch.size() == 1
+                        ? new PendingEventTask(batch.get(0)) : new PendingBatchTask(batch);
+                final String description = "ImageCreationEvent for " + batch.size() + " image sets";
+                if (!pool.offer(description, lane.getKey(), task)) {
+                    handOff(description, lane.getKey(), task, batch.size());
+                }
+            }
+        }
+    }
+
+    /**
+     * Submits a task the work queue had no room for from the hand-off thread, counting its image sets in the hand-off
+     * backlog until the worker pool has taken it.
+     */
+    private void handOff(final String description, final BackgroundWorkerPool.Lane lane,
+                         final BackgroundWorkerPool.SessionTask task, final int size) {
+        log.debug("Work queue full, submitting {} from the hand-off thread", description);
+        handOffBacklog.addAndGet(size);
+        final ExecutorService executor = handOffExecutor;
+        try {
+            if (executor == null) {
+                throw new RejectedExecutionException();
+            }
+            executor.execute(() -> {
+                try {
+                    final BackgroundWorkerPool pool = workerPool;
+                    if (pool == null) {
+                        log.warn("Module shut down, cannot create variants for {} image sets", size);
+                        task.dropped();
+                        return;
+                    }
+                    pool.submit(description, lane, task);
+                } finally {
+                    handOffBacklog.addAndGet(-size);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            handOffBacklog.addAndGet(-size);
+            log.warn("Module shut down, cannot create variants for {} image sets", size);
+            task.dropped();
+        }
+    }
+
+    /**
+     * @see RetryPolicy#jitter(long)
+     */
+    protected long jitter(final long delay) {
+        return retryPolicy.jitter(delay);
+    }
+
+    /**
+     * @see RetryPolicy#backoff(int)
+     */
+    protected long backoff(int attempt) {
+        return retryPolicy.backoff(attempt);
+    }
+
+    /**
+     * Discards the unsaved changes of the session. Changes of other events that are waiting in the save batch of the
+     * worker are made and saved again.
+     */
+    protected void refresh(final Session session) {
+        if (BackgroundWorkerPool.isWorkerThread()) {
+            final SaveBatch batch = saveBatch.get();
+            if (!batch.isEmpty() && !batch.isFlushing()) {
+                batch.redo(session);
+                return;
+            }
+        }
         try {
             session.refresh(false);
         } catch (RepositoryException e) {
@@ -169,24 +755,495 @@ public class BackgroundGalleryProcessorModule extends AbstractReconfigurableDaem
 
     @Override
     protected void doConfigure(final Node node) throws RepositoryException {
-        maxRetry = getAsInteger(node, "maxRetry", DEFAULT_MAX_RETRY);
-        delay = getAsInteger(node, "delay", DEFAULT_DELAY);
-        log.debug("Reconfigured {}: maxRetry={}, delay={}", this.getClass().getName(), maxRetry, delay);
+        final BackgroundWorkerPool.Config oldWorkerPoolConfig = workerPoolConfig;
+        final ConcurrencyController.Config oldConcurrencyConfig = concurrencyConfig;
+        final RepositoryJobQueue.Config oldJobQueueConfig = jobQueueConfig;
+        final BackgroundScalingGalleryProcessor.Config oldProcessorConfig = processorConfig;
+        final VariantCache.Config oldVariantCacheConfig = variantCacheConfig;
+        final TempFileStore.Config oldTempFileConfig = tempFileConfig;
+
+        retryPolicy = RetryPolicy.read(node);
+        workerPoolConfig = BackgroundWorkerPool.Config.read(node);
+        concurrencyConfig = ConcurrencyController.Config.read(node, workerPoolConfig.getWorkers());
+        jobQueueConfig = RepositoryJobQueue.Config.read(node);
+        saveConfig = SaveBatch.Config.read(node);
+        processorConfig = BackgroundScalingGalleryProcessor.Config.read(node);
+        memoryBudget.setLimit(processorConfig.getMemoryBudget());
+        variantCacheConfig = VariantCache.Config.read(node);
+        tempFileConfig = TempFileStore.Config.read(node);
+        reconciliationConfig = ReconciliationScan.Config.read(node);
+        regenerationConfig = RegenerationScan.Config.read(node);
+        if (workerPoolConfig.isVirtualThreadsEnabled() && !VirtualThreads.isSupported()) {
+            log.info("Virtual threads are not available on Java {}, running the workers on platform threads",
+                    System.getProperty("java.version"));
+        }
+        log.debug("Reconfigured {}: {}, {}", this.getClass().getName(), retryPolicy, saveConfig);
+
+        // restart only the components whose settings changed; settings read on every use apply right away
+        final boolean virtualWorkersChanged = oldWorkerPoolConfig.isVirtualThreads() != isVirtualWorkers();
+        if (scalingProcessor != null) {
+            boolean processorChanged = false;
+            if (!variantCacheConfig.equals(oldVariantCacheConfig)) {
+                startVariantCache();
+                processorChanged = true;
+            }
+            if (!processorConfig.equals(oldProcessorConfig) || virtualWorkersChanged) {
+                startScalingExecutor();
+                processorChanged = true;
+            }
+            if (!tempFileConfig.equals(oldTempFileConfig)) {
+                startTempFileStore();
+                processorChanged = true;
+            }
+            if (processorChanged) {
+                // the processor holds the settings of these components
+                reloadScalingProcessor();
+            }
+        }
+
+        if (workerPool != null) {
+            final boolean workersChanged = oldWorkerPoolConfig.getWorkers() != workerPoolConfig.getWorkers();
+            final boolean controllerChanged = !concurrencyConfig.equals(oldConcurrencyConfig)
+                    || concurrencyConfig.isEnabled() && workersChanged;
+            if (controllerChanged) {
+                startConcurrencyController();
+            }
+            if (!workerPoolConfig.equals(oldWorkerPoolConfig) || controllerChanged) {
+                updateWorkerPool(oldWorkerPoolConfig);
+            }
+            if (!jobQueueConfig.equals(oldJobQueueConfig)) {
+                startJobQueue();
+            } else if (jobQueue != null) {
+                jobQueue.setInteractiveApplications(workerPoolConfig.getInteractiveApplications());
+            }
+            updateRegeneration();
+        }
     }
 
     @Override
     protected void doInitialize(final Session session) throws RepositoryException {
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "gallery-background-processor-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        handOffExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "gallery-background-processor-handoff");
+            thread.setDaemon(true);
+            return thread;
+        });
+        startConcurrencyController();
+        startWorkerPool();
+        startJobQueue();
+        metrics.setBacklog(
+                () -> (int) getWorkerPoolStatistic(BackgroundWorkerPool::getQueueSize) + handOffBacklog.get(),
+                () -> (int) getWorkerPoolStatistic(BackgroundWorkerPool::getActiveCount),
+                pendingRetries::get,
+                () -> getWorkerPoolStatistic(BackgroundWorkerPool::getDroppedCount));
+        metrics.setWorkerLimit(() -> (int) getWorkerPoolStatistic(BackgroundWorkerPool::getWorkerLimit),
+                () -> {
+                    final ConcurrencyController controller = concurrencyController;
+                    return controller != null ? controller.getReason() : "fixed";
+                });
+        metrics.register();
+        startVariantCache();
+        startScalingExecutor();
+        startTempFileStore();
+        reloadScalingProcessor();
+        galleryProcessorServiceListener = events -> reloadScalingProcessor();
+        session.getWorkspace().getObservationManager().addEventListener(galleryProcessorServiceListener,
+                Event.NODE_ADDED | Event.NODE_REMOVED | Event.NODE_MOVED | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED,
+                GALLERY_PROCESSOR_SERVICE_PATH, true, null, null, false);
         HippoEventListenerRegistry.get().register(this);
+        if (reconciliationConfig.isEnabled()) {
+            startReconciliation();
+        }
+        updateRegeneration();
     }
 
     @Override
     protected void doShutdown() {
         HippoEventListenerRegistry.get().unregister(this);
+        if (galleryProcessorServiceListener != null) {
+            try {
+                session.getWorkspace().getObservationManager().removeEventListener(galleryProcessorServiceListener);
+            } catch (RepositoryException e) {
+                log.warn("Cannot remove listener for changes of {}", GALLERY_PROCESSOR_SERVICE_PATH, e);
+            }
+            galleryProcessorServiceListener = null;
+        }
+        stopReconciliation();
+        stopRegeneration();
+        stopJobQueue();
+        stopConcurrencyController();
+        final ScheduledExecutorService scheduler = retryScheduler;
+        retryScheduler = null;
+        if (scheduler != null) {
+            final int dropped = scheduler.shutdownNow().size();
+            if (dropped > 0) {
+                log.warn("{} pending retries dropped at shutdown", dropped);
+            }
+            pendingRetries.set(0);
+        }
+        final ExecutorService handOff = handOffExecutor;
+        handOffExecutor = null;
+        if (handOff != null) {
+            // interrupts a hand-off waiting for room in the work queue, which then drops its task
+            final List<Runnable> dropped = handOff.shutdownNow();
+            if (!dropped.isEmpty()) {
+                log.warn("{} hand-offs to the work queue dropped at shutdown", dropped.size());
+            }
+            handOffBacklog.set(0);
+        }
+        final BackgroundWorkerPool pool = workerPool;
+        workerPool = null;
+        if (pool != null) {
+            pool.shutdown(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+        }
+        pendingEvents.clear();
+        stopVariantCache();
+        stopScalingExecutor();
+        stopTempFileStore();
+        metrics.unregister();
+    }
+
+    protected synchronized void startWorkerPool() {
+        final BackgroundWorkerPool oldPool = workerPool;
+        final BackgroundWorkerPool.Config config = workerPoolConfig;
+        final ConcurrencyController controller = concurrencyController;
+        final BackgroundWorkerPool pool = new BackgroundWorkerPool("gallery-background-processor",
+                controller != null ? controller.getMaxWorkers() : config.getWorkers(), config.getQueueSize(),
+                config.getOverflowPolicy(), config.getBulkAging(), config.isVirtualThreads(), this::createWorkerSession);
+        pool.setIdleListener(this::flushSaveBatch);
+        attachConcurrencyController(pool);
+        workerPool = pool;
+        log.debug("Started worker pool: {}, {}", config, saveConfig);
+        if (oldPool != null) {
+            // the old workers finish what they are doing in the background
+            oldPool.handOver(pool);
+        }
+    }
+
+    /**
+     * Replaces the worker pool when its settings or its number of threads changed; otherwise lets the current pool
+     * follow the concurrency controller.
+     */
+    protected synchronized void updateWorkerPool(final BackgroundWorkerPool.Config oldConfig) {
+        final BackgroundWorkerPool pool = workerPool;
+        final ConcurrencyController controller = concurrencyController;
+        final int threads = controller != null ? controller.getMaxWorkers() : workerPoolConfig.getWorkers();
+        if (pool == null || !workerPoolConfig.hasSamePool(oldConfig) || pool.getWorkers() != threads) {
+            startWorkerPool();
+        } else {
+            attachConcurrencyController(pool);
+        }
+    }
+
+    private void attachConcurrencyController(final BackgroundWorkerPool pool) {
+        final ConcurrencyController controller = concurrencyController;
+        if (controller != null) {
+            pool.setWorkerLimit(controller.getLimit());
+            pool.setCompletionListener(controller::recordLatency);
+        } else {
+            pool.setWorkerLimit(pool.getWorkers());
+            pool.setCompletionListener(null);
+        }
+    }
+
+    /**
+     * Starts adjusting the number of workers to the load of the host, if enabled. The worker pool gets a thread for the
+     * highest number of workers allowed, of which only the current number executes tasks.
+     */
+    protected synchronized void startConcurrencyController() {
+        stopConcurrencyController();
+        final ConcurrencyController.Config config = concurrencyConfig;
+        if (!config.isEnabled()) {
+            return;
+        }
+        final ConcurrencyController controller = config.create(workerPoolConfig.getWorkers());
+        concurrencyController = controller;
+        concurrencyAdjuster = retryScheduler.scheduleWithFixedDelay(() -> {
+            final BackgroundWorkerPool pool = workerPool;
+            if (pool != null) {
+                pool.setWorkerLimit(controller.adjust(pool.getQueueSize(), LocalTime.now()));
+            }
+        }, config.getInterval(), config.getInterval(), TimeUnit.MILLISECONDS);
+        log.info("Adjusting the number of workers between {} and {} every {} ms", config.getMinWorkers(),
+                controller.getMaxWorkers(), config.getInterval());
+        log.debug("Started concurrency controller: {}", config);
+    }
+
+    protected synchronized void stopConcurrencyController() {
+        if (concurrencyAdjuster != null) {
+            concurrencyAdjuster.cancel(false);
+            concurrencyAdjuster = null;
+        }
+        concurrencyController = null;
+    }
+
+    /**
+     * Starts claiming jobs from the repository job queue, if enabled.
+     */
+    protected synchronized void startJobQueue() throws RepositoryException {
+        stopJobQueue();
+        final RepositoryJobQueue.Config config = jobQueueConfig;
+        if (!config.isEnabled()) {
+            return;
+        }
+
+        final String owner = getOwner();
+        jobQueue = new RepositoryJobQueue(config.getJobsPath(), owner, config.getLeaseTimeout(), createWorkerSession());
+        jobQueue.setInteractiveApplications(workerPoolConfig.getInteractiveApplications());
+        jobPoller = retryScheduler.scheduleWithFixedDelay(this::pollJobs, 0, config.getPollInterval(), TimeUnit.MILLISECONDS);
+        log.info("Claiming variant creation jobs from {} as {}", config.getJobsPath(), owner);
+        log.debug("Started job queue: {}", config);
+    }
+
+    protected synchronized void stopJobQueue() {
+        if (jobPoller != null) {
+            jobPoller.cancel(false);
+            jobPoller = null;
+        }
+        final RepositoryJobQueue queue = jobQueue;
+        jobQueue = null;
+        if (queue != null) {
+            // jobs claimed but not completed are reclaimed when their lease expires
+            queue.close();
+        }
+    }
+
+    /**
+     * @return the identifier of this cluster node, as owner of the jobs it claims
+     */
+    protected String getOwner() {
+        return System.getProperty(CLUSTER_NODE_ID_PROPERTY, ManagementFactory.getRuntimeMXBean().getName());
+    }
+
+    /**
+     * Starts indexing scaled variants by the content hash of their original, if enabled, so variants of identical
+     * originals are not scaled again.
+     */
+    protected synchronized void startVariantCache() throws RepositoryException {
+        stopVariantCache();
+        final VariantCache.Config config = variantCacheConfig;
+        if (config.isEnabled()) {
+            variantCacheIndex = new VariantCache(config.getPath(), config.getSize(), createWorkerSession());
+            log.debug("Started variant cache: {}", config);
+        }
+    }
+
+    protected synchronized void stopVariantCache() {
+        final VariantCache cache = variantCacheIndex;
+        variantCacheIndex = null;
+        if (cache != null) {
+            // events being processed with the old cache scale their variants instead
+            cache.close();
+        }
+    }
+
+    /**
+     * Starts the pool of threads the variants of an image set are scaled on in parallel, if more than one variant may
+     * be scaled at the same time, or if the workers run on virtual threads: then all decoding and scaling is done on
+     * this pool, so the CPU bound work stays limited to its threads while the workers wait for the repository. Scaling
+     * is CPU bound, so by default the pool has a thread per processor.
+     */
+    protected synchronized void startScalingExecutor() {
+        stopScalingExecutor();
+        final BackgroundScalingGalleryProcessor.Config config = processorConfig;
+        if (config.getMaxParallelVariants() > 1 || isVirtualWorkers()) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            scalingExecutor = new ForkJoinPool(config.getScaleThreads(), pool -> {
+                final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("gallery-background-processor-scaling-" + threadCount.incrementAndGet());
+                return thread;
+            }, null, false);
+        }
+        log.debug("Started scaling: {}", config);
+    }
+
+    /**
+     * @return whether the workers run on virtual threads: when enabled and available
+     */
+    protected boolean isVirtualWorkers() {
+        return workerPoolConfig.isVirtualThreads();
+    }
+
+    protected synchronized void stopScalingExecutor() {
+        final ForkJoinPool executor = scalingExecutor;
+        scalingExecutor = null;
+        if (executor != null) {
+            // variants being scaled are finished, events still using the pool scale the rest on their worker
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Opens the directory encoded variants larger than {@code spillThreshold} are written to until they are stored in
+     * the repository, if spilling is enabled. Files left behind in the directory by an earlier run are deleted, so the
+     * directory must not be shared with other repositories.
+     */
+    protected synchronized void startTempFileStore() {
+        final TempFileStore store = tempFiles;
+        final TempFileStore.Config config = tempFileConfig;
+        if (!config.isEnabled()) {
+            tempFiles = null;
+        } else if (store == null || !store.getDirectory().equals(config.getSpillDirectory())) {
+            try {
+                tempFiles = new TempFileStore(config.getSpillDirectory());
+            } catch (IOException e) {
+                log.error("Cannot use directory {} for encoded variants, keeping them on the heap", config.getSpillDirectory(), e);
+                tempFiles = null;
+            }
+        }
+        // a replaced store is left to the events still using it, which delete their files themselves
+        log.debug("Started temporary files: {}", config);
+    }
+
+    protected synchronized void stopTempFileStore() {
+        final TempFileStore store = tempFiles;
+        tempFiles = null;
+        if (store != null) {
+            // files of events that failed before storing their variants
+            store.deleteAll();
+        }
+    }
+
+    /**
+     * Starts a scan for image sets with missing variants on a thread of its own; its checkpoint is saved on the
+     * {@code jobsPath} node. Only one cluster node at a time runs the scan.
+     */
+    protected synchronized void startReconciliation() throws RepositoryException {
+        stopReconciliation();
+        final ReconciliationScan.Config config = reconciliationConfig;
+        final Set<String> variantNames = new HashSet<>(getScalingProcessor().getScalingParametersMap().keySet());
+        reconciliationScan = new ReconciliationScan(createWorkerSession(), jobQueueConfig.getJobsPath(), config.getPath(),
+                config.getImageSetType(), variantNames, config.getBatchSize(), config.getRate(), this::enqueue);
+        reconciliationScan.setLease(getOwner(), jobQueueConfig.getLeaseTimeout());
+        final Thread thread = new Thread(reconciliationScan, "gallery-background-processor-reconciliation");
+        thread.setDaemon(true);
+        thread.start();
+        log.debug("Started reconciliation: {}", config);
+    }
+
+    protected synchronized void stopReconciliation() {
+        if (reconciliationScan != null) {
+            reconciliationScan.stop();
+            reconciliationScan = null;
+        }
+    }
+
+    /**
+     * Starts a scan for variants created with other scaling parameters than the current ones when regeneration is
+     * switched on or its settings change, and stops it when regeneration is switched off. Its checkpoint is saved on
+     * the {@code jobsPath} node, so a scan that is interrupted resumes where it stopped.
+     */
+    protected synchronized void updateRegeneration() throws RepositoryException {
+        final RegenerationScan.Config config = regenerationConfig.isEnabled() ? regenerationConfig : null;
+        if (Objects.equals(config, runningRegeneration)) {
+            return;
+        }
+        stopRegeneration();
+        runningRegeneration = config;
+        if (config == null) {
+            return;
+        }
+        regenerationScan = new RegenerationScan(createWorkerSession(), jobQueueConfig.getJobsPath(), config.getPath(),
+                config.getImageSetType(), getScalingProcessor().getScalingParametersMap(), config.getBatchSize(),
+                config.getRate(), config.isRegenerateUnstamped(), config.isDryRun(), this::enqueue);
+        regenerationScan.setLease(getOwner(), jobQueueConfig.getLeaseTimeout());
+        final Thread thread = new Thread(regenerationScan, "gallery-background-processor-regeneration");
+        thread.setDaemon(true);
+        thread.start();
+        log.debug("Started regeneration: {}", config);
+    }
+
+    protected synchronized void stopRegeneration() {
+        if (regenerationScan != null) {
+            regenerationScan.stop();
+            regenerationScan = null;
+        }
+        runningRegeneration = null;
+    }
+
+    /**
+     * Creates a session for a worker thread, as the module session must not be shared between threads.
+     */
+    protected Session createWorkerSession() throws RepositoryException {
+        sessionLock.lock();
+        try {
+            return session.impersonate(new SimpleCredentials(session.getUserID(), new char[]{}));
+        } finally {
+            sessionLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the current scaling processor. The processor is not changed after it has been created: a change of the
+     * gallery processor configuration replaces it, so an event processed meanwhile keeps using the processor it started
+     * with.
+     */
+    protected ScalingGalleryProcessor getScalingProcessor() throws RepositoryException {
+        final ScalingGalleryProcessor processor = scalingProcessor;
+        if (processor != null) {
+            return processor;
+        }
+        sessionLock.lock();
+        try {
+            if (scalingProcessor == null) {
+                scalingProcessor = createConfiguredScalingProcessor();
+            }
+            return scalingProcessor;
+        } finally {
+            sessionLock.unlock();
+        }
+    }
+
+    /**
+     * Creates a new scaling processor from the current gallery processor configuration and swaps it in. When that
+     * fails, the current processor is kept.
+     */
+    protected void reloadScalingProcessor() {
+        sessionLock.lock();
+        try {
+            scalingProcessor = createConfiguredScalingProcessor();
+            log.info("Loaded scaling parameters for variants {}", scalingProcessor.getScalingParametersMap().keySet());
+        } catch (RepositoryException | RuntimeException e) {
+            log.error("Cannot reload scaling parameters from {}, keeping the current ones", GALLERY_PROCESSOR_SERVICE_PATH, e);
+        } finally {
+            sessionLock.unlock();
+        }
+    }
+
+    private ScalingGalleryProcessor createConfiguredScalingProcessor() throws RepositoryException {
+        final ScalingGalleryProcessor processor = createScalingGalleryProcessor();
+        if (processor instanceof BackgroundScalingGalleryProcessor) {
+            final BackgroundScalingGalleryProcessor backgroundProcessor = (BackgroundScalingGalleryProcessor) processor;
+            final BackgroundScalingGalleryProcessor.Config config = processorConfig;
+            backgroundProcessor.setMetrics(metrics);
+            backgroundProcessor.setMemoryBudget(memoryBudget);
+            backgroundProcessor.setDecodeSubsampling(config.isDecodeSubsampling());
+            backgroundProcessor.setVariantCache(variantCacheIndex);
+            backgroundProcessor.setParallelScaling(scalingExecutor, config.getMaxParallelVariants());
+            backgroundProcessor.setOffloadCpu(isVirtualWorkers());
+            backgroundProcessor.setSpilling(tempFiles, tempFileConfig.getSpillThreshold());
+            backgroundProcessor.setStampFingerprints(config.isStampFingerprints());
+        }
+        return processor;
+    }
+
+    private long getWorkerPoolStatistic(final ToLongFunction<BackgroundWorkerPool> statistic) {
+        final BackgroundWorkerPool pool = workerPool;
+        return pool == null ? 0 : statistic.applyAsLong(pool);
+    }
+
+    public BackgroundProcessorMetrics getMetrics() {
+        return metrics;
     }
 
     protected ScalingGalleryProcessor createScalingGalleryProcessor() throws RepositoryException {
 
-        final BackgroundScalingGalleryProcessor processor = new BackgroundScalingGalleryProcessor();
+        final BackgroundScalingGalleryProcessor processor = processorConfig.isReuseBuffers()
+                ? new PooledScalingGalleryProcessor() : new BackgroundScalingGalleryProcessor();
 
         if (!session.nodeExists(GALLERY_PROCESSOR_SERVICE_PATH)) {
             log.error("Cannot access default gallery processor path at {}, skipping reading the parameters",GALLERY_PROCESSOR_SERVICE_PATH);
@@ -215,6 +1272,9 @@ public class BackgroundGalleryProcessorModule extends AbstractReconfigurableDaem
             final ScalingParameters parameters = new ScalingParameters(width, height, upscaling, strategy, compressionQuality);
             log.debug("Scaling parameters for {}: {}", nodeName, parameters);
             processor.addScalingParameters(nodeName, parameters);
+            if (scaleConfig.hasProperty(CONFIG_PARAM_PRIORITY)) {
+                processor.setVariantPriority(nodeName, getAsInteger(scaleConfig, CONFIG_PARAM_PRIORITY, 0));
+            }
         }
 
         return processor;
@@ -236,4 +1296,47 @@ public class BackgroundGalleryProcessorModule extends AbstractReconfigurableDaem
         return defaultValue;
     }
 
+    /**
+     * Processes the events merged for an image set while waiting for a worker.
+     */
+    private class PendingBatchTask implements BackgroundWorkerPool.SessionTask {
+
+        private final List<String> nodePaths;
+
+        private PendingBatchTask(final List<String> nodePaths) {
+            this.nodePaths = nodePaths;
+        }
+
+        @Override
+        public void execute(final Session session) {
+            processBatch(nodePaths, session);
+        }
+
+        @Override
+        public void dropped() {
+            nodePaths.forEach(pendingEvents::take);
+        }
+    }
+
+    private class PendingEventTask implements BackgroundWorkerPool.SessionTask {
+
+        private final String nodePath;
+
+        private PendingEventTask(final String nodePath) {
+            this.nodePath = nodePath;
+        }
+
+        @Override
+        public void execute(final Session session) {
+            final PendingEvents.Pending pending = pendingEvents.take(nodePath);
+            if (pending != null) {
+                processEvent(pending.getEvent(), session, pending.getAttempt());
+            }
+        }
+
+        @Override
+        public void dropped() {
+            pendingEvents.take(nodePath);
+        }
+    }
 }
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bloomreach.forge.gallery;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters and timers of the background gallery processor. Recording only adds to striped counters, so the workers
+ * updating them do not contend with each other.
+ */
+public class BackgroundProcessorMetrics implements BackgroundProcessorMetricsMXBean {
+
+    private static final Logger log = LoggerFactory.getLogger(BackgroundProcessorMetrics.class);
+
+    public static final String OBJECT_NAME = "org.bloomreach.forge.gallery:type=BackgroundGalleryProcessor";
+
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // metrics of the running module, for the scaling processor to read the backlog from
+    private static volatile BackgroundProcessorMetrics registered;
+
+    /**
+     * Number of measurements, their total and their maximum duration.
+     */
+    static class Timer {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(final long nanos) {
+            count.increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        double getAverage() {
+            final long measurements = count.sum();
+            return measurements == 0 ? 0 : total.sum() / NANOS_PER_MILLI / measurements;
+        }
+
+        double getMax() {
+            return max.get() / NANOS_PER_MILLI;
+        }
+
+        void reset() {
+            count.reset();
+            total.reset();
+            max.reset();
+        }
+    }
+
+    private final LongAdder eventsReceived = new LongAdder();
+    private final LongAdder eventsCoalesced = new LongAdder();
+    private final LongAdder eventsSuperseded = new LongAdder();
+    private final LongAdder variantsSkipped = new LongAdder();
+    private final LongAdder variantCacheHits = new LongAdder();
+    private final LongAdder variantCacheMisses = new LongAdder();
+    private final ConcurrentMap<String, LongAdder> variantsCreated = new ConcurrentHashMap<>();
+    private final Timer decodeTimer = new Timer();
+    private final ConcurrentMap<String, Timer> scaleTimers = new ConcurrentHashMap<>();
+    private final Timer saveTimer = new Timer();
+    private final ConcurrentMap<Integer, LongAdder> retries = new ConcurrentHashMap<>();
+    private final LongAdder failures = new LongAdder();
+
+    private volatile LongSupplier dropped = () -> 0;
+    private volatile IntSupplier queueSize = () -> 0;
+    private volatile IntSupplier activeWorkers = () -> 0;
+    private volatile IntSupplier pendingRetries = () -> 0;
+    private volatile IntSupplier workerLimit = () -> 0;
+    private volatile Supplier<String> workerLimitReason = () -> null;
+
+    public void eventReceived() {
+        eventsReceived.increment();
+    }
+
+    public void eventCoalesced() {
+        eventsCoalesced.increment();
+    }
+
+    public void eventSuperseded() {
+        eventsSuperseded.increment();
+    }
+
+    public void variantSkipped() {
+        variantsSkipped.increment();
+    }
+
+    public void variantCacheLookup(final boolean hit) {
+        (hit ? variantCacheHits : variantCacheMisses).increment();
+    }
+
+    public void variantCreated(final String variantName) {
+        variantsCreated.computeIfAbsent(variantName, name -> new LongAdder()).increment();
+    }
+
+    public void recordDecode(final long nanos) {
+        decodeTimer.record(nanos);
+    }
+
+    public void recordScale(final String variantName, final long nanos) {
+        scaleTimers.computeIfAbsent(variantName, name -> new Timer()).record(nanos);
+    }
+
+    public void recordSave(final long nanos) {
+        saveTimer.record(nanos);
+    }
+
+    /**
+     * @param retry number of the retry scheduled, starting at 1
+     */
+    public void retryScheduled(final int retry) {
+        retries.computeIfAbsent(retry, number -> new LongAdder()).increment();
+    }
+
+    public void failed() {
+        failures.increment();
+    }
+
+    /**
+     * Sets where to read the current backlog from.
+     */
+    public void setBacklog(final IntSupplier queueSize, final IntSupplier activeWorkers, final IntSupplier pendingRetries,
+                           final LongSupplier dropped) {
+        this.queueSize = queueSize;
+        this.activeWorkers = activeWorkers;
+        this.pendingRetries = pendingRetries;
+        this.dropped = dropped;
+    }
+
+    /**
+     * Sets where to read the current number of workers and the reason it was last changed from.
+     */
+    public void setWorkerLimit(final IntSupplier workerLimit, final Supplier<String> workerLimitReason) {
+        this.workerLimit = workerLimit;
+        this.workerLimitReason = workerLimitReason;
+    }
+
+    /**
+     * @return the number of events waiting in the work queue or for a retry, or 0 if the module is not running
+     */
+    public static int getBackgroundBacklog() {
+        final BackgroundProcessorMetrics metrics = registered;
+        return metrics != null ? metrics.getQueueSize() + metrics.getPendingRetries() : 0;
+    }
+
+    public void register() {
+        registered = this;
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            log.warn("Cannot register metrics as {}", OBJECT_NAME, e);
+        }
+    }
+
+    public void unregister() {
+        if (registered == this) {
+            registered = null;
+        }
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            log.warn("Cannot unregister metrics {}", OBJECT_NAME, e);
+        }
+    }
+
+    @Override
+    public long getEventsReceived() {
+        return eventsReceived.sum();
+    }
+
+    @Override
+    public long getEventsCoalesced() {
+        return eventsCoalesced.sum();
+    }
+
+    @Override
+    public long getEventsSuperseded() {
+        return eventsSuperseded.sum();
+    }
+
+    @Override
+    public long getVariantsSkipped() {
+        return variantsSkipped.sum();
+    }
+
+    @Override
+    public long getVariantCacheHits() {
+        return variantCacheHits.sum();
+    }
+
+    @Override
+    public long getVariantCacheMisses() {
+        return variantCacheMisses.sum();
+    }
+
+    @Override
+    public double getVariantCacheHitRatio() {
+        final long hits = variantCacheHits.sum();
+        final long lookups = hits + variantCacheMisses.sum();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public Map<String, Long> getVariantsCreated() {
+        final Map<String, Long> result = new TreeMap<>();
+        variantsCreated.forEach((name, count) -> result.put(name, count.sum()));
+        return result;
+    }
+
+    @Override
+    public long getDecodeCount() {
+        return decodeTimer.getCount();
+    }
+
+    @Override
+    public double getDecodeTimeAverage() {
+        return decodeTimer.getAverage();
+    }
+
+    @Override
+    public double getDecodeTimeMax() {
+        return decodeTimer.getMax();
+    }
+
+    @Override
+    public Map<String, Double> getScaleTimeAverage() {
+        final Map<String, Double> result = new TreeMap<>();
+        scaleTimers.forEach((name, timer) -> result.put(name, timer.getAverage()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getScaleTimeMax() {
+        final Map<String, Double> result = new TreeMap<>();
+        scaleTimers.forEach((name, timer) -> result.put(name, timer.getMax()));
+        return result;
+    }
+
+    @Override
+    public long getSaveCount() {
+        return saveTimer.getCount();
+    }
+
+    @Override
+    public double getSaveTimeAverage() {
+        return saveTimer.getAverage();
+    }
+
+    @Override
+    public double getSaveTimeMax() {
+        return saveTimer.getMax();
+    }
+
+    @Override
+    public Map<String, Long> getRetries() {
+        final Map<String, Long> result = new TreeMap<>();
+        retries.forEach((retry, count) -> result.put(String.valueOf(retry), count.sum()));
+        return result;
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public long getDropped() {
+        return dropped.getAsLong();
+    }
+
+    @Override
+    public int getQueueSize() {
+        return queueSize.getAsInt();
+    }
+
+    @Override
+    public int getActiveWorkers() {
+        return activeWorkers.getAsInt();
+    }
+
+    @Override
+    public int getPendingRetries() {
+        return pendingRetries.getAsInt();
+    }
+
+    @Override
+    public int getWorkerLimit() {
+        return workerLimit.getAsInt();
+    }
+
+    @Override
+    public String getWorkerLimitReason() {
+        return workerLimitReason.get();
+    }
+
+    @Override
+    public void reset() {
+        eventsReceived.reset();
+        eventsCoalesced.reset();
+        eventsSuperseded.reset();
+        variantsSkipped.reset();
+        variantCacheHits.reset();
+        variantCacheMisses.reset();
+        variantsCreated.clear();
+        decodeTimer.reset();
+        scaleTimers.clear();
+        saveTimer.reset();
+        retries.clear();
+        failures.reset();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bloomreach.forge.gallery;
+
+import java.util.Map;
+
+/**
+ * JMX view on the metrics of the background gallery processor. Times are in milliseconds.
+ */
+public interface BackgroundProcessorMetricsMXBean {
+
+    long getEventsReceived();
+
+    /**
+     * @return number of events merged into an event for the same image set that was still waiting
+     */
+    long getEventsCoalesced();
+
+    /**
+     * @return number of events skipped because their original was replaced since
+     */
+    long getEventsSuperseded();
+
+    /**
+     * @return number of variants not created because they already existed
+     */
+    long getVariantsSkipped();
+
+    /**
+     * @return number of variants that used the data of a variant scaled before from an original with the same content
+     */
+    long getVariantCacheHits();
+
+    /**
+     * @return number of variants looked up in the variant cache, but not found
+     */
+    long getVariantCacheMisses();
+
+    /**
+     * @return fraction of the variant cache lookups that were hits
+     */
+    double getVariantCacheHitRatio();
+
+    /**
+     * @return number of variants created per variant name
+     */
+    Map<String, Long> getVariantsCreated();
+
+    long getDecodeCount();
+
+    double getDecodeTimeAverage();
+
+    double getDecodeTimeMax();
+
+    /**
+     * @return average time to scale and encode a variant, per variant name
+     */
+    Map<String, Double> getScaleTimeAverage();
+
+    /**
+     * @return maximum time to scale and encode a variant, per variant name
+     */
+    Map<String, Double> getScaleTimeMax();
+
+    long getSaveCount();
+
+    double getSaveTimeAverage();
+
+    double getSaveTimeMax();
+
+    /**
+     * @return number of retries scheduled, per retry number
+     */
+    Map<String, Long> getRetries();
+
+    /**
+     * @return number of events for which no variants were created, after all retries
+     */
+    long getFailures();
+
+    /**
+     * @return number of events dropped because the work queue was full
+     */
+    long getDropped();
+
+    /**
+     * @return number of events waiting in the work queue, or for their delayed first attempt or room in the work queue
+     */
+    int getQueueSize();
+
+    /**
+     * @return number of workers busy processing an event
+     */
+    int getActiveWorkers();
+
+    /**
+     * @return number of retries waiting for their delay to pass
+     */
+    int getPendingRetries();
+
+    /**
+     * @return number of workers creating variants at the same time
+     */
+    int getWorkerLimit();
+
+    /**
+     * @return why the number of workers was last changed
+     */
+    String getWorkerLimitReason();
+
+    void reset();
+}
@@ -15,7 +15,12 @@
  */
 package org.bloomreach.forge.gallery;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.request.cycle.AbstractRequestCycleListener;
+import org.apache.wicket.request.cycle.RequestCycle;
 import org.hippoecm.frontend.plugins.gallery.imageutil.ImageBinary;
+import org.hippoecm.frontend.plugins.gallery.imageutil.ImageUtils;
 import org.hippoecm.frontend.plugins.gallery.imageutil.ScalingParameters;
 import org.hippoecm.frontend.plugins.gallery.model.GalleryException;
 import org.hippoecm.frontend.plugins.gallery.processor.ScalingGalleryProcessor;
@@ -23,28 +28,298 @@ import org.hippoecm.frontend.session.UserSession;
 import org.hippoecm.frontend.types.IFieldDescriptor;
 import org.hippoecm.frontend.types.ITypeDescriptor;
 import org.hippoecm.repository.gallery.HippoGalleryNodeType;
+import org.hippoecm.repository.util.JcrUtils;
 import org.onehippo.cms7.services.HippoServiceRegistry;
 import org.onehippo.cms7.services.eventbus.HippoEventBus;
+import org.onehippo.repository.util.JcrConstants;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.imageio.IIOImage;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * BackgroundScalingGalleryProcessor that:
- * - creates original and thumbnail directly within the upload
+ * - creates the original, and the variants its {@link VariantPlacementPolicy} selects, directly within the upload
  * - posts the other variants to the event bus, for BackgroundGalleryProcessorModule to pick up
  */
 public class BackgroundScalingGalleryProcessor extends ScalingGalleryProcessor {
 
     private static final Logger log = LoggerFactory.getLogger(BackgroundScalingGalleryProcessor.class);
 
+    // decoded pixels kept per pixel of the largest variant when subsampling the original
+    protected static final int DECODE_OVERSAMPLING = 2;
+    protected static final int BYTES_PER_PIXEL = 4;
+    private static final int UNBOUNDED_DIMENSION = 1 << 16;
+
+    private static final MetaDataKey<List<ImageCreationEvent>> UPLOADS = new MetaDataKey<List<ImageCreationEvent>>() {
+    };
+
+    private transient BackgroundProcessorMetrics metrics;
+    private transient MemoryBudget memoryBudget;
+    private transient VariantCache variantCache;
+    private boolean decodeSubsampling;
+    private VariantPlacementPolicy placementPolicy = new VariantPlacementPolicy();
+    private transient ExecutorService scalingExecutor;
+    private transient TempFileStore tempFiles;
+    private long spillThreshold;
+    private int maxParallelVariants = 1;
+    private boolean offloadCpu;
+    private final Map<String, Integer> variantPriorities = new HashMap<>();
+    private boolean batchUploads = true;
+    private boolean stampFingerprints;
+
+    /**
+     * Notified of every variant created by {@link #initGalleryResources}, in the order they are created.
+     */
+    public interface VariantListener {
+        void variantCreated(Node variant) throws RepositoryException;
+    }
+
+    /**
+     * Settings of the module for decoding and scaling in the background.
+     */
+    public static final class Config {
+
+        static final long DEFAULT_MEMORY_BUDGET = 512L * 1024 * 1024;
+        static final int DEFAULT_MAX_PARALLEL_VARIANTS = 4;
+
+        private final long memoryBudget;
+        private final boolean decodeSubsampling;
+        private final boolean reuseBuffers;
+        private final boolean stampFingerprints;
+        private final int maxParallelVariants;
+        private final int scaleThreads;
+
+        public Config() {
+            this(DEFAULT_MEMORY_BUDGET, false, true, false, DEFAULT_MAX_PARALLEL_VARIANTS, 0);
+        }
+
+        public Config(final long memoryBudget, final boolean decodeSubsampling, final boolean reuseBuffers,
+                      final boolean stampFingerprints, final int maxParallelVariants, final int scaleThreads) {
+            this.memoryBudget = memoryBudget;
+            this.decodeSubsampling = decodeSubsampling;
+            this.reuseBuffers = reuseBuffers;
+            this.stampFingerprints = stampFingerprints;
+            this.maxParallelVariants = Math.max(1, maxParallelVariants);
+            this.scaleThreads = scaleThreads;
+        }
+
+        public static Config read(final Node node) throws RepositoryException {
+            return new Config(
+                    ConfigProperties.getLong(node, "memoryBudget", DEFAULT_MEMORY_BUDGET),
+                    JcrUtils.getBooleanProperty(node, "decodeSubsampling", false),
+                    JcrUtils.getBooleanProperty(node, "reuseBuffers", true),
+                    JcrUtils.getBooleanProperty(node, "stampFingerprints", false),
+                    ConfigProperties.getInteger(node, "maxParallelVariants", DEFAULT_MAX_PARALLEL_VARIANTS),
+                    ConfigProperties.getInteger(node, "scaleThreads", 0));
+        }
+
+        public long getMemoryBudget() {
+            return memoryBudget;
+        }
+
+        public boolean isDecodeSubsampling() {
+            return decodeSubsampling;
+        }
+
+        public boolean isReuseBuffers() {
+            return reuseBuffers;
+        }
+
+        public boolean isStampFingerprints() {
+            return stampFingerprints;
+        }
+
+        public int getMaxParallelVariants() {
+            return maxParallelVariants;
+        }
+
+        /**
+         * @return the number of threads to scale on: as configured, or one per processor
+         */
+        public int getScaleThreads() {
+            return scaleThreads > 0 ? scaleThreads : Runtime.getRuntime().availableProcessors();
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Config)) {
+                return false;
+            }
+            final Config other = (Config) o;
+            return memoryBudget == other.memoryBudget && decodeSubsampling == other.decodeSubsampling
+                    && reuseBuffers == other.reuseBuffers && stampFingerprints == other.stampFingerprints
+                    && maxParallelVariants == other.maxParallelVariants && scaleThreads == other.scaleThreads;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(memoryBudget, decodeSubsampling, reuseBuffers, stampFingerprints, maxParallelVariants,
+                    scaleThreads);
+        }
+
+        @Override
+        public String toString() {
+            return "memoryBudget=" + memoryBudget + ", decodeSubsampling=" + decodeSubsampling
+                    + ", reuseBuffers=" + reuseBuffers + ", stampFingerprints=" + stampFingerprints
+                    + ", maxParallelVariants=" + maxParallelVariants + ", scaleThreads=" + scaleThreads;
+        }
+    }
+
+    /**
+     * Sets the metrics to record decode and scale times and created variants in, when running in the background.
+     */
+    public void setMetrics(final BackgroundProcessorMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the budget to reserve the memory for decoded images from, when running in the background.
+     */
+    public void setMemoryBudget(final MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Sets the cache to look up variants scaled before from the same original in, when running in the background.
+     */
+    public void setVariantCache(final VariantCache variantCache) {
+        this.variantCache = variantCache;
+    }
+
+    /**
+     * Sets whether originals are decoded with source subsampling when the variants do not need all of their pixels.
+     * Off by default: variants scaled from a subsampled original are not byte for byte the same as those of
+     * {@link ScalingGalleryProcessor}.
+     */
+    public void setDecodeSubsampling(final boolean decodeSubsampling) {
+        this.decodeSubsampling = decodeSubsampling;
+    }
+
+    /**
+     * Sets the executor to scale and encode the variants of an image set on in parallel, when running in the
+     * background. JCR access stays on the calling thread.
+     *
+     * @param maxParallelVariants maximum number of variants of one image set scaled at the same time
+     */
+    public void setParallelScaling(final ExecutorService scalingExecutor, final int maxParallelVariants) {
+        this.scalingExecutor = scalingExecutor;
+        this.maxParallelVariants = Math.max(1, maxParallelVariants);
+    }
+
+    /**
+     * Sets whether originals are decoded and variants scaled only on the scaling executor, with the calling thread
+     * waiting for them, so no more threads use the CPU for images than the executor has, however many workers there
+     * are, e.g. on virtual threads. Originals are then not decoded into reused buffers, as a decoded image is still in
+     * use after the executor thread decoding it has moved on to other work.
+     */
+    public void setOffloadCpu(final boolean offloadCpu) {
+        this.offloadCpu = offloadCpu;
+    }
+
+    /**
+     * Sets the store to write encoded variants larger than a threshold to, instead of keeping them on the heap until
+     * they are stored in the repository.
+     *
+     * @param tempFiles the store for the temporary files, or null to keep all encoded variants on the heap
+     * @param spillThreshold number of bytes from which an encoded variant is written to a temporary file
+     */
+    public void setSpilling(final TempFileStore tempFiles, final long spillThreshold) {
+        this.tempFiles = tempFiles;
+        this.spillThreshold = spillThreshold;
+    }
+
+    /**
+     * Sets the policy deciding which variants of an upload are created directly and which in the background.
+     */
+    public void setPlacementPolicy(final VariantPlacementPolicy placementPolicy) {
+        this.placementPolicy = placementPolicy;
+    }
+
+    /**
+     * Sets whether the events of the uploads in one request are posted as one batch event at the end of the request.
+     */
+    public void setBatchUploads(final boolean batchUploads) {
+        this.batchUploads = batchUploads;
+    }
+
+    /**
+     * Sets whether the variants created are stamped with a {@link VariantFingerprint} of their scaling parameters.
+     */
+    public void setStampFingerprints(final boolean stampFingerprints) {
+        this.stampFingerprints = stampFingerprints;
+    }
+
+    /**
+     * Sets the priority of a variant: variants with a higher priority are created first in the background.
+     */
+    public void setVariantPriority(final String nodeName, final int priority) {
+        variantPriorities.put(nodeName, priority);
+    }
+
+    /**
+     * Orders variants to be created in the background: highest priority first, and among variants with the same
+     * priority the smallest target area first, so the cheapest variants are there soonest.
+     *
+     * @param variants mapping from variant name to JCR type
+     * @return the same mapping, in the order to create the variants in
+     */
+    public Map<String, String> sortVariants(final Map<String, String> variants) {
+        final List<Map.Entry<String, String>> entries = new ArrayList<>(variants.entrySet());
+        entries.sort(Comparator.<Map.Entry<String, String>>comparingInt(entry -> -variantPriorities.getOrDefault(entry.getKey(), 0))
+                .thenComparingLong(entry -> getTargetArea(getScalingParametersMap().get(entry.getKey()))));
+        final Map<String, String> sorted = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : entries) {
+            sorted.put(entry.getKey(), entry.getValue());
+        }
+        return sorted;
+    }
+
+    private static long getTargetArea(final ScalingParameters parameters) {
+        if (parameters == null) {
+            // a copy of the original
+            return 0;
+        }
+        // an unbounded dimension follows the original, which is usually larger than any bounded one
+        final long width = parameters.getWidth() > 0 ? parameters.getWidth() : UNBOUNDED_DIMENSION;
+        final long height = parameters.getHeight() > 0 ? parameters.getHeight() : UNBOUNDED_DIMENSION;
+        return width * height;
+    }
+
     @Override
     public ScalingParameters addScalingParameters(final String nodeName, final ScalingParameters parameters) {
         return super.addScalingParameters(nodeName, parameters);
@@ -61,41 +336,846 @@ public class BackgroundScalingGalleryProcessor extends ScalingGalleryProcessor {
             return;
         }
 
-        final Map<String, String> backgroundImageVariants = new HashMap<>();
-
-        // create only some resource variant nodes, collect the others
+        final Map<String, IFieldDescriptor> missingVariants = new LinkedHashMap<>();
         for (IFieldDescriptor field : type.getFields().values()) {
-            if (field.getTypeDescriptor().isType(HippoGalleryNodeType.IMAGE)) {
-                final String variantPath = field.getPath();
-                if (!node.hasNode(variantPath)) {
-                    // create some variants directly, keep the others to be posted as event
-                    if (isBackgroundImageVariant(variantPath)) {
-                        log.debug("Scheduling variant {} for background processing", variantPath);
-                        backgroundImageVariants.put(variantPath, field.getTypeDescriptor().getType());
-                    } else {
-                        log.debug("Directly creating variant {} ", variantPath);
-                        final Node variantNode = node.addNode(variantPath, field.getTypeDescriptor().getType());
-                        initGalleryResource(variantNode, image.getStream(), image.getMimeType(), image.getFileName(), lastModified);
-                    }
-                }
+            if (field.getTypeDescriptor().isType(HippoGalleryNodeType.IMAGE) && !node.hasNode(field.getPath())) {
+                missingVariants.put(field.getPath(), field);
+            }
+        }
+
+        // the original of a new upload is not there yet, so its size is read from the uploaded image
+        final InputStream uploaded = image.getStream();
+        final Dimension size;
+        try {
+            size = readImageSize(uploaded, image.getMimeType());
+        } finally {
+            IOUtils.closeQuietly(uploaded);
+        }
+        final Set<String> inlineVariants = placementPolicy.getInlineVariants(missingVariants.keySet(), getScalingParametersMap(),
+                size.width, size.height, getBackgroundBacklog());
+
+        // create some variants directly, keep the others to be posted as event
+        final Map<String, String> backgroundImageVariants = new HashMap<>();
+        for (IFieldDescriptor field : missingVariants.values()) {
+            final String variantPath = field.getPath();
+            if (inlineVariants.contains(variantPath)) {
+                log.debug("Directly creating variant {} ", variantPath);
+                final Node variantNode = node.addNode(variantPath, field.getTypeDescriptor().getType());
+                initGalleryResource(variantNode, image.getStream(), image.getMimeType(), image.getFileName(), lastModified);
+                stampFingerprint(variantNode, getScalingParameters(variantPath));
+            } else {
+                log.debug("Scheduling variant {} for background processing", variantPath);
+                backgroundImageVariants.put(variantPath, field.getTypeDescriptor().getType());
             }
         }
+        if (backgroundImageVariants.isEmpty()) {
+            return;
+        }
 
         // post the other variants to the event bus, for BackgroundGalleryProcessorModule to pick up
         final ImageCreationEvent variantEvent = new ImageCreationEvent(UserSession.get().getApplicationName())
                 .nodePath(node.getPath())
                 .mimeType(image.getMimeType())
                 .fileName(image.getFileName())
+                .lastModified(getOriginalLastModified(node, lastModified))
                 .variants(backgroundImageVariants);
-        variantEvent.sealEvent();
-        eventBus.post(variantEvent);
+        postEvent(eventBus, variantEvent);
     }
 
     /**
-     * Is a certain variant to be created now or to be created in the background?
+     * Posts an event to the event bus. With batching of uploads, the events of one request, e.g. of a multi-file
+     * upload, are collected and posted at the end of the request, as one batch event if there is more than one.
      */
-    protected boolean isBackgroundImageVariant(final String variantPath) {
-        // any other than original or thumbnail
-        return !(variantPath.equals(HippoGalleryNodeType.IMAGE_SET_ORIGINAL) || variantPath.equals(HippoGalleryNodeType.IMAGE_SET_THUMBNAIL));
+    protected void postEvent(final HippoEventBus eventBus, final ImageCreationEvent event) {
+        final RequestCycle requestCycle = batchUploads ? RequestCycle.get() : null;
+        if (requestCycle == null) {
+            event.sealEvent();
+            eventBus.post(event);
+            return;
+        }
+        List<ImageCreationEvent> uploads = requestCycle.getMetaData(UPLOADS);
+        if (uploads == null) {
+            uploads = new ArrayList<>();
+            requestCycle.setMetaData(UPLOADS, uploads);
+            requestCycle.getListeners().add(new UploadsListener(eventBus, uploads));
+        }
+        uploads.add(event);
+    }
+
+    private static Long getOriginalLastModified(final Node imageSet, final Calendar lastModified) throws RepositoryException {
+        final Node original = JcrUtils.getNodeIfExists(imageSet, HippoGalleryNodeType.IMAGE_SET_ORIGINAL);
+        final Calendar originalLastModified = original == null ? null
+                : JcrUtils.getDateProperty(original, JcrConstants.JCR_LAST_MODIFIED, null);
+        if (originalLastModified != null) {
+            return originalLastModified.getTimeInMillis();
+        }
+        return lastModified == null ? null : lastModified.getTimeInMillis();
+    }
+
+    /**
+     * Creates the given variants of an image set in one go: the original image is read and decoded only once and every
+     * scaled variant is derived from that decoded image, using the same scaling and encoding as
+     * {@link org.hippoecm.frontend.plugins.gallery.imageutil.ScaleImageOperation}. Variants without scaling parameters,
+     * or originals that cannot be decoded, are created one by one by {@link #initGalleryResource}.
+     * <p>
+     * The original is decoded with the coarsest source subsampling that still leaves enough pixels for the largest
+     * variant, so the full resolution raster of a huge original is never held in memory. The memory needed for the
+     * decoded image is reserved from the memory budget, if any, before decoding.
+     * <p>
+     * With an executor for parallel scaling, the variants are scaled and encoded on it, a limited number at the same
+     * time, while the variant nodes are written on the calling thread in the order of the variants.
+     * <p>
+     * With a variant cache, variants that have been scaled before from an original with the same content and with the
+     * same parameters use the existing variant data; the original is only decoded when some variant is not cached.
+     *
+     * @param imageSet the image set to add the variant nodes to
+     * @param original the original image node of the image set
+     * @param variants mapping from variant name to JCR type, in the order to create them in
+     * @return the number of bytes of scaled image data created
+     */
+    public long initGalleryResources(final Node imageSet, final Node original, final Map<String, String> variants,
+                                     final String mimeType, final String fileName, final Calendar lastModified) throws RepositoryException {
+        return initGalleryResources(imageSet, original, variants, mimeType, fileName, lastModified, null);
+    }
+
+    /**
+     * Creates the given variants of an image set in one go, notifying a listener of every variant created.
+     *
+     * @param listener the listener to notify, may be null
+     * @see #initGalleryResources(Node, Node, Map, String, String, Calendar)
+     */
+    public long initGalleryResources(final Node imageSet, final Node original, final Map<String, String> variants,
+                                     final String mimeType, final String fileName, final Calendar lastModified,
+                                     final VariantListener listener) throws RepositoryException {
+
+        final Binary originalData = original.getProperty(JcrConstants.JCR_DATA).getBinary();
+        final String originalHash = variantCache == null ? null : VariantCache.hash(originalData);
+
+        final List<ScalingParameters> scaledVariants = new ArrayList<>();
+        final Map<String, Node> cachedVariants = new HashMap<>();
+        for (String name : variants.keySet()) {
+            final ScalingParameters parameters = getScalingParametersMap().get(name);
+            if (parameters == null) {
+                continue;
+            }
+            final Node cached = originalHash == null ? null
+                    : variantCache.get(imageSet.getSession(), originalHash, parameters, mimeType);
+            if (metrics != null && originalHash != null) {
+                metrics.variantCacheLookup(cached != null);
+            }
+            if (cached != null) {
+                cachedVariants.put(name, cached);
+            } else {
+                scaledVariants.add(parameters);
+            }
+        }
+
+        final Map<ScalingParameters, Node> newVariants = new HashMap<>();
+        final OriginalImage image = scaledVariants.isEmpty() ? null : openImage(originalData, mimeType);
+        BufferedImage decoded = null;
+        VariantScaler scaler = null;
+        long size = 0;
+        try {
+            if (image != null) {
+                final long start = System.nanoTime();
+                decoded = readImage(image, scaledVariants);
+                if (metrics != null && decoded != null) {
+                    metrics.recordDecode(System.nanoTime() - start);
+                }
+            }
+            if (decoded != null) {
+                scaler = new VariantScaler(decoded, image.width, image.height, scaledVariants, mimeType);
+            }
+
+            for (Map.Entry<String, String> variant : variants.entrySet()) {
+                final String name = variant.getKey();
+                log.debug("--> creating image variant {} of type {}", name, variant.getValue());
+
+                final Node variantNode = imageSet.addNode(name, variant.getValue());
+                final ScalingParameters parameters = getScalingParametersMap().get(name);
+
+                final long start = System.nanoTime();
+                long scaleNanos = -1;
+                if (cachedVariants.containsKey(name)) {
+                    log.debug("Using the data of variant {} scaled before from the same original", cachedVariants.get(name).getPath());
+                    initCachedGalleryResource(variantNode, cachedVariants.get(name), mimeType, lastModified);
+                } else if (parameters != null && scaler != null) {
+                    final ScaledImage scaled = scaler.next();
+                    // timed by the thread that scaled it, without waiting for it or writing it
+                    scaleNanos = scaled.nanos;
+                    final long scaledSize = initScaledGalleryResource(variantNode, originalData, scaled,
+                            mimeType, lastModified);
+                    if (scaledSize > 0) {
+                        newVariants.put(parameters, variantNode);
+                    }
+                    size += scaledSize;
+                } else {
+                    final InputStream stream = originalData.getStream();
+                    try {
+                        initGalleryResource(variantNode, stream, mimeType, fileName, lastModified);
+                    } finally {
+                        IOUtils.closeQuietly(stream);
+                    }
+                }
+                stampFingerprint(variantNode, parameters);
+                if (metrics != null) {
+                    metrics.recordScale(name, scaleNanos >= 0 ? scaleNanos : System.nanoTime() - start);
+                    metrics.variantCreated(name);
+                }
+                if (listener != null) {
+                    listener.variantCreated(variantNode);
+                }
+            }
+            if (originalHash != null) {
+                variantCache.put(originalHash, newVariants, mimeType);
+            }
+        } finally {
+            if (scaler != null) {
+                // the decoded image must not be released while it is being scaled
+                scaler.discard();
+            }
+            if (image != null) {
+                image.close();
+            }
+            originalData.dispose();
+        }
+        return size;
+    }
+
+    /**
+     * Stamps a variant node with the fingerprint of the scaling parameters it was created with, if enabled. A variant
+     * that cannot be stamped is created all the same.
+     *
+     * @param parameters the scaling parameters of the variant, may be null for a copy of the original
+     */
+    protected void stampFingerprint(final Node variant, final ScalingParameters parameters) {
+        if (!stampFingerprints || parameters == null) {
+            return;
+        }
+        try {
+            if (!VariantFingerprint.stamp(variant, parameters)) {
+                log.debug("Cannot stamp variant {} with a fingerprint: mixin {} not allowed", variant.getPath(), VariantFingerprint.MIXIN);
+            }
+        } catch (RepositoryException e) {
+            log.debug("Cannot stamp variant with a fingerprint: {}", e.toString());
+        }
+    }
+
+    /**
+     * Opens the original image data and reads its dimensions, without decoding the image itself.
+     *
+     * @return the opened image, or null if the image cannot be decoded by this processor
+     */
+    protected OriginalImage openImage(final Binary data, final String mimeType) throws RepositoryException {
+        final ImageReader reader = getImageReader(mimeType);
+        if (reader == null) {
+            log.debug("No image reader found for mime type {}, falling back to creating variants one by one", mimeType);
+            return null;
+        }
+
+        final OriginalImage image = new OriginalImage(reader, mimeType, data.getStream());
+        try {
+            image.open();
+            return image;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Cannot decode image of type {}, falling back to creating variants one by one: {}", mimeType, e.toString());
+            image.close();
+            return null;
+        }
+    }
+
+    /**
+     * Decodes an opened original image, subsampled as far as the scaled variants allow and the memory budget requires.
+     *
+     * @return the decoded image, or null if the image cannot be decoded
+     */
+    protected BufferedImage readImage(final OriginalImage image, final List<ScalingParameters> scaledVariants) {
+        int subsampling = decodeSubsampling ? getSubsampling(image.width, image.height, scaledVariants) : 1;
+        final long limit = memoryBudget == null ? 0 : memoryBudget.getLimit();
+        final int maxSubsampling = Math.max(image.width, image.height);
+        while (limit > 0 && estimateMemory(image.width, image.height, subsampling, scaledVariants) > limit
+                && subsampling < maxSubsampling) {
+            subsampling++;
+        }
+        if (subsampling > 1) {
+            log.debug("Decoding image of {}x{} with subsampling {}", image.width, image.height, subsampling);
+        }
+
+        long reservation = 0;
+        try {
+            if (memoryBudget != null) {
+                reservation = memoryBudget.reserve(estimateMemory(image.width, image.height, subsampling, scaledVariants));
+            }
+        } catch (InterruptedException e) {
+            log.debug("Interrupted while waiting for memory, decoding image of {}x{} anyway", image.width, image.height);
+            Thread.currentThread().interrupt();
+        }
+        image.reservation = reservation;
+
+        try {
+            return decodeImage(image, subsampling);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Cannot decode image of {}x{}, falling back to creating variants one by one: {}", image.width, image.height, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Decodes an original with the given subsampling, on the scaling executor when the CPU work is offloaded to it.
+     */
+    private BufferedImage decodeImage(final OriginalImage image, final int subsampling) throws IOException {
+        final ExecutorService executor = offloadCpu ? scalingExecutor : null;
+        if (executor != null) {
+            final Future<BufferedImage> future;
+            try {
+                future = executor.submit(() -> decodeImage(image, subsampling, false));
+            } catch (RejectedExecutionException e) {
+                log.debug("Scaling executor shut down, decoding on the calling thread");
+                return decodeImage(image, subsampling, true);
+            }
+            // the reader must not be closed while it is decoding, so wait even when interrupted
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return future.get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IOException("Cannot decode image", e.getCause());
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        return decodeImage(image, subsampling, true);
+    }
+
+    private BufferedImage decodeImage(final OriginalImage image, final int subsampling,
+                                      final boolean reuseBuffers) throws IOException {
+        final ImageReadParam param = image.reader.getDefaultReadParam();
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        if (reuseBuffers) {
+            setDestination(image.reader, param, (image.width + subsampling - 1) / subsampling,
+                    (image.height + subsampling - 1) / subsampling);
+        }
+        return image.reader.read(0, param);
+    }
+
+    /**
+     * Returns the coarsest source subsampling that still leaves at least {@link #DECODE_OVERSAMPLING} decoded pixels
+     * per pixel of the largest variant, for the scaling filter to work with. Variants that use the original as-is
+     * need no decoded pixels; variants that are scaled up need all of them.
+     */
+    protected int getSubsampling(final int originalWidth, final int originalHeight, final List<ScalingParameters> scaledVariants) {
+        double maxResizeRatio = 0;
+        for (ScalingParameters parameters : scaledVariants) {
+            final double resizeRatio = calculateResizeRatio(originalWidth, originalHeight, parameters.getWidth(), parameters.getHeight());
+            if (resizeRatio >= 1.0d) {
+                if (parameters.getUpscaling()) {
+                    return 1;
+                }
+                continue;
+            }
+            maxResizeRatio = Math.max(maxResizeRatio, resizeRatio);
+        }
+        if (maxResizeRatio == 0) {
+            return 1;
+        }
+        return Math.max(1, (int) Math.floor(1 / (maxResizeRatio * DECODE_OVERSAMPLING)));
+    }
+
+    /**
+     * Estimates the number of bytes of heap needed for decoding an image with the given subsampling and scaling it to
+     * the largest variants that may be scaled at the same time.
+     */
+    protected long estimateMemory(final int originalWidth, final int originalHeight, final int subsampling,
+                                  final List<ScalingParameters> scaledVariants) {
+        final long decodedPixels = (long) ((originalWidth + subsampling - 1) / subsampling)
+                * ((originalHeight + subsampling - 1) / subsampling);
+        final List<Long> variantPixels = new ArrayList<>();
+        for (ScalingParameters parameters : scaledVariants) {
+            final double resizeRatio = calculateResizeRatio(originalWidth, originalHeight, parameters.getWidth(), parameters.getHeight());
+            if (resizeRatio < 1.0d || parameters.getUpscaling()) {
+                variantPixels.add((long) (originalWidth * resizeRatio) * (long) (originalHeight * resizeRatio));
+            }
+        }
+        variantPixels.sort(Comparator.reverseOrder());
+        long scaledPixels = 0;
+        for (int i = 0; i < Math.min(getParallelism(), variantPixels.size()); i++) {
+            scaledPixels += variantPixels.get(i);
+        }
+        return (decodedPixels + scaledPixels) * BYTES_PER_PIXEL;
+    }
+
+    /**
+     * @return the maximum number of variants of one image set scaled at the same time
+     */
+    protected int getParallelism() {
+        return scalingExecutor == null ? 1 : maxParallelVariants;
+    }
+
+    /**
+     * Initializes a variant node with a scaled version of an already decoded, possibly subsampled, original image.
+     *
+     * @param originalWidth width of the original image before subsampling
+     * @param originalHeight height of the original image before subsampling
+     * @return the number of bytes of scaled image data created, 0 if the original data is used as-is
+     */
+    protected long initScaledGalleryResource(final Node node, final Binary originalData, final BufferedImage decoded,
+                                             final int originalWidth, final int originalHeight,
+                                             final ScalingParameters parameters, final String mimeType,
+                                             final Calendar lastModified) throws RepositoryException {
+        return initScaledGalleryResource(node, originalData,
+                scaleVariant(decoded, originalWidth, originalHeight, parameters, mimeType), mimeType, lastModified);
+    }
+
+    /**
+     * Scales and encodes a variant of an already decoded, possibly subsampled, original image. Does not access the
+     * repository, so variants can be scaled on other threads.
+     *
+     * @param originalWidth width of the original image before subsampling
+     * @param originalHeight height of the original image before subsampling
+     */
+    protected ScaledImage scaleVariant(final BufferedImage decoded, final int originalWidth, final int originalHeight,
+                                       final ScalingParameters parameters, final String mimeType) throws RepositoryException {
+
+        final double resizeRatio = calculateResizeRatio(originalWidth, originalHeight, parameters.getWidth(), parameters.getHeight());
+
+        if (resizeRatio >= 1.0d && !parameters.getUpscaling()) {
+            log.debug("Using the original image of {}x{} as-is", originalWidth, originalHeight);
+            return new ScaledImage(null, originalWidth, originalHeight);
+        }
+
+        final int width = (int) Math.max(originalWidth * resizeRatio, 1);
+        final int height = (int) Math.max(originalHeight * resizeRatio, 1);
+        log.debug("Resizing image of {}x{} to {}x{}", originalWidth, originalHeight, width, height);
+
+        final BufferedImage scaledImage = ImageUtils.scaleImage(decoded, width, height, parameters.getStrategy());
+        final VariantData scaledData = new VariantData(tempFiles, spillThreshold, getOutputBuffer());
+        try {
+            writeImage(scaledImage, mimeType, parameters.getCompressionQuality(), scaledData);
+            scaledData.close();
+        } catch (IOException e) {
+            scaledData.dispose();
+            throw new RepositoryException("Cannot store encoded image", e);
+        } catch (RepositoryException | RuntimeException e) {
+            scaledData.dispose();
+            throw e;
+        }
+        return new ScaledImage(scaledData, width, height);
+    }
+
+    /**
+     * Initializes a variant node with a scaled and encoded image.
+     *
+     * @return the number of bytes of scaled image data created, 0 if the original data is used as-is
+     */
+    protected long initScaledGalleryResource(final Node node, final Binary originalData, final ScaledImage scaled,
+                                             final String mimeType, final Calendar lastModified) throws RepositoryException {
+        final Binary data;
+        if (scaled.data == null) {
+            data = originalData;
+        } else {
+            // the repository reads the stream up front, so the data is not needed afterwards
+            InputStream stream = null;
+            try {
+                stream = scaled.data.getInputStream();
+                data = node.getSession().getValueFactory().createBinary(stream);
+            } catch (IOException e) {
+                throw new RepositoryException("Cannot read encoded image", e);
+            } finally {
+                IOUtils.closeQuietly(stream);
+                scaled.dispose();
+            }
+        }
+
+        node.setProperty(JcrConstants.JCR_MIME_TYPE, mimeType);
+        node.setProperty(JcrConstants.JCR_DATA, data);
+        node.setProperty(JcrConstants.JCR_LAST_MODIFIED, lastModified);
+        node.setProperty(HippoGalleryNodeType.IMAGE_WIDTH, scaled.width);
+        node.setProperty(HippoGalleryNodeType.IMAGE_HEIGHT, scaled.height);
+        return scaled.data == null ? 0 : scaled.data.getSize();
+    }
+
+    /**
+     * Initializes a variant node with the data of a variant scaled before with the same parameters from an original
+     * with the same content. The binary is shared rather than copied, so the data store keeps it only once.
+     */
+    protected void initCachedGalleryResource(final Node node, final Node cached, final String mimeType,
+                                             final Calendar lastModified) throws RepositoryException {
+        node.setProperty(JcrConstants.JCR_MIME_TYPE, mimeType);
+        node.setProperty(JcrConstants.JCR_DATA, cached.getProperty(JcrConstants.JCR_DATA).getBinary());
+        node.setProperty(JcrConstants.JCR_LAST_MODIFIED, lastModified);
+        node.setProperty(HippoGalleryNodeType.IMAGE_WIDTH, cached.getProperty(HippoGalleryNodeType.IMAGE_WIDTH).getLong());
+        node.setProperty(HippoGalleryNodeType.IMAGE_HEIGHT, cached.getProperty(HippoGalleryNodeType.IMAGE_HEIGHT).getLong());
+    }
+
+    /**
+     * Encodes a scaled image.
+     */
+    protected byte[] writeImage(final BufferedImage image, final String mimeType, final float compressionQuality) throws RepositoryException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        writeImage(image, mimeType, compressionQuality, output);
+        return output.toByteArray();
+    }
+
+    /**
+     * Encodes a scaled image to a stream, with the same write parameters as {@link ImageUtils#writeImage}.
+     */
+    protected void writeImage(final BufferedImage image, final String mimeType, final float compressionQuality,
+                              final OutputStream output) throws RepositoryException {
+        final ImageWriter writer = getImageWriter(mimeType);
+        if (writer == null) {
+            throw new RepositoryException("No image writer found for mime type " + mimeType);
+        }
+        boolean written = false;
+        try (ImageOutputStream stream = new MemoryCacheImageOutputStream(output)) {
+            writer.setOutput(stream);
+            final ImageWriteParam param = writer.getDefaultWriteParam();
+            if (param.canWriteCompressed()) {
+                final String[] compressionTypes = param.getCompressionTypes();
+                if (compressionTypes != null && compressionTypes.length > 0) {
+                    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                    param.setCompressionType(compressionTypes[0]);
+                    param.setCompressionQuality(compressionQuality);
+                }
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+            stream.flush();
+            written = true;
+        } catch (IOException | RuntimeException e) {
+            throw new RepositoryException("Cannot encode image of type " + mimeType, e);
+        } finally {
+            if (written) {
+                releaseImageWriter(mimeType, writer);
+            } else {
+                // a writer that failed may be in any state
+                writer.dispose();
+            }
+        }
+    }
+
+    /**
+     * @return the buffer to encode a variant into before it is known whether it is spilled to a temporary file. By
+     * default a new buffer.
+     */
+    protected ByteArrayOutputStream getOutputBuffer() {
+        return new ByteArrayOutputStream();
+    }
+
+    /**
+     * @return a reader for images of the given mime type, or null if there is none
+     */
+    protected ImageReader getImageReader(final String mimeType) {
+        return ImageUtils.getImageReader(mimeType);
+    }
+
+    /**
+     * Called when done with a reader obtained from {@link #getImageReader}.
+     */
+    protected void releaseImageReader(final String mimeType, final ImageReader reader) {
+        reader.dispose();
+    }
+
+    /**
+     * @return a writer for images of the given mime type, or null if there is none
+     */
+    protected ImageWriter getImageWriter(final String mimeType) {
+        return ImageUtils.getImageWriter(mimeType);
+    }
+
+    /**
+     * Called when done with a writer obtained from {@link #getImageWriter}.
+     */
+    protected void releaseImageWriter(final String mimeType, final ImageWriter writer) {
+        writer.dispose();
+    }
+
+    /**
+     * Sets the image to decode an original into. By default the reader creates a new image.
+     *
+     * @param width width of the decoded image
+     * @param height height of the decoded image
+     */
+    protected void setDestination(final ImageReader reader, final ImageReadParam param, final int width, final int height) {
+    }
+
+    /**
+     * Same resize ratio as calculated by {@link org.hippoecm.frontend.plugins.gallery.imageutil.ScaleImageOperation}.
+     */
+    protected double calculateResizeRatio(final double originalWidth, final double originalHeight,
+                                          final int targetWidth, final int targetHeight) {
+        double widthRatio = 1;
+        double heightRatio = 1;
+
+        if (targetWidth >= 1) {
+            widthRatio = targetWidth / originalWidth;
+        }
+        if (targetHeight >= 1) {
+            heightRatio = targetHeight / originalHeight;
+        }
+
+        // scaling down takes the largest negative ratio, scaling up the smallest positive ratio
+        return Math.min(widthRatio, heightRatio);
+    }
+
+    /**
+     * Reads the dimensions of an image from its header, without decoding its pixels.
+     *
+     * @return the dimensions of the image, or 0 by 0 if they cannot be read
+     */
+    protected Dimension readImageSize(final InputStream stream, final String mimeType) {
+        final ImageReader reader = mimeType != null ? getImageReader(mimeType) : null;
+        if (reader == null) {
+            return new Dimension();
+        }
+        final ImageInputStream imageInputStream = new MemoryCacheImageInputStream(stream);
+        try {
+            reader.setInput(imageInputStream, true, true);
+            return new Dimension(reader.getWidth(0), reader.getHeight(0));
+        } catch (IOException | RuntimeException e) {
+            log.debug("Cannot read the size of a {} image", mimeType, e);
+            return new Dimension();
+        } finally {
+            releaseImageReader(mimeType, reader);
+            IOUtils.closeQuietly(imageInputStream);
+        }
+    }
+
+    /**
+     * @return the number of events waiting for the background processor in this JVM, or 0 if it is not running
+     */
+    protected int getBackgroundBacklog() {
+        return BackgroundProcessorMetrics.getBackgroundBacklog();
+    }
+
+    /**
+     * Original image opened for decoding, holding on to its reader, its streams and the memory reserved for it.
+     */
+    protected class OriginalImage {
+
+        private final ImageReader reader;
+        private final String mimeType;
+        private final InputStream stream;
+        private ImageInputStream imageInputStream;
+        private int width;
+        private int height;
+        private long reservation;
+
+        protected OriginalImage(final ImageReader reader, final String mimeType, final InputStream stream) {
+            this.reader = reader;
+            this.mimeType = mimeType;
+            this.stream = stream;
+        }
+
+        private void open() throws IOException {
+            imageInputStream = new MemoryCacheImageInputStream(stream);
+            reader.setInput(imageInputStream, true, true);
+            width = reader.getWidth(0);
+            height = reader.getHeight(0);
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        private void close() {
+            if (memoryBudget != null) {
+                memoryBudget.release(reservation);
+            }
+            reservation = 0;
+            releaseImageReader(mimeType, reader);
+            IOUtils.closeQuietly(imageInputStream);
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Posts the events of the uploads in a request when the request ends: a single event as-is, so listeners that do
+     * not know batch events keep working for single uploads, more events as one batch event.
+     */
+    private static class UploadsListener extends AbstractRequestCycleListener {
+
+        private final HippoEventBus eventBus;
+        private final List<ImageCreationEvent> uploads;
+
+        private UploadsListener(final HippoEventBus eventBus, final List<ImageCreationEvent> uploads) {
+            this.eventBus = eventBus;
+            this.uploads = uploads;
+        }
+
+        @Override
+        public void onEndRequest(final RequestCycle cycle) {
+            if (uploads.isEmpty()) {
+                return;
+            }
+            ImageCreationEvent event = uploads.get(0);
+            if (uploads.size() > 1) {
+                event = new ImageCreationEvent(event.application());
+                for (ImageCreationEvent upload : uploads) {
+                    event.asset(upload);
+                }
+                log.debug("Posting one event for {} uploads", uploads.size());
+            }
+            uploads.clear();
+            event.sealEvent();
+            eventBus.post(event);
+        }
+    }
+
+    /**
+     * Scaled and encoded variant image, or the dimensions of the original if it is used as-is.
+     */
+    protected static class ScaledImage {
+
+        private final VariantData data;
+        private final int width;
+        private final int height;
+        // nanoseconds it took to scale and encode the variant
+        private long nanos;
+
+        protected ScaledImage(final VariantData data, final int width, final int height) {
+            this.data = data;
+            this.width = width;
+            this.height = height;
+        }
+
+        protected void dispose() {
+            if (data != null) {
+                data.dispose();
+            }
+        }
+    }
+
+    /**
+     * Scales the variants of a decoded image in order, ahead of the calling thread on the scaling executor, if any,
+     * keeping at most {@link #getParallelism()} variants in progress.
+     */
+    private class VariantScaler {
+
+        private final List<ScaleTask> tasks = new ArrayList<>();
+        private int next;
+
+        private VariantScaler(final BufferedImage decoded, final int originalWidth, final int originalHeight,
+                              final List<ScalingParameters> scaledVariants, final String mimeType) {
+            for (ScalingParameters parameters : scaledVariants) {
+                tasks.add(new ScaleTask(() -> {
+                    final long start = System.nanoTime();
+                    final ScaledImage scaled = scaleVariant(decoded, originalWidth, originalHeight, parameters, mimeType);
+                    scaled.nanos = System.nanoTime() - start;
+                    return scaled;
+                }));
+            }
+            for (int i = 0; i < getParallelism(); i++) {
+                submit(i);
+            }
+        }
+
+        private void submit(final int index) {
+            final ExecutorService executor = scalingExecutor;
+            if (executor != null && (getParallelism() > 1 || offloadCpu) && index < tasks.size()) {
+                final ScaleTask task = tasks.get(index);
+                try {
+                    task.future = executor.submit(task);
+                } catch (RejectedExecutionException e) {
+                    log.debug("Scaling executor shut down, scaling on the calling thread");
+                }
+            }
+        }
+
+        /**
+         * @return the next variant, scaled on the calling thread if no other thread has started on it yet, unless the
+         * CPU work is offloaded to the executor
+         */
+        private ScaledImage next() throws RepositoryException {
+            final ScaleTask task = tasks.get(next);
+            submit(next + getParallelism());
+            next++;
+            return task.get(offloadCpu);
+        }
+
+        /**
+         * Skips the variants not started yet and waits for the others, releasing their data.
+         */
+        private void discard() {
+            for (int i = next; i < tasks.size(); i++) {
+                tasks.get(i).discard();
+            }
+        }
+    }
+
+    private interface Scaling {
+        ScaledImage scale() throws RepositoryException;
+    }
+
+    /**
+     * Variant to scale, by a thread of the scaling executor or by the calling thread, whichever starts on it first.
+     */
+    private static class ScaleTask implements Callable<ScaledImage> {
+
+        private final Scaling scaling;
+        private final AtomicBoolean started = new AtomicBoolean();
+        private volatile Future<ScaledImage> future;
+
+        private ScaleTask(final Scaling scaling) {
+            this.scaling = scaling;
+        }
+
+        @Override
+        public ScaledImage call() throws RepositoryException {
+            return started.compareAndSet(false, true) ? scaling.scale() : null;
+        }
+
+        /**
+         * @param waitForExecutor whether to wait for the executor to scale the variant, if it was handed to it
+         */
+        private ScaledImage get(final boolean waitForExecutor) throws RepositoryException {
+            if ((!waitForExecutor || future == null) && started.compareAndSet(false, true)) {
+                return scaling.scale();
+            }
+            try {
+                return future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RepositoryException) {
+                    throw (RepositoryException) e.getCause();
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RepositoryException("Cannot scale variant", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RepositoryException("Interrupted while scaling variant", e);
+            }
+        }
+
+        private void discard() {
+            if (!started.compareAndSet(false, true)) {
+                try {
+                    final ScaledImage scaled = future.get();
+                    if (scaled != null) {
+                        scaled.dispose();
+                    }
+                } catch (ExecutionException e) {
+                    log.debug("Error scaling discarded variant", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
     }
 }
@@ -47,6 +47,13 @@ public class BackgroundScalingGalleryProcessorPlugin extends ScalingGalleryProce
     static final String DEFAULT_OPTIMIZE = ScalingGalleryProcessorPlugin.DEFAULT_OPTIMIZE;
     static final double DEFAULT_COMPRESSION = ScalingGalleryProcessorPlugin.DEFAULT_COMPRESSION;
 
+    static final String CONFIG_PARAM_INLINE_VARIANTS = "background.inline.variants";
+    static final String CONFIG_PARAM_BACKGROUND_VARIANTS = "background.variants";
+    static final String CONFIG_PARAM_INLINE_PIXELS = "background.inline.pixels";
+    static final String CONFIG_PARAM_BUSY_INLINE_PIXELS = "background.busy.inline.pixels";
+    static final String CONFIG_PARAM_BUSY_BACKLOG = "background.busy.backlog";
+    static final String CONFIG_PARAM_BATCH_UPLOADS = "background.batch.uploads";
+
     static final Map<String, ImageUtils.ScalingStrategy> SCALING_STRATEGY_MAP = ScalingGalleryProcessorPlugin.SCALING_STRATEGY_MAP;
 
     public BackgroundScalingGalleryProcessorPlugin(final IPluginContext context, final IPluginConfig config) {
@@ -55,7 +62,9 @@ public class BackgroundScalingGalleryProcessorPlugin extends ScalingGalleryProce
 
     @Override
     protected ScalingGalleryProcessor createScalingGalleryProcessor(IPluginConfig config) {
-        final ScalingGalleryProcessor processor = new BackgroundScalingGalleryProcessor();
+        final BackgroundScalingGalleryProcessor processor = new BackgroundScalingGalleryProcessor();
+        processor.setPlacementPolicy(createPlacementPolicy(config));
+        processor.setBatchUploads(config.getAsBoolean(CONFIG_PARAM_BATCH_UPLOADS, true));
 
         for (IPluginConfig scaleConfig : config.getPluginConfigSet()) {
             final String nodeName = StringUtils.substringAfterLast(scaleConfig.getName(), ".");
@@ -82,4 +91,13 @@ public class BackgroundScalingGalleryProcessorPlugin extends ScalingGalleryProce
 
         return processor;
     }
+
+    protected VariantPlacementPolicy createPlacementPolicy(final IPluginConfig config) {
+        return new VariantPlacementPolicy(
+                config.getStringArray(CONFIG_PARAM_INLINE_VARIANTS),
+                config.getStringArray(CONFIG_PARAM_BACKGROUND_VARIANTS),
+                config.getAsLong(CONFIG_PARAM_INLINE_PIXELS, VariantPlacementPolicy.DEFAULT_INLINE_PIXELS),
+                config.getAsLong(CONFIG_PARAM_BUSY_INLINE_PIXELS, VariantPlacementPolicy.DEFAULT_BUSY_INLINE_PIXELS),
+                config.getAsInteger(CONFIG_PARAM_BUSY_BACKLOG, VariantPlacementPolicy.DEFAULT_BUSY_BACKLOG));
+    }
 }
@@ -0,0 +1,958 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bloomreach.forge.gallery;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.hippoecm.repository.util.JcrUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of worker threads that process background tasks, each worker with its own JCR session.
+ * <p>
+ * Tasks wait in one of two lanes: interactive tasks are taken before bulk tasks, unless a bulk task has been waiting
+ * for longer than the bulk aging time, so bulk work still progresses while interactive work keeps coming in.
+ * <p>
+ * The number of workers executing tasks at the same time can be lowered below the number of worker threads at runtime;
+ * the other workers wait until the limit is raised again.
+ * <p>
+ * The workers can run on virtual threads, where available, so workers waiting for the repository hardly take up
+ * resources and the pool can have many more workers than there are processors. The CPU bound work of those workers is
+ * then done on a separate pool of platform threads.
+ */
+public class BackgroundWorkerPool {
+
+    private static final Logger log = LoggerFactory.getLogger(BackgroundWorkerPool.class);
+
+    /**
+     * What to do with a task when the work queue is full.
+     */
+    public enum OverflowPolicy {
+        /** wait until the queue has room again */
+        BLOCK,
+        /** drop the task, logging a warning */
+        DROP,
+        /** run the task on the submitting thread */
+        CALLER_RUNS;
+
+        public static OverflowPolicy parse(final String value, final OverflowPolicy defaultPolicy) {
+            if (value != null) {
+                for (OverflowPolicy policy : values()) {
+                    if (policy.name().replace("_", "").equalsIgnoreCase(value.replace("-", "").replace("_", ""))) {
+                        return policy;
+                    }
+                }
+                log.warn("Unknown overflow policy '{}', falling back to '{}'", value, defaultPolicy);
+            }
+            return defaultPolicy;
+        }
+    }
+
+    /**
+     * Lane a task waits in for a worker.
+     */
+    public enum Lane {
+        /** work someone is waiting for, e.g. an upload by an editor */
+        INTERACTIVE,
+        /** work nobody is waiting for in particular, e.g. an import */
+        BULK
+    }
+
+    /**
+     * Creates a new JCR session for a worker.
+     */
+    public interface SessionFactory {
+        Session createSession() throws RepositoryException;
+    }
+
+    /**
+     * Task to execute with the session of the worker running it.
+     */
+    public interface SessionTask {
+        void execute(Session session) throws Exception;
+
+        /**
+         * Called instead of {@link #execute} when the task is dropped without being executed.
+         */
+        default void dropped() {
+        }
+    }
+
+    /**
+     * Settings of the worker pool of the module.
+     */
+    public static final class Config {
+
+        static final int DEFAULT_WORKERS = 2;
+        static final int DEFAULT_QUEUE_SIZE = 1000;
+        static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.BLOCK;
+        static final long DEFAULT_BULK_AGING = 60000;
+        static final String[] DEFAULT_INTERACTIVE_APPLICATIONS = {"cms"};
+        static final int DEFAULT_MAX_IN_FLIGHT = 32;
+
+        private final int workers;
+        private final int queueSize;
+        private final OverflowPolicy overflowPolicy;
+        private final long bulkAging;
+        private final Set<String> interactiveApplications;
+        private final boolean virtualThreads;
+        private final int maxInFlight;
+
+        public Config() {
+            this(DEFAULT_WORKERS, DEFAULT_QUEUE_SIZE, DEFAULT_OVERFLOW_POLICY, DEFAULT_BULK_AGING,
+                    new HashSet<>(Arrays.asList(DEFAULT_INTERACTIVE_APPLICATIONS)), false, DEFAULT_MAX_IN_FLIGHT);
+        }
+
+        /**
+         * @param workers number of workers on platform threads
+         * @param maxInFlight number of workers on virtual threads
+         */
+        public Config(final int workers, final int queueSize, final OverflowPolicy overflowPolicy, final long bulkAging,
+                      final Set<String> interactiveApplications, final boolean virtualThreads, final int maxInFlight) {
+            this.workers = Math.max(1, workers);
+            this.queueSize = Math.max(1, queueSize);
+            this.overflowPolicy = overflowPolicy;
+            this.bulkAging = bulkAging;
+            this.interactiveApplications = Collections.unmodifiableSet(new HashSet<>(interactiveApplications));
+            this.virtualThreads = virtualThreads;
+            this.maxInFlight = Math.max(1, maxInFlight);
+        }
+
+        public static Config read(final Node node) throws RepositoryException {
+            return new Config(
+                    ConfigProperties.getInteger(node, "workers", DEFAULT_WORKERS),
+                    ConfigProperties.getInteger(node, "queueSize", DEFAULT_QUEUE_SIZE),
+                    OverflowPolicy.parse(JcrUtils.getStringProperty(node, "overflowPolicy", null), DEFAULT_OVERFLOW_POLICY),
+                    ConfigProperties.getLong(node, "bulkAging", DEFAULT_BULK_AGING),
+                    new HashSet<>(Arrays.asList(JcrUtils.getMultipleStringProperty(node, "interactiveApplications",
+                            DEFAULT_INTERACTIVE_APPLICATIONS))),
+                    JcrUtils.getBooleanProperty(node, "virtualWorkers", false),
+                    ConfigProperties.getInteger(node, "maxInFlight", DEFAULT_MAX_IN_FLIGHT));
+        }
+
+        /**
+         * @return the number of workers: {@code maxInFlight} when they run on virtual threads, as they then mostly wait
+         * for the repository, otherwise {@code workers}
+         */
+        public int getWorkers() {
+            return isVirtualThreads() ? maxInFlight : workers;
+        }
+
+        public int getMaxInFlight() {
+            return maxInFlight;
+        }
+
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        public OverflowPolicy getOverflowPolicy() {
+            return overflowPolicy;
+        }
+
+        public long getBulkAging() {
+            return bulkAging;
+        }
+
+        /**
+         * @return the applications whose events are processed in the interactive lane
+         */
+        public Set<String> getInteractiveApplications() {
+            return interactiveApplications;
+        }
+
+        /**
+         * @return whether the workers run on virtual threads: when enabled and available
+         */
+        public boolean isVirtualThreads() {
+            return virtualThreads && VirtualThreads.isSupported();
+        }
+
+        /**
+         * @return whether virtual threads are enabled, whether or not they are available
+         */
+        public boolean isVirtualThreadsEnabled() {
+            return virtualThreads;
+        }
+
+        /**
+         * @return whether a pool with the other settings has the same threads and work queue as one with these
+         */
+        public boolean hasSamePool(final Config other) {
+            return getWorkers() == other.getWorkers() && queueSize == other.queueSize
+                    && overflowPolicy == other.overflowPolicy && bulkAging == other.bulkAging
+                    && isVirtualThreads() == other.isVirtualThreads();
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Config)) {
+                return false;
+            }
+            final Config other = (Config) o;
+            return workers == other.workers && queueSize == other.queueSize && overflowPolicy == other.overflowPolicy
+                    && bulkAging == other.bulkAging && interactiveApplications.equals(other.interactiveApplications)
+                    && virtualThreads == other.virtualThreads && maxInFlight == other.maxInFlight;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(workers, queueSize, overflowPolicy, bulkAging, interactiveApplications, virtualThreads,
+                    maxInFlight);
+        }
+
+        @Override
+        public String toString() {
+            return "workers=" + workers + ", queueSize=" + queueSize + ", overflowPolicy=" + overflowPolicy
+                    + ", bulkAging=" + bulkAging + ", interactiveApplications=" + interactiveApplications
+                    + ", virtualWorkers=" + virtualThreads + ", maxInFlight=" + maxInFlight;
+        }
+    }
+
+    // how long put waits for room in the work queue before checking whether the pool was shut down or replaced
+    private static final long PUT_INTERVAL = 1000;
+
+    private static final ThreadLocal<Boolean> isWorker = new ThreadLocal<>();
+
+    private final ThreadLocal<Session> workerSession = new ThreadLocal<>();
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final String name;
+    private final boolean virtualThreads;
+    private final SessionFactory sessionFactory;
+    private final long bulkAging;
+    private final ThreadPoolExecutor executor;
+    private final WorkQueue workQueue;
+    private volatile SessionTask idleListener;
+    private volatile LongConsumer completionListener;
+    private volatile BackgroundWorkerPool successor;
+
+    public BackgroundWorkerPool(final String name, final int workers, final int queueSize,
+                                final OverflowPolicy overflowPolicy, final SessionFactory sessionFactory) {
+        this(name, workers, queueSize, overflowPolicy, 0, sessionFactory);
+    }
+
+    /**
+     * @param bulkAging milliseconds after which a waiting bulk task is no longer passed by interactive tasks
+     */
+    public BackgroundWorkerPool(final String name, final int workers, final int queueSize,
+                                final OverflowPolicy overflowPolicy, final long bulkAging, final SessionFactory sessionFactory) {
+        this(name, workers, queueSize, overflowPolicy, bulkAging, false, sessionFactory);
+    }
+
+    /**
+     * @param bulkAging milliseconds after which a waiting bulk task is no longer passed by interactive tasks
+     * @param virtualThreads whether to run the workers on virtual threads; ignored if those are not available
+     */
+    public BackgroundWorkerPool(final String name, final int workers, final int queueSize,
+                                final OverflowPolicy overflowPolicy, final long bulkAging, final boolean virtualThreads,
+                                final SessionFactory sessionFactory) {
+        this.name = name;
+        this.virtualThreads = virtualThreads && VirtualThreads.isSupported();
+        this.sessionFactory = sessionFactory;
+        this.bulkAging = TimeUnit.MILLISECONDS.toNanos(Math.max(0, bulkAging));
+        this.workQueue = new WorkQueue(queueSize, workers);
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                workQueue, this::newWorker, createRejectedExecutionHandler(overflowPolicy));
+        // a task given to a new thread directly would bypass the worker limit of the queue
+        executor.prestartAllCoreThreads();
+    }
+
+    /**
+     * @return whether the current thread is a worker of any pool
+     */
+    public static boolean isWorkerThread() {
+        return isWorker.get() != null;
+    }
+
+    /**
+     * Sets a task that a worker runs with its session when it has no more work to do, before waiting for new work
+     * and before stopping.
+     */
+    public void setIdleListener(final SessionTask idleListener) {
+        this.idleListener = idleListener;
+    }
+
+    /**
+     * Sets a listener that is told how many nanoseconds each task executed by a worker took.
+     */
+    public void setCompletionListener(final LongConsumer completionListener) {
+        this.completionListener = completionListener;
+    }
+
+    /**
+     * Sets the number of workers that execute tasks at the same time, between 1 and the number of worker threads.
+     * When lowered, workers finish the task they are executing before they wait.
+     */
+    public void setWorkerLimit(final int limit) {
+        workQueue.setLimit(Math.max(1, Math.min(limit, executor.getMaximumPoolSize())));
+    }
+
+    /**
+     * @return the number of workers that execute tasks at the same time
+     */
+    public int getWorkerLimit() {
+        return workQueue.getLimit();
+    }
+
+    /**
+     * @return the number of worker threads
+     */
+    public int getWorkers() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * @return whether the workers run on virtual threads
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Hands a task off to the workers; depending on the overflow policy this blocks, drops the task or runs it directly
+     * when the work queue is full.
+     */
+    public void submit(final String description, final SessionTask task) {
+        submit(description, Lane.INTERACTIVE, task);
+    }
+
+    /**
+     * Hands a task off to the workers in the given lane.
+     *
+     * @see #submit(String, SessionTask)
+     */
+    public void submit(final String description, final Lane lane, final SessionTask task) {
+        long due = System.nanoTime();
+        if (lane == Lane.BULK) {
+            due += bulkAging;
+        }
+        executor.execute(new WorkerTask(description, task, due, sequence.incrementAndGet()));
+    }
+
+    /**
+     * Hands a task off to the workers in the given lane if the work queue has room for it. Whatever the overflow
+     * policy, this never blocks and never runs the task on the calling thread.
+     *
+     * @return whether the task was accepted; a task that was not is not executed
+     */
+    public boolean offer(final String description, final Lane lane, final SessionTask task) {
+        final BackgroundWorkerPool next = successor;
+        if (next != null) {
+            return next.offer(description, lane, task);
+        }
+        long due = System.nanoTime();
+        if (lane == Lane.BULK) {
+            due += bulkAging;
+        }
+        return offer(new WorkerTask(description, task, due, sequence.incrementAndGet()));
+    }
+
+    /**
+     * Hands a task off to the workers in the given lane, waiting for room in the work queue whatever the overflow
+     * policy, for callers that must not lose the task. A pool that is replaced meanwhile passes the task on to its
+     * successor.
+     *
+     * @return whether the task was accepted; it is not when the pool was shut down
+     * @throws InterruptedException when interrupted while waiting for room in the work queue
+     */
+    public boolean put(final String description, final Lane lane, final SessionTask task) throws InterruptedException {
+        long due = System.nanoTime();
+        if (lane == Lane.BULK) {
+            due += bulkAging;
+        }
+        final WorkerTask workerTask = new WorkerTask(description, task, due, sequence.incrementAndGet());
+        while (true) {
+            final BackgroundWorkerPool next = successor;
+            if (next != null) {
+                return next.put(description, lane, task);
+            }
+            if (executor.isShutdown()) {
+                return false;
+            }
+            if (workQueue.offer(workerTask, PUT_INTERVAL, TimeUnit.MILLISECONDS)
+                    && (!executor.isShutdown() || !workQueue.remove(workerTask))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the number of tasks waiting in the work queue
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of workers executing a task
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return the number of tasks dropped because the work queue was full or the pool was shut down
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the number of tasks that can be added to the work queue without overflowing it
+     */
+    public int getRemainingCapacity() {
+        return executor.getQueue().remainingCapacity();
+    }
+
+    /**
+     * Stops accepting new tasks and waits at most the given time for queued tasks to complete.
+     */
+    public void shutdown(final long timeout, final TimeUnit unit) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeout, unit)) {
+                final List<Runnable> notCompleted = executor.shutdownNow();
+                log.warn("{}: {} tasks not completed at shutdown", name, notCompleted.size());
+                notCompleted.forEach(this::drop);
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow().forEach(this::drop);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Replaces this pool by another one without waiting for the workers. The tasks waiting in the work queue move to
+     * the other pool as far as it has room for them; the workers finish the task they are executing and the tasks
+     * left in the queue in the background, and then stop. Tasks submitted to this pool afterwards go to the other
+     * pool.
+     */
+    public void handOver(final BackgroundWorkerPool successor) {
+        this.successor = successor;
+        int moved = 0;
+        for (Runnable runnable : workQueue) {
+            if (!(runnable instanceof WorkerTask) || successor.getRemainingCapacity() <= 0) {
+                continue;
+            }
+            final WorkerTask task = (WorkerTask) runnable;
+            if (workQueue.remove(task)) {
+                if (successor.transfer(task)) {
+                    moved++;
+                } else if (!workQueue.offer(task)) {
+                    drop(task);
+                }
+            }
+        }
+        executor.shutdown();
+        log.debug("{}: handed {} waiting tasks over, finishing {} tasks", name, moved,
+                executor.getActiveCount() + workQueue.size());
+    }
+
+    /**
+     * Adds a task of another pool to the work queue of this pool, without blocking.
+     *
+     * @return whether the task was added
+     */
+    private boolean transfer(final WorkerTask task) {
+        return offer(new WorkerTask(task.description, task.task, task.due, sequence.incrementAndGet()));
+    }
+
+    private boolean offer(final WorkerTask task) {
+        // the worker threads are all started, so a task in the queue is as good as executed
+        if (executor.isShutdown() || !workQueue.offer(task)) {
+            return false;
+        }
+        if (executor.isShutdown() && workQueue.remove(task)) {
+            // shut down meanwhile, its workers may have stopped already
+            return false;
+        }
+        return true;
+    }
+
+    private Thread newWorker(final Runnable runnable) {
+        final Runnable worker = () -> {
+            isWorker.set(Boolean.TRUE);
+            try {
+                runnable.run();
+            } finally {
+                onIdle();
+                logout(workerSession.get());
+                workerSession.remove();
+                isWorker.remove();
+            }
+        };
+        final String threadName = name + "-" + threadCount.incrementAndGet();
+        Thread thread = virtualThreads ? VirtualThreads.newThread(threadName, worker) : null;
+        if (thread == null) {
+            thread = new Thread(worker, threadName);
+            thread.setDaemon(true);
+        }
+        return thread;
+    }
+
+    private RejectedExecutionHandler createRejectedExecutionHandler(final OverflowPolicy overflowPolicy) {
+        final RejectedExecutionHandler handler = createOverflowHandler(overflowPolicy);
+        return (runnable, executor) -> {
+            final BackgroundWorkerPool next = successor;
+            if (executor.isShutdown() && next != null && runnable instanceof WorkerTask) {
+                // submitted after this pool has been replaced
+                final WorkerTask task = (WorkerTask) runnable;
+                next.executor.execute(next.new WorkerTask(task.description, task.task, task.due,
+                        next.sequence.incrementAndGet()));
+                return;
+            }
+            handler.rejectedExecution(runnable, executor);
+        };
+    }
+
+    private RejectedExecutionHandler createOverflowHandler(final OverflowPolicy overflowPolicy) {
+        switch (overflowPolicy) {
+            case DROP:
+                return (runnable, executor) -> {
+                    log.warn("{}: work queue full, dropping {}", name, runnable);
+                    drop(runnable);
+                };
+            case CALLER_RUNS:
+                return (runnable, executor) -> {
+                    if (executor.isShutdown()) {
+                        log.warn("{}: shut down, dropping {}", name, runnable);
+                        drop(runnable);
+                        return;
+                    }
+                    log.debug("{}: work queue full, running {} directly", name, runnable);
+                    runnable.run();
+                };
+            case BLOCK:
+            default:
+                return (runnable, executor) -> {
+                    if (executor.isShutdown()) {
+                        log.warn("{}: shut down, dropping {}", name, runnable);
+                        drop(runnable);
+                        return;
+                    }
+                    try {
+                        executor.getQueue().put(runnable);
+                    } catch (InterruptedException e) {
+                        log.warn("{}: interrupted while waiting for room in the work queue, dropping {}", name, runnable);
+                        drop(runnable);
+                        Thread.currentThread().interrupt();
+                    }
+                };
+        }
+    }
+
+    private void drop(final Runnable runnable) {
+        dropped.increment();
+        if (runnable instanceof WorkerTask) {
+            try {
+                ((WorkerTask) runnable).task.dropped();
+            } catch (RuntimeException e) {
+                log.error("{}: error dropping {}", name, runnable, e);
+            }
+        }
+    }
+
+    /**
+     * Orders tasks by the time they are due, and tasks due at the same time in the order they were submitted.
+     */
+    private static int compareDue(final Runnable a, final Runnable b) {
+        if (!(a instanceof WorkerTask) || !(b instanceof WorkerTask)) {
+            return 0;
+        }
+        final WorkerTask taskA = (WorkerTask) a;
+        final WorkerTask taskB = (WorkerTask) b;
+        final int due = Long.signum(taskA.due - taskB.due);
+        return due != 0 ? due : Long.compare(taskA.sequence, taskB.sequence);
+    }
+
+    private Session getWorkerSession() throws RepositoryException {
+        Session session = workerSession.get();
+        if (session == null || !session.isLive()) {
+            session = sessionFactory.createSession();
+            workerSession.set(session);
+        }
+        return session;
+    }
+
+    private void onIdle() {
+        final SessionTask listener = idleListener;
+        final Session session = workerSession.get();
+        if (listener != null && session != null && session.isLive()) {
+            try {
+                listener.execute(session);
+            } catch (Exception e) {
+                log.error("{}: error while going idle", name, e);
+            }
+        }
+    }
+
+    private static void logout(final Session session) {
+        if (session != null && session.isLive()) {
+            session.logout();
+        }
+    }
+
+    /**
+     * Bounded work queue ordering tasks by the time they are due: interactive tasks are due when submitted, bulk tasks
+     * the bulk aging time later. It lets a worker run the idle listener before it blocks waiting for new work, and
+     * hands out no more tasks to workers than the worker limit until they have been executed.
+     */
+    private class WorkQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+        private final int capacity;
+        private final PriorityQueue<Runnable> tasks = new PriorityQueue<>(BackgroundWorkerPool::compareDue);
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+        private int limit;
+        private int taken;
+
+        private WorkQueue(final int capacity, final int limit) {
+            this.capacity = capacity;
+            this.limit = limit;
+        }
+
+        private void setLimit(final int limit) {
+            lock.lock();
+            try {
+                this.limit = limit;
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int getLimit() {
+            lock.lock();
+            try {
+                return limit;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Called when a task handed out to a worker has been executed.
+         */
+        private void done() {
+            lock.lock();
+            try {
+                taken--;
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean isAvailable() {
+            return !tasks.isEmpty() && taken < limit;
+        }
+
+        /**
+         * @return the next task for a worker, counting it against the worker limit
+         */
+        private Runnable take(final Runnable task) {
+            if (task instanceof WorkerTask) {
+                ((WorkerTask) task).limited = true;
+                taken++;
+            }
+            return task;
+        }
+
+        @Override
+        public boolean offer(final Runnable task) {
+            lock.lock();
+            try {
+                if (tasks.size() >= capacity) {
+                    return false;
+                }
+                enqueue(task);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean offer(final Runnable task, final long timeout, final TimeUnit unit) throws InterruptedException {
+            long nanos = unit.toNanos(timeout);
+            lock.lockInterruptibly();
+            try {
+                while (tasks.size() >= capacity) {
+                    if (nanos <= 0) {
+                        return false;
+                    }
+                    nanos = notFull.awaitNanos(nanos);
+                }
+                enqueue(task);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void put(final Runnable task) throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (tasks.size() >= capacity) {
+                    notFull.await();
+                }
+                enqueue(task);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void enqueue(final Runnable task) {
+            tasks.add(task);
+            notEmpty.signal();
+        }
+
+        private Runnable dequeue() {
+            final Runnable task = tasks.poll();
+            if (task != null) {
+                notFull.signal();
+            }
+            return task;
+        }
+
+        @Override
+        public Runnable poll() {
+            lock.lock();
+            try {
+                return dequeue();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Runnable poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+            long nanos = unit.toNanos(timeout);
+            lock.lockInterruptibly();
+            try {
+                while (!isAvailable()) {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+                return take(dequeue());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Runnable take() throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                if (isAvailable()) {
+                    return take(dequeue());
+                }
+            } finally {
+                lock.unlock();
+            }
+            onIdle();
+            lock.lockInterruptibly();
+            try {
+                while (!isAvailable()) {
+                    notEmpty.await();
+                }
+                return take(dequeue());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Runnable peek() {
+            lock.lock();
+            try {
+                return tasks.peek();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean remove(final Object task) {
+            lock.lock();
+            try {
+                final boolean removed = tasks.remove(task);
+                if (removed) {
+                    notFull.signal();
+                }
+                return removed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int size() {
+            lock.lock();
+            try {
+                return tasks.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int remainingCapacity() {
+            lock.lock();
+            try {
+                return capacity - tasks.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int drainTo(final Collection<? super Runnable> target) {
+            return drainTo(target, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public int drainTo(final Collection<? super Runnable> target, final int max) {
+            lock.lock();
+            try {
+                int count = 0;
+                while (count < max && !tasks.isEmpty()) {
+                    target.add(tasks.poll());
+                    count++;
+                }
+                notFull.signalAll();
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return an iterator over a snapshot of the waiting tasks
+         */
+        @Override
+        public Iterator<Runnable> iterator() {
+            final List<Runnable> snapshot;
+            lock.lock();
+            try {
+                snapshot = new ArrayList<>(tasks);
+            } finally {
+                lock.unlock();
+            }
+            final Iterator<Runnable> iterator = snapshot.iterator();
+            return new Iterator<Runnable>() {
+                private Runnable last;
+
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public Runnable next() {
+                    last = iterator.next();
+                    return last;
+                }
+
+                @Override
+                public void remove() {
+                    WorkQueue.this.remove(last);
+                }
+            };
+        }
+    }
+
+    private class WorkerTask implements Runnable {
+
+        private final String description;
+        private final SessionTask task;
+        private final long due;
+        private final long sequence;
+        // whether the task counts against the worker limit
+        private boolean limited;
+
+        private WorkerTask(final String description, final SessionTask task, final long due, final long sequence) {
+            this.description = description;
+            this.task = task;
+            this.due = due;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            // tasks running on a non-worker thread (caller runs) get a session of their own
+            final boolean worker = isWorker.get() != null;
+            final long start = System.nanoTime();
+            Session session = null;
+            try {
+                session = worker ? getWorkerSession() : sessionFactory.createSession();
+                task.execute(session);
+            } catch (Exception e) {
+                log.error("{}: error executing {}", name, description, e);
+            } finally {
+                if (!worker) {
+                    logout(session);
+                }
+                if (limited) {
+                    workQueue.done();
+                }
+            }
+            final LongConsumer listener = completionListener;
+            if (listener != null && worker) {
+                listener.accept(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+}
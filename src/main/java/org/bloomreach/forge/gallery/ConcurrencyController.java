@@ -0,0 +1,367 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bloomreach.forge.gallery;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.hippoecm.repository.util.JcrUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adjusts the number of workers creating variants at the same time to the load of the host, additive increase,
+ * multiplicative decrease: while there is a backlog, a worker is added every adjustment, until the CPU load of the
+ * host, the fraction of time spent in garbage collection or the average time workers take per task goes over its
+ * limit; then the number of workers is halved.
+ * <p>
+ * The number of workers stays within a minimum and a maximum, which can be overridden for windows of the day, e.g. to
+ * leave the CPU to editors during working hours and work through imports at night.
+ */
+public class ConcurrencyController {
+
+    private static final Logger log = LoggerFactory.getLogger(ConcurrencyController.class);
+
+    /**
+     * Minimum and maximum number of workers from one time of the day until another.
+     */
+    public static class Window {
+
+        private final LocalTime from;
+        private final LocalTime to;
+        private final int minWorkers;
+        private final int maxWorkers;
+
+        public Window(final LocalTime from, final LocalTime to, final int minWorkers, final int maxWorkers) {
+            this.from = from;
+            this.to = to;
+            this.minWorkers = Math.max(1, minWorkers);
+            this.maxWorkers = Math.max(this.minWorkers, maxWorkers);
+        }
+
+        /**
+         * Parses a window like {@code 08:00-18:00=1-2} (one to two workers) or {@code 22:00-06:00=8} (at most eight
+         * workers); a window ending before it starts runs past midnight.
+         *
+         * @throws IllegalArgumentException when the window cannot be parsed
+         */
+        public static Window parse(final String value, final int defaultMinWorkers) {
+            try {
+                final String[] timesAndWorkers = value.trim().split("=");
+                final String[] times = timesAndWorkers[0].trim().split("-");
+                final String[] workers = timesAndWorkers[1].trim().split("-");
+                final int min = workers.length > 1 ? Integer.parseInt(workers[0].trim()) : defaultMinWorkers;
+                final int max = Integer.parseInt(workers[workers.length - 1].trim());
+                return new Window(LocalTime.parse(times[0].trim()), LocalTime.parse(times[1].trim()), min, max);
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException | DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid worker schedule '" + value + "', expected e.g. 08:00-18:00=1-2", e);
+            }
+        }
+
+        private boolean contains(final LocalTime time) {
+            if (from.isBefore(to)) {
+                return !time.isBefore(from) && time.isBefore(to);
+            }
+            return !time.isBefore(from) || time.isBefore(to);
+        }
+
+        @Override
+        public String toString() {
+            return from + "-" + to + "=" + minWorkers + "-" + maxWorkers;
+        }
+    }
+
+    /**
+     * Settings of the adjustment of the number of workers of the module.
+     */
+    public static final class Config {
+
+        static final int DEFAULT_INTERVAL = 10000;
+        static final double DEFAULT_CPU_LOAD_LIMIT = 0.8;
+        static final double DEFAULT_GC_TIME_LIMIT = 0.1;
+        static final int DEFAULT_LATENCY_LIMIT = 30000;
+
+        private final boolean enabled;
+        private final int minWorkers;
+        private final int maxWorkers;
+        private final List<String> schedule;
+        private final int interval;
+        private final double cpuLoadLimit;
+        private final double gcTimeLimit;
+        private final int latencyLimit;
+
+        public Config() {
+            this(false, 1, BackgroundWorkerPool.Config.DEFAULT_WORKERS, Collections.emptyList(), DEFAULT_INTERVAL,
+                    DEFAULT_CPU_LOAD_LIMIT, DEFAULT_GC_TIME_LIMIT, DEFAULT_LATENCY_LIMIT);
+        }
+
+        public Config(final boolean enabled, final int minWorkers, final int maxWorkers, final List<String> schedule,
+                      final int interval, final double cpuLoadLimit, final double gcTimeLimit, final int latencyLimit) {
+            this.enabled = enabled;
+            this.minWorkers = Math.max(1, minWorkers);
+            this.maxWorkers = Math.max(this.minWorkers, maxWorkers);
+            this.schedule = Collections.unmodifiableList(new ArrayList<>(schedule));
+            this.interval = Math.max(1, interval);
+            this.cpuLoadLimit = cpuLoadLimit;
+            this.gcTimeLimit = gcTimeLimit;
+            this.latencyLimit = latencyLimit;
+        }
+
+        /**
+         * @param workers the number of workers, the default maximum
+         */
+        public static Config read(final Node node, final int workers) throws RepositoryException {
+            return new Config(
+                    JcrUtils.getBooleanProperty(node, "adaptiveWorkers", false),
+                    ConfigProperties.getInteger(node, "minWorkers", 1),
+                    ConfigProperties.getInteger(node, "maxWorkers", workers),
+                    Arrays.asList(JcrUtils.getMultipleStringProperty(node, "workerSchedule", new String[0])),
+                    ConfigProperties.getInteger(node, "adaptiveInterval", DEFAULT_INTERVAL),
+                    ConfigProperties.getDouble(node, "cpuLoadLimit", DEFAULT_CPU_LOAD_LIMIT),
+                    ConfigProperties.getDouble(node, "gcTimeLimit", DEFAULT_GC_TIME_LIMIT),
+                    ConfigProperties.getInteger(node, "latencyLimit", DEFAULT_LATENCY_LIMIT));
+        }
+
+        /**
+         * @return whether the number of workers is adjusted to the load of the host
+         */
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public int getMinWorkers() {
+            return minWorkers;
+        }
+
+        public int getMaxWorkers() {
+            return maxWorkers;
+        }
+
+        /**
+         * @return the milliseconds between two adjustments
+         */
+        public int getInterval() {
+            return interval;
+        }
+
+        /**
+         * @return a controller starting at the given number of workers; windows of the schedule that cannot be parsed
+         * are logged and left out
+         */
+        public ConcurrencyController create(final int workers) {
+            final List<Window> windows = new ArrayList<>();
+            for (String window : schedule) {
+                try {
+                    windows.add(Window.parse(window, minWorkers));
+                } catch (IllegalArgumentException e) {
+                    log.warn(e.getMessage());
+                }
+            }
+            return new ConcurrencyController(workers, minWorkers, maxWorkers, windows, cpuLoadLimit, gcTimeLimit,
+                    latencyLimit);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Config)) {
+                return false;
+            }
+            final Config other = (Config) o;
+            return enabled == other.enabled && minWorkers == other.minWorkers && maxWorkers == other.maxWorkers
+                    && schedule.equals(other.schedule) && interval == other.interval
+                    && cpuLoadLimit == other.cpuLoadLimit && gcTimeLimit == other.gcTimeLimit
+                    && latencyLimit == other.latencyLimit;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(enabled, minWorkers, maxWorkers, schedule, interval, cpuLoadLimit, gcTimeLimit, latencyLimit);
+        }
+
+        @Override
+        public String toString() {
+            return "adaptiveWorkers=" + enabled + ", minWorkers=" + minWorkers + ", maxWorkers=" + maxWorkers
+                    + ", workerSchedule=" + schedule + ", adaptiveInterval=" + interval + ", cpuLoadLimit=" + cpuLoadLimit
+                    + ", gcTimeLimit=" + gcTimeLimit + ", latencyLimit=" + latencyLimit;
+        }
+    }
+
+    private final int minWorkers;
+    private final int maxWorkers;
+    private final List<Window> schedule;
+    private final double cpuLoadLimit;
+    private final double gcTimeLimit;
+    private final long latencyLimit;
+    private final LongAdder latencyTotal = new LongAdder();
+    private final LongAdder latencyCount = new LongAdder();
+    private long lastGcTime = -1;
+    private long lastGcSample;
+    private volatile int limit;
+    private volatile String reason = "initial";
+
+    /**
+     * @param workers initial number of workers
+     * @param schedule windows of the day overriding the minimum and maximum number of workers, may be empty
+     * @param cpuLoadLimit CPU load of the host, from 0 to 1, above which the number of workers is decreased
+     * @param gcTimeLimit fraction of time spent in garbage collection above which the number of workers is decreased
+     * @param latencyLimit average milliseconds per task above which the number of workers is decreased, 0 for none
+     */
+    public ConcurrencyController(final int workers, final int minWorkers, final int maxWorkers, final List<Window> schedule,
+                                 final double cpuLoadLimit, final double gcTimeLimit, final long latencyLimit) {
+        this.minWorkers = Math.max(1, minWorkers);
+        this.maxWorkers = Math.max(this.minWorkers, maxWorkers);
+        this.schedule = schedule == null ? Collections.emptyList() : new ArrayList<>(schedule);
+        this.cpuLoadLimit = cpuLoadLimit;
+        this.gcTimeLimit = gcTimeLimit;
+        this.latencyLimit = TimeUnit.MILLISECONDS.toNanos(latencyLimit);
+        this.limit = Math.max(this.minWorkers, Math.min(workers, this.maxWorkers));
+    }
+
+    /**
+     * @return the highest number of workers the controller may ask for, at any time of the day
+     */
+    public int getMaxWorkers() {
+        int max = maxWorkers;
+        for (Window window : schedule) {
+            max = Math.max(max, window.maxWorkers);
+        }
+        return max;
+    }
+
+    /**
+     * @return the current number of workers
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return why the number of workers was last changed
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * Records how long a worker took for a task.
+     */
+    public void recordLatency(final long nanos) {
+        latencyTotal.add(nanos);
+        latencyCount.increment();
+    }
+
+    /**
+     * Decides on the number of workers, based on the load since the previous adjustment.
+     *
+     * @param backlog number of tasks waiting for a worker
+     * @param time the current time of the day
+     * @return the new number of workers
+     */
+    public synchronized int adjust(final int backlog, final LocalTime time) {
+        final long count = latencyCount.sumThenReset();
+        final long total = latencyTotal.sumThenReset();
+        final long latency = count > 0 ? total / count : 0;
+        final double cpuLoad = getCpuLoad();
+        final double gcTime = getGcTime();
+
+        int min = minWorkers;
+        int max = maxWorkers;
+        Window window = null;
+        for (Window candidate : schedule) {
+            if (candidate.contains(time)) {
+                window = candidate;
+                min = candidate.minWorkers;
+                max = candidate.maxWorkers;
+                break;
+            }
+        }
+
+        final int current = limit;
+        int next = current;
+        String why = null;
+        if (current > max || current < min) {
+            next = Math.max(min, Math.min(current, max));
+            why = window != null ? "schedule " + window : "between " + min + " and " + max + " workers";
+        } else if (cpuLoadLimit > 0 && cpuLoad > cpuLoadLimit) {
+            next = Math.max(min, current / 2);
+            why = String.format(Locale.ENGLISH, "CPU load %.2f above %.2f", cpuLoad, cpuLoadLimit);
+        } else if (gcTimeLimit > 0 && gcTime > gcTimeLimit) {
+            next = Math.max(min, current / 2);
+            why = String.format(Locale.ENGLISH, "GC time %.2f above %.2f", gcTime, gcTimeLimit);
+        } else if (latencyLimit > 0 && latency > latencyLimit) {
+            next = Math.max(min, current / 2);
+            why = "latency " + TimeUnit.NANOSECONDS.toMillis(latency) + " ms above "
+                    + TimeUnit.NANOSECONDS.toMillis(latencyLimit) + " ms";
+        } else if (backlog > 0 && current < max) {
+            next = current + 1;
+            why = "backlog of " + backlog;
+        }
+
+        if (next != current) {
+            limit = next;
+            reason = why;
+            log.info("Changed number of workers from {} to {}: {}", current, next, why);
+        }
+        return next;
+    }
+
+    /**
+     * @return the CPU load of the host from 0 to 1, or a negative value if not available
+     */
+    protected double getCpuLoad() {
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            final double load = ((com.sun.management.OperatingSystemMXBean) os).getSystemCpuLoad();
+            if (load >= 0) {
+                return load;
+            }
+        }
+        final double loadAverage = os.getSystemLoadAverage();
+        return loadAverage < 0 ? -1 : loadAverage / os.getAvailableProcessors();
+    }
+
+    /**
+     * @return the fraction of time spent in garbage collection since the previous call, 0 on the first call
+     */
+    protected double getGcTime() {
+        long gcTime = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcTime += Math.max(0, collector.getCollectionTime());
+        }
+        final long now = System.nanoTime();
+        final double fraction = lastGcTime < 0 || now <= lastGcSample ? 0
+                : (double) TimeUnit.MILLISECONDS.toNanos(gcTime - lastGcTime) / (now - lastGcSample);
+        lastGcTime = gcTime;
+        lastGcSample = now;
+        return fraction;
+    }
+}
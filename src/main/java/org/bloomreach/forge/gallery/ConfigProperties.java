@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bloomreach.forge.gallery;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+/**
+ * Reads numeric settings from the module configuration node, of any numeric property type.
+ */
+final class ConfigProperties {
+
+    private ConfigProperties() {
+    }
+
+    static int getInteger(final Node node, final String property, final int defaultValue) throws RepositoryException {
+        if (node.hasProperty(property)) {
+            return (int) node.getProperty(property).getLong();
+        }
+        return defaultValue;
+    }
+
+    static long getLong(final Node node, final String property, final long defaultValue) throws RepositoryException {
+        if (node.hasProperty(property)) {
+            return node.getProperty(property).getLong();
+        }
+        return defaultValue;
+    }
+
+    static double getDouble(final Node node, final String property, final double defaultValue) throws RepositoryException {
+        if (node.hasProperty(property)) {
+            return node.getProperty(property).getDouble();
+        }
+        return defaultValue;
+    }
+}
@@ -16,12 +16,19 @@
 
 package org.bloomreach.forge.gallery;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.onehippo.cms7.event.HippoEvent;
 
 /**
  * Event for image creation (upload).
+ * <p>
+ * A batch event carries several image sets, e.g. of the files of one multi-file upload, as a list of assets with the
+ * same attributes as a single event. Use {@link #assets()} to handle single and batch events alike.
  */
 public class ImageCreationEvent<T extends ImageCreationEvent<T>> extends HippoEvent<T> {
 
@@ -30,6 +37,9 @@ public class ImageCreationEvent<T extends ImageCreationEvent<T>> extends HippoEv
     private static final String GALLERY = "gallery";
     private static final String MIME_TYPE = "mimeType";
     private static final String FILE_NAME = "fileName";
+    private static final String LAST_MODIFIED = "lastModified";
+    private static final String ASSETS = "assets";
+    private static final String REGENERATE = "regenerate";
 
     public ImageCreationEvent(String application) {
         super(application);
@@ -77,5 +87,83 @@ public class ImageCreationEvent<T extends ImageCreationEvent<T>> extends HippoEv
         return get(FILE_NAME);
     }
 
+    /**
+     * Set the time in milliseconds the original image was last modified at, to recognize events for an original that
+     * has been replaced since.
+     */
+    public T lastModified(final Long lastModified) {
+        return put(LAST_MODIFIED, lastModified);
+    }
+
+    /**
+     * Get the time in milliseconds the original image was last modified at, or null if unknown.
+     */
+    public Long lastModified() {
+        return get(LAST_MODIFIED);
+    }
+
+    /**
+     * Set whether variants that already exist are created again when their fingerprint differs from the current
+     * scaling parameters, even if they are newer than the original.
+     */
+    public T regenerate(final boolean regenerate) {
+        return put(REGENERATE, regenerate);
+    }
+
+    /**
+     * Get whether existing variants with a different fingerprint are created again.
+     */
+    public boolean regenerate() {
+        return Boolean.TRUE.equals(get(REGENERATE));
+    }
+
+    /**
+     * Adds the image set of a single event to this batch event.
+     */
+    @SuppressWarnings("unchecked")
+    public T asset(final ImageCreationEvent asset) {
+        List<Map<String, Object>> assets = get(ASSETS);
+        if (assets == null) {
+            assets = new ArrayList<>();
+            put(ASSETS, assets);
+        }
+        final Map<String, Object> values = new HashMap<>();
+        values.put(NODE_PATH, asset.nodePath());
+        values.put(MIME_TYPE, asset.mimeType());
+        values.put(FILE_NAME, asset.fileName());
+        values.put(LAST_MODIFIED, asset.lastModified());
+        values.put(VARIANTS, asset.variants());
+        assets.add(values);
+        return (T) this;
+    }
+
+    /**
+     * @return whether this is a batch event
+     */
+    public boolean isBatch() {
+        return get(ASSETS) != null;
+    }
+
+    /**
+     * Get the image sets of this event: a single event for every asset of a batch event, or this event itself.
+     */
+    @SuppressWarnings("unchecked")
+    public List<ImageCreationEvent> assets() {
+        final List<Map<String, Object>> assets = get(ASSETS);
+        if (assets == null) {
+            return Collections.singletonList(this);
+        }
+        final List<ImageCreationEvent> events = new ArrayList<>(assets.size());
+        for (Map<String, Object> values : assets) {
+            events.add(new ImageCreationEvent(application())
+                    .nodePath((String) values.get(NODE_PATH))
+                    .mimeType((String) values.get(MIME_TYPE))
+                    .fileName((String) values.get(FILE_NAME))
+                    .lastModified((Long) values.get(LAST_MODIFIED))
+                    .variants((Map<String, String>) values.get(VARIANTS)));
+        }
+        return events;
+    }
+
 
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bloomreach.forge.gallery;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Number of bytes of heap that the workers together may use for decoded images. A worker reserves the memory a job
+ * needs before decoding its image and waits while other jobs hold too much of the budget, so fewer large jobs run at
+ * the same time than small ones.
+ * <p>
+ * Waiting uses a lock rather than a monitor, so a worker on a virtual thread does not hold on to its carrier thread.
+ */
+public class MemoryBudget {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private long limit;
+    private long reserved;
+
+    /**
+     * @param limit number of bytes available, 0 or less for no limit
+     */
+    public MemoryBudget(final long limit) {
+        this.limit = limit;
+    }
+
+    public long getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setLimit(final long limit) {
+        lock.lock();
+        try {
+            this.limit = limit;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of bytes currently reserved
+     */
+    public long getReserved() {
+        lock.lock();
+        try {
+            return reserved;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reserves memory, waiting until enough of the budget is available. A job needing more than the whole budget waits
+     * until no other job holds any of it.
+     *
+     * @return the number of bytes reserved, to be passed to {@link #release}
+     */
+    public long reserve(final long bytes) throws InterruptedException {
+        lock.lock();
+        try {
+            if (limit <= 0 || bytes <= 0) {
+                return 0;
+            }
+            final long reservation = Math.min(bytes, limit);
+            while (reserved > 0 && reserved + reservation > limit) {
+                released.await();
+            }
+            reserved += reservation;
+            return reservation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(final long reservation) {
+        if (reservation > 0) {
+            lock.lock();
+            try {
+                reserved -= reservation;
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bloomreach.forge.gallery;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Image creation events waiting for a worker, at most one per image set. An event for an image set that already has
+ * an event waiting is merged into that one: the variants of both are created once, with the mime type, file name and
+ * last modification time of the latest event, regenerating stale variants if any of them does.
+ */
+public class PendingEvents {
+
+    /**
+     * Merged event waiting for a worker.
+     */
+    public static class Pending {
+
+        private final String nodePath;
+        private final String application;
+        private final Map<String, String> variants = new LinkedHashMap<>();
+        private String mimeType;
+        private String fileName;
+        private Long lastModified;
+        private boolean regenerate;
+        private int attempt;
+
+        @SuppressWarnings("unchecked")
+        private Pending(final ImageCreationEvent event, final int attempt) {
+            this.nodePath = event.nodePath();
+            this.application = event.application();
+            this.attempt = attempt;
+            merge(event, attempt);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void merge(final ImageCreationEvent event, final int eventAttempt) {
+            if (event.variants() != null) {
+                variants.putAll(event.variants());
+            }
+            mimeType = event.mimeType();
+            fileName = event.fileName();
+            if (lastModified == null || (event.lastModified() != null && event.lastModified() > lastModified)) {
+                lastModified = event.lastModified();
+            }
+            regenerate |= event.regenerate();
+            attempt = Math.min(attempt, eventAttempt);
+        }
+
+        /**
+         * @return an event for the variants of all merged events
+         */
+        @SuppressWarnings("unchecked")
+        public ImageCreationEvent getEvent() {
+            return new ImageCreationEvent(application)
+                    .nodePath(nodePath)
+                    .mimeType(mimeType)
+                    .fileName(fileName)
+                    .lastModified(lastModified)
+                    .regenerate(regenerate)
+                    .variants(variants);
+        }
+
+        /**
+         * @return the lowest number of earlier attempts of the merged events
+         */
+        public int getAttempt() {
+            return attempt;
+        }
+    }
+
+    private final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Adds an event, merging it into the event waiting for the same image set, if any.
+     *
+     * @return whether the event has to be handed to a worker, i.e. no event for the same image set was waiting
+     */
+    public boolean add(final ImageCreationEvent event, final int attempt) {
+        final Pending added = new Pending(event, attempt);
+        return pending.merge(event.nodePath(), added, (waiting, newer) -> {
+            waiting.merge(event, attempt);
+            return waiting;
+        }) == added;
+    }
+
+    /**
+     * Takes the waiting event of an image set, so a later event for it is handed to a worker again.
+     *
+     * @return the merged event, or null if none is waiting
+     */
+    public Pending take(final String nodePath) {
+        return pending.remove(nodePath);
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    public void clear() {
+        pending.clear();
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bloomreach.forge.gallery;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+
+import org.hippoecm.frontend.plugins.gallery.imageutil.ScalingParameters;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * BackgroundScalingGalleryProcessor for the background module that keeps, per thread, the image readers and writers
+ * it used and the buffers it decoded and encoded images into, so processing one image set after another hardly
+ * allocates anything but the scaled images themselves.
+ * <p>
+ * The decode buffer holds an original decoded with the subsampling needed for the largest configured variant; larger
+ * decoded images, e.g. of originals that are used as-is or scaled up, get a buffer of their own.
+ */
+public class PooledScalingGalleryProcessor extends BackgroundScalingGalleryProcessor {
+
+    private static final Logger log = LoggerFactory.getLogger(PooledScalingGalleryProcessor.class);
+
+    // readers and writers kept per thread and mime type
+    private static final int CODECS_PER_MIME_TYPE = 2;
+    private static final int MIN_OUTPUT_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+
+    private final transient ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+    private long maxBufferSize = -1;
+
+    /**
+     * Readers, writers and buffers of one thread.
+     */
+    private static class Buffers {
+
+        private final Map<String, Deque<ImageReader>> readers = new HashMap<>();
+        private final Map<String, Deque<ImageWriter>> writers = new HashMap<>();
+        private final OutputBuffer output = new OutputBuffer();
+        private byte[] decodedBytes;
+        private int[] decodedInts;
+    }
+
+    /**
+     * Output stream whose buffer is kept when it is reset.
+     */
+    private static class OutputBuffer extends ByteArrayOutputStream {
+
+        private OutputBuffer() {
+            super(MIN_OUTPUT_BUFFER_SIZE);
+        }
+
+        private void trim(final long maxSize) {
+            if (buf.length > maxSize) {
+                buf = new byte[MIN_OUTPUT_BUFFER_SIZE];
+            }
+        }
+    }
+
+    @Override
+    public ScalingParameters addScalingParameters(final String nodeName, final ScalingParameters parameters) {
+        maxBufferSize = -1;
+        return super.addScalingParameters(nodeName, parameters);
+    }
+
+    /**
+     * @return the number of bytes of the buffers kept per thread: those of the largest configured variant decoded with
+     * the oversampling needed for scaling it
+     */
+    protected long getMaxBufferSize() {
+        if (maxBufferSize < 0) {
+            long maxPixels = 0;
+            for (ScalingParameters parameters : getScalingParametersMap().values()) {
+                maxPixels = Math.max(maxPixels, (long) parameters.getWidth() * parameters.getHeight());
+            }
+            maxBufferSize = Math.min(maxPixels * DECODE_OVERSAMPLING * DECODE_OVERSAMPLING * BYTES_PER_PIXEL, MAX_BUFFER_SIZE);
+        }
+        return maxBufferSize;
+    }
+
+    @Override
+    protected ImageReader getImageReader(final String mimeType) {
+        final ImageReader reader = buffers.get().readers.computeIfAbsent(mimeType, type -> new ArrayDeque<>()).poll();
+        return reader != null ? reader : super.getImageReader(mimeType);
+    }
+
+    @Override
+    protected void releaseImageReader(final String mimeType, final ImageReader reader) {
+        final Deque<ImageReader> pool = buffers.get().readers.computeIfAbsent(mimeType, type -> new ArrayDeque<>());
+        if (pool.size() < CODECS_PER_MIME_TYPE) {
+            reader.reset();
+            pool.push(reader);
+        } else {
+            reader.dispose();
+        }
+    }
+
+    @Override
+    protected ImageWriter getImageWriter(final String mimeType) {
+        final ImageWriter writer = buffers.get().writers.computeIfAbsent(mimeType, type -> new ArrayDeque<>()).poll();
+        return writer != null ? writer : super.getImageWriter(mimeType);
+    }
+
+    @Override
+    protected void releaseImageWriter(final String mimeType, final ImageWriter writer) {
+        final Deque<ImageWriter> pool = buffers.get().writers.computeIfAbsent(mimeType, type -> new ArrayDeque<>());
+        if (pool.size() < CODECS_PER_MIME_TYPE) {
+            writer.reset();
+            pool.push(writer);
+        } else {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Decodes into the decode buffer of the thread, if the image fits in it and its layout is a common one.
+     */
+    @Override
+    protected void setDestination(final ImageReader reader, final ImageReadParam param, final int width, final int height) {
+        try {
+            final Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+            if (types == null || !types.hasNext()) {
+                return;
+            }
+            final ImageTypeSpecifier type = types.next();
+            final SampleModel sampleModel = type.getSampleModel(width, height);
+            final DataBuffer dataBuffer = getDecodeBuffer(sampleModel, height);
+            if (dataBuffer != null) {
+                final ColorModel colorModel = type.getColorModel();
+                param.setDestination(new BufferedImage(colorModel, Raster.createWritableRaster(sampleModel, dataBuffer, null),
+                        colorModel.isAlphaPremultiplied(), null));
+            }
+        } catch (IOException | RuntimeException e) {
+            log.debug("Cannot decode into the decode buffer, decoding into a new image", e);
+        }
+    }
+
+    private DataBuffer getDecodeBuffer(final SampleModel sampleModel, final int height) {
+        final Buffers threadBuffers = buffers.get();
+        if (sampleModel instanceof PixelInterleavedSampleModel && sampleModel.getDataType() == DataBuffer.TYPE_BYTE) {
+            final long size = (long) ((PixelInterleavedSampleModel) sampleModel).getScanlineStride() * height;
+            if (size > getMaxBufferSize()) {
+                return null;
+            }
+            if (threadBuffers.decodedBytes == null || threadBuffers.decodedBytes.length < size) {
+                threadBuffers.decodedInts = null;
+                threadBuffers.decodedBytes = new byte[(int) getMaxBufferSize()];
+            }
+            return new DataBufferByte(threadBuffers.decodedBytes, (int) size);
+        }
+        if (sampleModel instanceof SinglePixelPackedSampleModel && sampleModel.getDataType() == DataBuffer.TYPE_INT) {
+            final long size = (long) ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride() * height;
+            if (size * BYTES_PER_PIXEL > getMaxBufferSize()) {
+                return null;
+            }
+            if (threadBuffers.decodedInts == null || threadBuffers.decodedInts.length < size) {
+                threadBuffers.decodedBytes = null;
+                threadBuffers.decodedInts = new int[(int) (getMaxBufferSize() / BYTES_PER_PIXEL)];
+            }
+            return new DataBufferInt(threadBuffers.decodedInts, (int) size);
+        }
+        return null;
+    }
+
+    /**
+     * @return the output buffer of the thread, so encoding a variant only allocates the encoded data itself
+     */
+    @Override
+    protected ByteArrayOutputStream getOutputBuffer() {
+        final OutputBuffer output = buffers.get().output;
+        output.trim(Math.max(MIN_OUTPUT_BUFFER_SIZE, getMaxBufferSize()));
+        output.reset();
+        return output;
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bloomreach.forge.gallery;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.ItemExistsException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.nodetype.NodeDefinition;
+import javax.jcr.query.Query;
+
+import org.hippoecm.repository.gallery.HippoGalleryNodeType;
+import org.hippoecm.repository.util.JcrUtils;
+import org.onehippo.repository.util.JcrConstants;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scans the image sets below a path for variants that are defined by their type and configured in the gallery
+ * processor, but do not exist, and posts image creation events for the missing ones. The image sets are read page by
+ * page in order of their identifier; the identifier of the last image set scanned is saved as a checkpoint, so a scan
+ * that is interrupted resumes where it stopped. Subclasses may select other variants to create.
+ */
+public class ReconciliationScan implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(ReconciliationScan.class);
+
+    static final String CHECKPOINT = "Checkpoint";
+    static final String COMPLETED = "Completed";
+    static final String SCANNED = "Scanned";
+    static final String QUEUED = "Queued";
+    static final String VARIANTS = "Variants";
+    static final String OWNER = "Owner";
+    static final String HEARTBEAT = "Heartbeat";
+    static final String APPLICATION = "gallery-background-processor";
+
+    /**
+     * Settings of the reconciliation scan of the module.
+     */
+    public static final class Config {
+
+        static final String DEFAULT_PATH = "/content/gallery";
+        static final String DEFAULT_IMAGE_SET_TYPE = HippoGalleryNodeType.IMAGE_SET;
+        static final int DEFAULT_BATCH_SIZE = 100;
+        static final double DEFAULT_RATE = 50;
+
+        private final boolean enabled;
+        private final String path;
+        private final String imageSetType;
+        private final int batchSize;
+        private final double rate;
+
+        public Config() {
+            this(false, DEFAULT_PATH, DEFAULT_IMAGE_SET_TYPE, DEFAULT_BATCH_SIZE, DEFAULT_RATE);
+        }
+
+        public Config(final boolean enabled, final String path, final String imageSetType, final int batchSize,
+                      final double rate) {
+            this.enabled = enabled;
+            this.path = path;
+            this.imageSetType = imageSetType;
+            this.batchSize = Math.max(1, batchSize);
+            this.rate = rate;
+        }
+
+        public static Config read(final Node node) throws RepositoryException {
+            return new Config(
+                    JcrUtils.getBooleanProperty(node, "reconcile", false),
+                    JcrUtils.getStringProperty(node, "reconcilePath", DEFAULT_PATH),
+                    JcrUtils.getStringProperty(node, "reconcileImageSetType", DEFAULT_IMAGE_SET_TYPE),
+                    ConfigProperties.getInteger(node, "reconcileBatchSize", DEFAULT_BATCH_SIZE),
+                    ConfigProperties.getDouble(node, "reconcileRate", DEFAULT_RATE));
+        }
+
+        /**
+         * @return whether to scan at startup
+         */
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getImageSetType() {
+            return imageSetType;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public double getRate() {
+            return rate;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Config)) {
+                return false;
+            }
+            final Config other = (Config) o;
+            return enabled == other.enabled && Objects.equals(path, other.path)
+                    && Objects.equals(imageSetType, other.imageSetType) && batchSize == other.batchSize
+                    && rate == other.rate;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(enabled, path, imageSetType, batchSize, rate);
+        }
+
+        @Override
+        public String toString() {
+            return "reconcile=" + enabled + ", reconcilePath=" + path + ", reconcileImageSetType=" + imageSetType
+                    + ", reconcileBatchSize=" + batchSize + ", reconcileRate=" + rate;
+        }
+    }
+
+    private final String name;
+    private final String statePrefix;
+    private final Session session;
+    private final String statePath;
+    private final String scanPath;
+    private final String imageSetType;
+    private final Collection<String> variantNames;
+    private final int batchSize;
+    private final double rate;
+    private final Consumer<ImageCreationEvent> eventConsumer;
+
+    private String owner;
+    private long leaseTimeout;
+    private boolean leased;
+    private volatile boolean stopped;
+
+    /**
+     * @param session session to scan with, owned by this scan
+     * @param statePath path of the node to save the checkpoint on
+     * @param scanPath path below which image sets are scanned
+     * @param imageSetType node type of the image sets to scan, including its subtypes
+     * @param variantNames names of the variants the gallery processor creates
+     * @param batchSize number of image sets read per query
+     * @param rate maximum number of image sets scanned per second
+     * @param eventConsumer receives an event for each image set with missing variants; it must not drop the event,
+     *                      but throw to stop the scan before it saves a checkpoint past the image set
+     */
+    public ReconciliationScan(final Session session, final String statePath, final String scanPath,
+                              final String imageSetType, final Collection<String> variantNames, final int batchSize,
+                              final double rate, final Consumer<ImageCreationEvent> eventConsumer) {
+        this("Reconciliation", "reconcile", session, statePath, scanPath, imageSetType, variantNames, batchSize, rate,
+                eventConsumer);
+    }
+
+    /**
+     * @param name name of the scan in log messages
+     * @param statePrefix prefix of the names of the properties the checkpoint and counts are saved in
+     */
+    protected ReconciliationScan(final String name, final String statePrefix, final Session session,
+                                 final String statePath, final String scanPath, final String imageSetType,
+                                 final Collection<String> variantNames, final int batchSize, final double rate,
+                                 final Consumer<ImageCreationEvent> eventConsumer) {
+        this.name = name;
+        this.statePrefix = statePrefix;
+        this.session = session;
+        this.statePath = statePath;
+        this.scanPath = scanPath;
+        this.imageSetType = imageSetType;
+        this.variantNames = variantNames;
+        this.batchSize = batchSize;
+        this.rate = rate;
+        this.eventConsumer = eventConsumer;
+    }
+
+    /**
+     * Lets only one cluster node at a time run the scan: the cluster node running it saves its identifier and a
+     * heartbeat with every checkpoint, and other cluster nodes skip the scan until the heartbeat is older than the
+     * lease timeout.
+     *
+     * @param owner identifier of this cluster node
+     * @param leaseTimeout milliseconds after which the scan of a cluster node without heartbeat can be taken over
+     */
+    public void setLease(final String owner, final long leaseTimeout) {
+        this.owner = owner;
+        this.leaseTimeout = leaseTimeout;
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (!acquireLease()) {
+                return;
+            }
+            String checkpoint = getCheckpoint();
+            // counts of a scan that is resumed include the image sets scanned before it was interrupted
+            long scanned = checkpoint == null ? 0 : getCount(SCANNED);
+            long queued = checkpoint == null ? 0 : getCount(QUEUED);
+            long variants = checkpoint == null ? 0 : getCount(VARIANTS);
+            log.info("{} of image sets below {} {}", name, scanPath,
+                    checkpoint == null ? "started" : "resumed after " + checkpoint);
+
+            long throttled = 0;
+            final long start = System.currentTimeMillis();
+            while (!stopped && leased) {
+                final NodeIterator imageSets = nextPage(checkpoint);
+                if (!imageSets.hasNext()) {
+                    saveCheckpoint(null, scanned, queued, variants);
+                    log.info("{} of image sets below {} completed: {} image sets scanned, {} variants of {} image sets to create",
+                            name, scanPath, scanned, variants, queued);
+                    return;
+                }
+
+                while (imageSets.hasNext() && !stopped) {
+                    final Node imageSet = imageSets.nextNode();
+                    checkpoint = imageSet.getIdentifier();
+                    scanned++;
+                    throttled++;
+                    final int count = reconcile(imageSet);
+                    if (count > 0) {
+                        queued++;
+                        variants += count;
+                    }
+                }
+                saveCheckpoint(checkpoint, scanned, queued, variants);
+                if (!leased) {
+                    log.info("{} of image sets below {} taken over by another cluster node after {}", name, scanPath,
+                            checkpoint);
+                    return;
+                }
+                throttle(throttled, start);
+            }
+            log.info("{} of image sets below {} stopped after {}", name, scanPath, checkpoint);
+        } catch (InterruptedException e) {
+            log.info("{} of image sets below {} interrupted", name, scanPath);
+            Thread.currentThread().interrupt();
+        } catch (RepositoryException | RuntimeException e) {
+            log.error("{} of image sets below {} failed", name, scanPath, e);
+        } finally {
+            releaseLease();
+            session.logout();
+        }
+    }
+
+    /**
+     * Posts an image creation event for the variants of an image set that have to be created.
+     *
+     * @return the number of variants to create
+     */
+    protected int reconcile(final Node imageSet) throws RepositoryException {
+        if (!imageSet.hasNode(HippoGalleryNodeType.IMAGE_SET_ORIGINAL)) {
+            log.debug("Skipping image set {} without original", imageSet.getPath());
+            return 0;
+        }
+
+        final Map<String, String> variants = getVariantsToCreate(imageSet);
+        if (variants.isEmpty()) {
+            return 0;
+        }
+
+        log.debug("Image set {} needs variants {}", imageSet.getPath(), variants.keySet());
+        final Node original = imageSet.getNode(HippoGalleryNodeType.IMAGE_SET_ORIGINAL);
+        final ImageCreationEvent event = new ImageCreationEvent(APPLICATION)
+                .nodePath(imageSet.getPath())
+                .mimeType(JcrUtils.getStringProperty(original, JcrConstants.JCR_MIME_TYPE, null))
+                .fileName(JcrUtils.getStringProperty(imageSet, HippoGalleryNodeType.IMAGE_SET_FILE_NAME, null))
+                .variants(variants);
+        post(event);
+        return variants.size();
+    }
+
+    /**
+     * @return a mapping from variant name to JCR type of the variants of an image set that are defined by its type and
+     * configured in the gallery processor, but do not exist
+     */
+    protected Map<String, String> getVariantsToCreate(final Node imageSet) throws RepositoryException {
+        final Map<String, String> missing = new LinkedHashMap<>();
+        for (NodeDefinition definition : imageSet.getPrimaryNodeType().getChildNodeDefinitions()) {
+            final String name = definition.getName();
+            if (variantNames.contains(name) && !imageSet.hasNode(name)) {
+                missing.put(name, getVariantType(definition));
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Hands an event for the variants to create to the event consumer. When the consumer cannot take the event, it
+     * throws and the scan stops, to resume from its last checkpoint before the image set.
+     */
+    protected void post(final ImageCreationEvent event) {
+        eventConsumer.accept(event);
+    }
+
+    private static String getVariantType(final NodeDefinition definition) {
+        if (definition.getDefaultPrimaryType() != null) {
+            return definition.getDefaultPrimaryType().getName();
+        }
+        return HippoGalleryNodeType.IMAGE;
+    }
+
+    private NodeIterator nextPage(final String checkpoint) throws RepositoryException {
+        final StringBuilder statement = new StringBuilder("/jcr:root").append(scanPath)
+                .append("//element(*,").append(imageSetType).append(")");
+        if (checkpoint != null) {
+            statement.append("[@jcr:uuid > '").append(checkpoint).append("']");
+        }
+        statement.append(" order by @jcr:uuid ascending");
+
+        final Query query = session.getWorkspace().getQueryManager().createQuery(statement.toString(), Query.XPATH);
+        query.setLimit(batchSize);
+        return query.execute().getNodes();
+    }
+
+    private void throttle(final long scanned, final long start) throws InterruptedException {
+        if (rate <= 0) {
+            return;
+        }
+        final long due = start + (long) (scanned * 1000 / rate);
+        final long wait = due - System.currentTimeMillis();
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+
+    private String getCheckpoint() throws RepositoryException {
+        if (!session.nodeExists(statePath)) {
+            return null;
+        }
+        final String checkpoint = JcrUtils.getStringProperty(session.getNode(statePath), statePrefix + CHECKPOINT, null);
+        return checkpoint == null || checkpoint.isEmpty() ? null : checkpoint;
+    }
+
+    private long getCount(final String count) throws RepositoryException {
+        return JcrUtils.getLongProperty(session.getNode(statePath), statePrefix + count, 0L);
+    }
+
+    /**
+     * @return whether this cluster node may run the scan: no other cluster node has saved a heartbeat within the lease
+     * timeout
+     */
+    private boolean acquireLease() throws RepositoryException {
+        leased = true;
+        if (owner == null) {
+            return true;
+        }
+        final Node state = getStateNode();
+        final long now = System.currentTimeMillis();
+        final String current = JcrUtils.getStringProperty(state, statePrefix + OWNER, null);
+        if (current != null && !current.equals(owner)
+                && JcrUtils.getLongProperty(state, statePrefix + HEARTBEAT, 0L) + leaseTimeout > now) {
+            log.info("{} of image sets below {} is running on {}, not running it here", name, scanPath, current);
+            leased = false;
+            return false;
+        }
+        state.setProperty(statePrefix + OWNER, owner);
+        state.setProperty(statePrefix + HEARTBEAT, now);
+        try {
+            session.save();
+            return true;
+        } catch (InvalidItemStateException | ItemExistsException e) {
+            log.info("{} of image sets below {} started concurrently by another cluster node", name, scanPath);
+            session.refresh(false);
+            leased = false;
+            return false;
+        }
+    }
+
+    private void releaseLease() {
+        if (owner == null || !leased) {
+            return;
+        }
+        try {
+            session.refresh(false);
+            if (session.nodeExists(statePath)) {
+                final Node state = session.getNode(statePath);
+                if (owner.equals(JcrUtils.getStringProperty(state, statePrefix + OWNER, null))) {
+                    state.setProperty(statePrefix + OWNER, (String) null);
+                    state.setProperty(statePrefix + HEARTBEAT, (String) null);
+                    session.save();
+                }
+            }
+        } catch (RepositoryException e) {
+            log.warn("Cannot release the lease on the {} scan, it expires in {} ms", statePrefix, leaseTimeout, e);
+        }
+        leased = false;
+    }
+
+    private Node getStateNode() throws RepositoryException {
+        if (!session.nodeExists(statePath)) {
+            final int lastSlash = statePath.lastIndexOf('/');
+            final Node parent = lastSlash == 0 ? session.getRootNode() : session.getNode(statePath.substring(0, lastSlash));
+            parent.addNode(statePath.substring(lastSlash + 1), JcrConstants.NT_UNSTRUCTURED);
+            try {
+                session.save();
+            } catch (InvalidItemStateException | ItemExistsException e) {
+                // created concurrently by another cluster node
+                session.refresh(false);
+            }
+        }
+        return session.getNode(statePath);
+    }
+
+    /**
+     * Saves the checkpoint and, when the scan is leased, the heartbeat of this cluster node. When another cluster node
+     * took the scan over meanwhile, nothing is saved and the lease is lost.
+     */
+    private void saveCheckpoint(final String checkpoint, final long scanned, final long queued,
+                                final long variants) throws RepositoryException {
+        if (!session.nodeExists(statePath)) {
+            log.warn("Cannot save {} checkpoint: {} does not exist", name.toLowerCase(Locale.ENGLISH), statePath);
+            return;
+        }
+        final Node state = session.getNode(statePath);
+        if (owner != null && !owner.equals(JcrUtils.getStringProperty(state, statePrefix + OWNER, null))) {
+            leased = false;
+            return;
+        }
+        state.setProperty(statePrefix + CHECKPOINT, checkpoint == null ? "" : checkpoint);
+        state.setProperty(statePrefix + SCANNED, scanned);
+        state.setProperty(statePrefix + QUEUED, queued);
+        state.setProperty(statePrefix + VARIANTS, variants);
+        if (checkpoint == null) {
+            state.setProperty(statePrefix + COMPLETED, System.currentTimeMillis());
+        }
+        if (owner != null) {
+            state.setProperty(statePrefix + HEARTBEAT, System.currentTimeMillis());
+        }
+        session.save();
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bloomreach.forge.gallery;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.hippoecm.frontend.plugins.gallery.imageutil.ScalingParameters;
+import org.hippoecm.repository.util.JcrUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scans the image sets below a path for variants with a {@link VariantFingerprint} that differs from the current
+ * scaling parameters of the gallery processor, and posts image creation events to create them again; missing variants
+ * are created as well. Variants without fingerprint, e.g. created before fingerprints were stored, are only created
+ * again when asked for.
+ * <p>
+ * A dry run only counts the variants to create; its checkpoint and counts are saved separately from those of a real
+ * run.
+ */
+public class RegenerationScan extends ReconciliationScan {
+
+    private static final Logger log = LoggerFactory.getLogger(RegenerationScan.class);
+
+    /**
+     * Settings of the regeneration scan of the module. Image sets of the type of the reconciliation scan are scanned.
+     */
+    public static final class Config {
+
+        static final String DEFAULT_PATH = ReconciliationScan.Config.DEFAULT_PATH;
+        static final int DEFAULT_BATCH_SIZE = 100;
+        static final double DEFAULT_RATE = 20;
+
+        private final boolean enabled;
+        private final String path;
+        private final String imageSetType;
+        private final boolean dryRun;
+        private final boolean regenerateUnstamped;
+        private final int batchSize;
+        private final double rate;
+
+        public Config() {
+            this(false, DEFAULT_PATH, ReconciliationScan.Config.DEFAULT_IMAGE_SET_TYPE, false, false, DEFAULT_BATCH_SIZE,
+                    DEFAULT_RATE);
+        }
+
+        public Config(final boolean enabled, final String path, final String imageSetType, final boolean dryRun,
+                      final boolean regenerateUnstamped, final int batchSize, final double rate) {
+            this.enabled = enabled;
+            this.path = path;
+            this.imageSetType = imageSetType;
+            this.dryRun = dryRun;
+            this.regenerateUnstamped = regenerateUnstamped;
+            this.batchSize = Math.max(1, batchSize);
+            this.rate = rate;
+        }
+
+        public static Config read(final Node node) throws RepositoryException {
+            return new Config(
+                    JcrUtils.getBooleanProperty(node, "regenerate", false),
+                    JcrUtils.getStringProperty(node, "regeneratePath", DEFAULT_PATH),
+                    JcrUtils.getStringProperty(node, "reconcileImageSetType", ReconciliationScan.Config.DEFAULT_IMAGE_SET_TYPE),
+                    JcrUtils.getBooleanProperty(node, "regenerateDryRun", false),
+                    JcrUtils.getBooleanProperty(node, "regenerateUnstamped", false),
+                    ConfigProperties.getInteger(node, "regenerateBatchSize", DEFAULT_BATCH_SIZE),
+                    ConfigProperties.getDouble(node, "regenerateRate", DEFAULT_RATE));
+        }
+
+        /**
+         * @return whether to scan
+         */
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getImageSetType() {
+            return imageSetType;
+        }
+
+        public boolean isDryRun() {
+            return dryRun;
+        }
+
+        public boolean isRegenerateUnstamped() {
+            return regenerateUnstamped;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public double getRate() {
+            return rate;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Config)) {
+                return false;
+            }
+            final Config other = (Config) o;
+            return enabled == other.enabled && Objects.equals(path, other.path)
+                    && Objects.equals(imageSetType, other.imageSetType) && dryRun == other.dryRun
+                    && regenerateUnstamped == other.regenerateUnstamped && batchSize == other.batchSize
+                    && rate == other.rate;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(enabled, path, imageSetType, dryRun, regenerateUnstamped, batchSize, rate);
+        }
+
+        @Override
+        public String toString() {
+            return "regenerate=" + enabled + ", regeneratePath=" + path + ", regenerateDryRun=" + dryRun
+                    + ", regenerateUnstamped=" + regenerateUnstamped + ", regenerateBatchSize=" + batchSize
+                    + ", regenerateRate=" + rate;
+        }
+    }
+
+    private final Map<String, ScalingParameters> parameters;
+    private final boolean regenerateUnstamped;
+    private final boolean dryRun;
+
+    /**
+     * @param session session to scan with, owned by this scan
+     * @param statePath path of the node to save the checkpoint on
+     * @param scanPath path below which image sets are scanned
+     * @param imageSetType node type of the image sets to scan, including its subtypes
+     * @param parameters the current scaling parameters by variant name
+     * @param batchSize number of image sets read per query
+     * @param rate maximum number of image sets scanned per second
+     * @param regenerateUnstamped whether variants without fingerprint are created again
+     * @param dryRun whether to only count the variants to create
+     * @param eventConsumer receives an event for each image set with variants to create
+     */
+    public RegenerationScan(final Session session, final String statePath, final String scanPath,
+                            final String imageSetType, final Map<String, ScalingParameters> parameters,
+                            final int batchSize, final double rate, final boolean regenerateUnstamped,
+                            final boolean dryRun, final Consumer<ImageCreationEvent> eventConsumer) {
+        super(dryRun ? "Regeneration dry run" : "Regeneration", dryRun ? "regenerateDryRun" : "regenerate",
+                session, statePath, scanPath, imageSetType, parameters.keySet(), batchSize, rate, eventConsumer);
+        this.parameters = new HashMap<>(parameters);
+        this.regenerateUnstamped = regenerateUnstamped;
+        this.dryRun = dryRun;
+    }
+
+    @Override
+    protected Map<String, String> getVariantsToCreate(final Node imageSet) throws RepositoryException {
+        final Map<String, String> variants = super.getVariantsToCreate(imageSet);
+        for (Map.Entry<String, ScalingParameters> entry : parameters.entrySet()) {
+            final String name = entry.getKey();
+            if (!imageSet.hasNode(name)) {
+                continue;
+            }
+            final Node variant = imageSet.getNode(name);
+            final String fingerprint = VariantFingerprint.get(variant);
+            if (fingerprint == null ? regenerateUnstamped : !fingerprint.equals(VariantFingerprint.of(entry.getValue()))) {
+                log.debug("Variant {} of {} has fingerprint {}, expected {}", name, imageSet.getPath(), fingerprint,
+                        VariantFingerprint.of(entry.getValue()));
+                variants.put(name, variant.getPrimaryNodeType().getName());
+            }
+        }
+        return variants;
+    }
+
+    @Override
+    protected void post(final ImageCreationEvent event) {
+        if (!dryRun) {
+            super.post(event.regenerate(true));
+        }
+    }
+}
@@ -0,0 +1,585 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bloomreach.forge.gallery;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.ItemExistsException;
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+
+import org.hippoecm.repository.util.JcrUtils;
+import org.onehippo.repository.util.JcrConstants;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable queue of variant creation jobs, stored as nodes in the repository so that they survive restarts and can be
+ * claimed by any cluster node. A cluster node claims a job by leasing it for a limited time; jobs whose lease has
+ * expired, e.g. because the cluster node holding it went down, can be claimed again by any other cluster node.
+ * <p>
+ * A job waiting for an image set is named after the path of the image set, so a job added for an image set that
+ * already has a job waiting is merged into that one instead.
+ */
+public class RepositoryJobQueue {
+
+    private static final Logger log = LoggerFactory.getLogger(RepositoryJobQueue.class);
+
+    static final String NODE_PATH = "nodePath";
+    static final String MIME_TYPE = "mimeType";
+    static final String FILE_NAME = "fileName";
+    static final String APPLICATION = "application";
+    static final String VARIANT_NAMES = "variantNames";
+    static final String VARIANT_TYPES = "variantTypes";
+    static final String CREATED = "created";
+    static final String ATTEMPTS = "attempts";
+    static final String NEXT_ATTEMPT = "nextAttempt";
+    static final String LEASE_OWNER = "leaseOwner";
+    static final String LEASE_EXPIRES = "leaseExpires";
+    static final String FAILED = "failed";
+    static final String ERROR = "error";
+    static final String LAST_MODIFIED = "lastModified";
+    static final String REGENERATE = "regenerate";
+
+    /**
+     * A claimed job.
+     */
+    public static class Job {
+
+        private final String id;
+        private final ImageCreationEvent event;
+        private final int attempts;
+        private final long leaseExpires;
+
+        Job(final String id, final ImageCreationEvent event, final int attempts, final long leaseExpires) {
+            this.id = id;
+            this.event = event;
+            this.attempts = attempts;
+            this.leaseExpires = leaseExpires;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public ImageCreationEvent getEvent() {
+            return event;
+        }
+
+        /**
+         * @return the number of earlier attempts to process this job
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        @Override
+        public String toString() {
+            return "job " + id + " for " + event.nodePath();
+        }
+    }
+
+    /**
+     * Settings of the repository job queue of the module.
+     */
+    public static final class Config {
+
+        static final String QUEUE_REPOSITORY = "repository";
+        static final String DEFAULT_QUEUE = "event";
+        static final String DEFAULT_JOBS_PATH = "/gallery-background-processor-jobs";
+        static final int DEFAULT_LEASE_TIMEOUT = 600000;
+        static final int DEFAULT_POLL_INTERVAL = 1000;
+        static final int DEFAULT_CLAIM_BATCH_SIZE = 10;
+
+        private final String queue;
+        private final String jobsPath;
+        private final int leaseTimeout;
+        private final int pollInterval;
+        private final int claimBatchSize;
+
+        public Config() {
+            this(DEFAULT_QUEUE, DEFAULT_JOBS_PATH, DEFAULT_LEASE_TIMEOUT, DEFAULT_POLL_INTERVAL, DEFAULT_CLAIM_BATCH_SIZE);
+        }
+
+        public Config(final String queue, final String jobsPath, final int leaseTimeout, final int pollInterval,
+                      final int claimBatchSize) {
+            this.queue = queue;
+            this.jobsPath = jobsPath;
+            this.leaseTimeout = leaseTimeout;
+            this.pollInterval = Math.max(1, pollInterval);
+            this.claimBatchSize = claimBatchSize;
+        }
+
+        public static Config read(final Node node) throws RepositoryException {
+            return new Config(
+                    JcrUtils.getStringProperty(node, "queue", DEFAULT_QUEUE),
+                    JcrUtils.getStringProperty(node, "jobsPath", DEFAULT_JOBS_PATH),
+                    ConfigProperties.getInteger(node, "leaseTimeout", DEFAULT_LEASE_TIMEOUT),
+                    ConfigProperties.getInteger(node, "pollInterval", DEFAULT_POLL_INTERVAL),
+                    ConfigProperties.getInteger(node, "claimBatchSize", DEFAULT_CLAIM_BATCH_SIZE));
+        }
+
+        /**
+         * @return whether events are stored as jobs in the repository
+         */
+        public boolean isEnabled() {
+            return QUEUE_REPOSITORY.equals(queue);
+        }
+
+        /**
+         * @return the path of the node holding the jobs, and the checkpoints of the scans
+         */
+        public String getJobsPath() {
+            return jobsPath;
+        }
+
+        public int getLeaseTimeout() {
+            return leaseTimeout;
+        }
+
+        public int getPollInterval() {
+            return pollInterval;
+        }
+
+        public int getClaimBatchSize() {
+            return claimBatchSize;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Config)) {
+                return false;
+            }
+            final Config other = (Config) o;
+            return Objects.equals(queue, other.queue) && Objects.equals(jobsPath, other.jobsPath)
+                    && leaseTimeout == other.leaseTimeout && pollInterval == other.pollInterval
+                    && claimBatchSize == other.claimBatchSize;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(queue, jobsPath, leaseTimeout, pollInterval, claimBatchSize);
+        }
+
+        @Override
+        public String toString() {
+            return "queue=" + queue + ", jobsPath=" + jobsPath + ", leaseTimeout=" + leaseTimeout
+                    + ", pollInterval=" + pollInterval + ", claimBatchSize=" + claimBatchSize;
+        }
+    }
+
+    private final String jobsPath;
+    private final String owner;
+    private final long leaseTimeout;
+    private final Session session;
+    // a lock rather than a monitor, so a worker on a virtual thread saving a job does not hold on to its carrier thread
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Set<String> interactiveApplications = Collections.emptySet();
+
+    /**
+     * @param jobsPath path of the node holding the jobs
+     * @param owner identifier of this cluster node, written in the leases it takes
+     * @param leaseTimeout milliseconds after which a claimed, but not completed, job can be claimed again
+     * @param session session used for adding and claiming jobs, owned by this queue
+     */
+    public RepositoryJobQueue(final String jobsPath, final String owner, final long leaseTimeout, final Session session) {
+        this.jobsPath = jobsPath;
+        this.owner = owner;
+        this.leaseTimeout = leaseTimeout;
+        this.session = session;
+    }
+
+    /**
+     * Sets the applications whose jobs are claimed before the jobs of other applications.
+     */
+    public void setInteractiveApplications(final Set<String> interactiveApplications) {
+        this.interactiveApplications = interactiveApplications;
+    }
+
+    /**
+     * Persists an image creation event as a job, or merges it into the job waiting for the same image set.
+     *
+     * @return whether the event was merged into a waiting job
+     */
+    public boolean add(final ImageCreationEvent event) throws RepositoryException {
+        return add(event, 0);
+    }
+
+    /**
+     * Persists an image creation event as a job to be claimed after a delay, or merges it into the job waiting for
+     * the same image set.
+     *
+     * @param delay milliseconds before the job can be claimed
+     * @return whether the event was merged into a waiting job
+     */
+    public boolean add(final ImageCreationEvent event, final long delay) throws RepositoryException {
+        lock.lock();
+        try {
+            final String name = getJobName(event.nodePath());
+            try {
+                final Node jobs = getJobsNode();
+                if (jobs.hasNode(name)) {
+                    final Node waiting = jobs.getNode(name);
+                    if (isWaiting(waiting, System.currentTimeMillis())) {
+                        merge(waiting, event, delay);
+                        session.save();
+                        log.debug("Merged event for {} into job {}", event.nodePath(), name);
+                        return true;
+                    }
+                    // the job for the image set is being processed or has failed
+                    addJob(jobs, UUID.randomUUID().toString(), event, delay);
+                } else {
+                    addJob(jobs, name, event, delay);
+                }
+                return false;
+            } catch (ItemExistsException | InvalidItemStateException e) {
+                // another cluster node added, claimed or merged the job for the image set concurrently
+                log.debug("Job {} changed concurrently, adding a separate job for {}", name, event.nodePath());
+                session.refresh(false);
+                addJob(getJobsNode(), UUID.randomUUID().toString(), event, delay);
+                return false;
+            } catch (RepositoryException e) {
+                session.refresh(false);
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addJob(final Node jobs, final String name, final ImageCreationEvent event, final long delay) throws RepositoryException {
+        try {
+            final Node job = jobs.addNode(name, JcrConstants.NT_UNSTRUCTURED);
+            job.setProperty(NODE_PATH, event.nodePath());
+            job.setProperty(APPLICATION, event.application());
+            job.setProperty(CREATED, System.currentTimeMillis());
+            job.setProperty(ATTEMPTS, 0L);
+            job.setProperty(LEASE_EXPIRES, 0L);
+            merge(job, event, delay);
+            session.save();
+            log.debug("Added job {} for {}", job.getName(), event.nodePath());
+        } catch (RepositoryException e) {
+            session.refresh(false);
+            throw e;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void merge(final Node job, final ImageCreationEvent event, final long delay) throws RepositoryException {
+        final Map<String, String> variants = getVariants(job);
+        variants.putAll(event.variants());
+        job.setProperty(VARIANT_NAMES, variants.keySet().toArray(new String[0]));
+        job.setProperty(VARIANT_TYPES, variants.values().toArray(new String[0]));
+        job.setProperty(MIME_TYPE, event.mimeType());
+        job.setProperty(FILE_NAME, event.fileName());
+        final Long lastModified = event.lastModified();
+        if (lastModified != null && lastModified > getLong(job, LAST_MODIFIED)) {
+            job.setProperty(LAST_MODIFIED, lastModified);
+        }
+        if (event.regenerate()) {
+            job.setProperty(REGENERATE, true);
+        }
+        // the event may be for an original that was not there yet at an earlier attempt
+        job.setProperty(NEXT_ATTEMPT, delay > 0 ? System.currentTimeMillis() + delay : 0L);
+    }
+
+    private static boolean isWaiting(final Node job, final long now) throws RepositoryException {
+        return !JcrUtils.getBooleanProperty(job, FAILED, false) && getLong(job, LEASE_EXPIRES) <= now;
+    }
+
+    /**
+     * @return a valid node name that is the same for every job of an image set
+     */
+    static String getJobName(final String nodePath) {
+        return UUID.nameUUIDFromBytes(nodePath.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * Leases at most the given number of jobs that are due and not leased by any live cluster node. Jobs of the
+     * interactive applications are claimed first. The jobs are found with a query and leased in one save; only when
+     * that conflicts with another cluster node, they are leased one by one.
+     */
+    public List<Job> claim(final int max) throws RepositoryException {
+        lock.lock();
+        try {
+            final List<Job> claimed = new ArrayList<>();
+            if (max <= 0) {
+                return claimed;
+            }
+
+            session.refresh(false);
+            getJobsNode();
+            final long now = System.currentTimeMillis();
+            final Set<String> due = new LinkedHashSet<>();
+            if (!interactiveApplications.isEmpty()) {
+                findDue(max, now, true, due);
+            }
+            findDue(max, now, false, due);
+            if (due.isEmpty()) {
+                return claimed;
+            }
+
+            final long leaseExpires = now + leaseTimeout;
+            try {
+                for (String id : due) {
+                    lease(session.getNodeByIdentifier(id), leaseExpires);
+                }
+                session.save();
+                for (String id : due) {
+                    claimed.add(toJob(session.getNodeByIdentifier(id), leaseExpires));
+                }
+            } catch (InvalidItemStateException | ItemNotFoundException e) {
+                // some of the jobs were claimed or completed concurrently by another cluster node
+                log.debug("Jobs claimed concurrently by another cluster node, claiming them one by one");
+                session.refresh(false);
+                for (String id : due) {
+                    claimOne(id, now, leaseExpires, claimed);
+                }
+            }
+            return claimed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void findDue(final int max, final long now, final boolean interactive, final Set<String> due) throws RepositoryException {
+        final StringBuilder statement = new StringBuilder("/jcr:root").append(jobsPath)
+                .append("/*[@").append(LEASE_EXPIRES).append(" <= ").append(now)
+                .append(" and @").append(NEXT_ATTEMPT).append(" <= ").append(now);
+        if (interactive) {
+            statement.append(" and (");
+            String separator = "";
+            for (String application : interactiveApplications) {
+                statement.append(separator).append('@').append(APPLICATION)
+                        .append(" = '").append(application.replace("'", "''")).append("'");
+                separator = " or ";
+            }
+            statement.append(")");
+        }
+        statement.append("] order by @").append(NEXT_ATTEMPT).append(" ascending");
+
+        final Query query = session.getWorkspace().getQueryManager().createQuery(statement.toString(), Query.XPATH);
+        query.setLimit(max);
+        final NodeIterator jobs = query.execute().getNodes();
+        while (jobs.hasNext() && due.size() < max) {
+            final Node job = jobs.nextNode();
+            // the search index may lag behind
+            if (isWaiting(job, now) && getLong(job, NEXT_ATTEMPT) <= now) {
+                due.add(job.getIdentifier());
+            }
+        }
+    }
+
+    private void claimOne(final String id, final long now, final long leaseExpires, final List<Job> claimed) throws RepositoryException {
+        try {
+            final Node job = session.getNodeByIdentifier(id);
+            if (!isWaiting(job, now) || getLong(job, NEXT_ATTEMPT) > now) {
+                return;
+            }
+            lease(job, leaseExpires);
+            session.save();
+            claimed.add(toJob(job, leaseExpires));
+        } catch (InvalidItemStateException | ItemNotFoundException e) {
+            log.debug("Job {} claimed by another cluster node", id);
+            session.refresh(false);
+        }
+    }
+
+    private void lease(final Node job, final long leaseExpires) throws RepositoryException {
+        final String previousOwner = JcrUtils.getStringProperty(job, LEASE_OWNER, null);
+        if (previousOwner != null) {
+            log.info("Reclaiming {} from {} as its lease expired", job.getName(), previousOwner);
+        }
+        job.setProperty(LEASE_OWNER, owner);
+        job.setProperty(LEASE_EXPIRES, leaseExpires);
+    }
+
+    private static Job toJob(final Node job, final long leaseExpires) throws RepositoryException {
+        return new Job(job.getIdentifier(), toEvent(job), (int) getLong(job, ATTEMPTS), leaseExpires);
+    }
+
+    /**
+     * @return whether a claimed job is still leased by this cluster node: its lease may have expired meanwhile and
+     * have been taken over by another cluster node
+     */
+    public boolean isLeased(final Job job, final Session workerSession) throws RepositoryException {
+        try {
+            final Node node = workerSession.getNodeByIdentifier(job.getId());
+            return owner.equals(JcrUtils.getStringProperty(node, LEASE_OWNER, null))
+                    && getLong(node, LEASE_EXPIRES) == job.leaseExpires;
+        } catch (ItemNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Removes a completed job. The removal is not saved: saving it together with the created variants ensures that
+     * a job is only gone when its variants are there.
+     *
+     * @param workerSession the session in which the variants of the job were created
+     * @return whether the job was removed; not when its lease has been taken over by another cluster node
+     */
+    public boolean complete(final Job job, final Session workerSession) throws RepositoryException {
+        if (!isLeased(job, workerSession)) {
+            log.debug("{} is no longer leased by {}", job, owner);
+            return false;
+        }
+        workerSession.getNodeByIdentifier(job.getId()).remove();
+        return true;
+    }
+
+    /**
+     * Releases the lease of a claimed job without counting an attempt, e.g. when the worker pool has no room for it,
+     * so it can be claimed again right away.
+     */
+    public void release(final Job job) throws RepositoryException {
+        lock.lock();
+        try {
+            try {
+                session.getNodeByIdentifier(job.getId()).setProperty(LEASE_EXPIRES, 0L);
+                session.save();
+            } catch (ItemNotFoundException e) {
+                log.debug("{} already removed", job);
+            } catch (RepositoryException e) {
+                session.refresh(false);
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the lease of a job so it is claimed again after the given delay. This is saved right away in the
+     * session of the queue, apart from the unsaved changes of the worker.
+     */
+    public void reschedule(final Job job, final long delay) throws RepositoryException {
+        lock.lock();
+        try {
+            try {
+                session.refresh(false);
+                if (!isLeased(job, session)) {
+                    log.debug("{} is no longer leased by {}, not rescheduling it", job, owner);
+                    return;
+                }
+                final Node node = session.getNodeByIdentifier(job.getId());
+                node.setProperty(ATTEMPTS, job.getAttempts() + 1L);
+                node.setProperty(NEXT_ATTEMPT, System.currentTimeMillis() + delay);
+                node.setProperty(LEASE_EXPIRES, 0L);
+                session.save();
+            } catch (RepositoryException e) {
+                session.refresh(false);
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks a job as failed; it is kept in the repository for inspection but is not claimed anymore. This is saved
+     * right away in the session of the queue, apart from the unsaved changes of the worker.
+     */
+    public void fail(final Job job, final Exception cause) throws RepositoryException {
+        lock.lock();
+        try {
+            try {
+                session.refresh(false);
+                if (!isLeased(job, session)) {
+                    log.debug("{} is no longer leased by {}, not marking it as failed", job, owner);
+                    return;
+                }
+                final Node node = session.getNodeByIdentifier(job.getId());
+                node.setProperty(ATTEMPTS, job.getAttempts() + 1L);
+                node.setProperty(FAILED, true);
+                node.setProperty(ERROR, String.valueOf(cause));
+                // keeps the job out of the query for due jobs
+                node.setProperty(NEXT_ATTEMPT, Long.MAX_VALUE);
+                node.setProperty(LEASE_EXPIRES, 0L);
+                session.save();
+            } catch (RepositoryException e) {
+                session.refresh(false);
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            if (session.isLive()) {
+                session.logout();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Node getJobsNode() throws RepositoryException {
+        if (!session.nodeExists(jobsPath)) {
+            final int lastSlash = jobsPath.lastIndexOf('/');
+            final Node parent = lastSlash == 0 ? session.getRootNode() : session.getNode(jobsPath.substring(0, lastSlash));
+            parent.addNode(jobsPath.substring(lastSlash + 1), JcrConstants.NT_UNSTRUCTURED);
+            session.save();
+            log.info("Created job queue node {}", jobsPath);
+        }
+        return session.getNode(jobsPath);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ImageCreationEvent toEvent(final Node job) throws RepositoryException {
+        return new ImageCreationEvent(JcrUtils.getStringProperty(job, APPLICATION, null))
+                .nodePath(JcrUtils.getStringProperty(job, NODE_PATH, null))
+                .mimeType(JcrUtils.getStringProperty(job, MIME_TYPE, null))
+                .fileName(JcrUtils.getStringProperty(job, FILE_NAME, null))
+                .lastModified(JcrUtils.getLongProperty(job, LAST_MODIFIED, null))
+                .regenerate(JcrUtils.getBooleanProperty(job, REGENERATE, false))
+                .variants(getVariants(job));
+    }
+
+    private static Map<String, String> getVariants(final Node job) throws RepositoryException {
+        final String[] names = JcrUtils.getMultipleStringProperty(job, VARIANT_NAMES, new String[0]);
+        final String[] types = JcrUtils.getMultipleStringProperty(job, VARIANT_TYPES, new String[0]);
+        final Map<String, String> variants = new LinkedHashMap<>();
+        for (int i = 0; i < names.length && i < types.length; i++) {
+            variants.put(names[i], types[i]);
+        }
+        return variants;
+    }
+
+    private static long getLong(final Node node, final String property) throws RepositoryException {
+        return node.hasProperty(property) ? node.getProperty(property).getLong() : 0L;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bloomreach.forge.gallery;
+
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+/**
+ * How often and when an image creation event is retried when its image set is not there yet: after an exponential
+ * backoff from an initial delay, plus a random jitter.
+ */
+public class RetryPolicy {
+
+    private static final long MAX_DELAY = Long.MAX_VALUE;
+    static final int DEFAULT_MAX_RETRY = 5;
+    static final int DEFAULT_DELAY = 1000;
+    static final double DEFAULT_JITTER = 0.2;
+    static final int DEFAULT_MAX_PENDING_RETRIES = 10000;
+
+    private final int maxRetry;
+    private final int delay;
+    private final double jitter;
+    private final int maxPendingRetries;
+
+    public RetryPolicy() {
+        this(DEFAULT_MAX_RETRY, DEFAULT_DELAY, DEFAULT_JITTER, DEFAULT_MAX_PENDING_RETRIES);
+    }
+
+    /**
+     * @param maxRetry number of retries before an event is given up on
+     * @param delay milliseconds before the first retry, doubled for every next one
+     * @param jitter fraction of the delay of which a random part is added to every retry
+     * @param maxPendingRetries maximum number of retries waiting at the same time
+     */
+    public RetryPolicy(final int maxRetry, final int delay, final double jitter, final int maxPendingRetries) {
+        this.maxRetry = maxRetry;
+        this.delay = delay;
+        this.jitter = Math.max(0, jitter);
+        this.maxPendingRetries = maxPendingRetries;
+    }
+
+    public static RetryPolicy read(final Node node) throws RepositoryException {
+        return new RetryPolicy(
+                ConfigProperties.getInteger(node, "maxRetry", DEFAULT_MAX_RETRY),
+                ConfigProperties.getInteger(node, "delay", DEFAULT_DELAY),
+                ConfigProperties.getDouble(node, "jitter", DEFAULT_JITTER),
+                ConfigProperties.getInteger(node, "maxPendingRetries", DEFAULT_MAX_PENDING_RETRIES));
+    }
+
+    public int getMaxRetry() {
+        return maxRetry;
+    }
+
+    public int getDelay() {
+        return delay;
+    }
+
+    public int getMaxPendingRetries() {
+        return maxPendingRetries;
+    }
+
+    /**
+     * Exponential backoff
+     *
+     * @param attempt current attempt
+     * @return exponential backoff in milliseconds
+     */
+    public long backoff(final int attempt) {
+        long duration = delay * (long) Math.pow(2, attempt);
+        if (duration < 0) {
+            duration = MAX_DELAY;
+        }
+        return Math.min(Math.max(duration, delay), MAX_DELAY);
+    }
+
+    /**
+     * Adds a random amount of up to {@code jitter} times the delay, so retries of events posted at the same time
+     * do not all fire at the same moment.
+     */
+    public long jitter(final long delay) {
+        if (jitter <= 0) {
+            return delay;
+        }
+        final long extra = (long) (delay * jitter * ThreadLocalRandom.current().nextDouble());
+        return extra < 0 || delay + extra < 0 ? delay : delay + extra;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (!(o instanceof RetryPolicy)) {
+            return false;
+        }
+        final RetryPolicy other = (RetryPolicy) o;
+        return maxRetry == other.maxRetry && delay == other.delay && jitter == other.jitter
+                && maxPendingRetries == other.maxPendingRetries;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(maxRetry, delay, jitter, maxPendingRetries);
+    }
+
+    @Override
+    public String toString() {
+        return "maxRetry=" + maxRetry + ", delay=" + delay + ", jitter=" + jitter + ", maxPendingRetries=" + maxPendingRetries;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bloomreach.forge.gallery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.hippoecm.repository.util.JcrUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Unsaved changes of several events in the session of one worker, to be saved at once. When saving the batch fails,
+ * its changes are discarded and every event is processed and saved again on its own, so one bad event does not
+ * prevent the others from being saved.
+ */
+public class SaveBatch {
+
+    private static final Logger log = LoggerFactory.getLogger(SaveBatch.class);
+
+    /**
+     * Settings of how the workers of the module save the variants they create.
+     */
+    public static final class Config {
+
+        static final int DEFAULT_SAVE_BATCH_SIZE = 1;
+        static final long DEFAULT_SAVE_BATCH_BYTES = 64 * 1024 * 1024;
+        static final long DEFAULT_SAVE_BATCH_LATENCY = 2000;
+        static final int DEFAULT_EVENT_BATCH_SIZE = 10;
+
+        private final int saveBatchSize;
+        private final long saveBatchBytes;
+        private final long saveBatchLatency;
+        private final int eventBatchSize;
+        private final boolean progressiveSave;
+
+        public Config() {
+            this(DEFAULT_SAVE_BATCH_SIZE, DEFAULT_SAVE_BATCH_BYTES, DEFAULT_SAVE_BATCH_LATENCY, DEFAULT_EVENT_BATCH_SIZE, false);
+        }
+
+        public Config(final int saveBatchSize, final long saveBatchBytes, final long saveBatchLatency,
+                      final int eventBatchSize, final boolean progressiveSave) {
+            this.saveBatchSize = saveBatchSize;
+            this.saveBatchBytes = saveBatchBytes;
+            this.saveBatchLatency = saveBatchLatency;
+            this.eventBatchSize = Math.max(1, eventBatchSize);
+            this.progressiveSave = progressiveSave;
+        }
+
+        public static Config read(final Node node) throws RepositoryException {
+            return new Config(
+                    ConfigProperties.getInteger(node, "saveBatchSize", DEFAULT_SAVE_BATCH_SIZE),
+                    ConfigProperties.getLong(node, "saveBatchBytes", DEFAULT_SAVE_BATCH_BYTES),
+                    ConfigProperties.getLong(node, "saveBatchLatency", DEFAULT_SAVE_BATCH_LATENCY),
+                    ConfigProperties.getInteger(node, "eventBatchSize", DEFAULT_EVENT_BATCH_SIZE),
+                    JcrUtils.getBooleanProperty(node, "progressiveSave", false));
+        }
+
+        /**
+         * @return the maximum number of events a worker saves at once; 1 or less saves every event on its own
+         */
+        public int getSaveBatchSize() {
+            return saveBatchSize;
+        }
+
+        public long getSaveBatchBytes() {
+            return saveBatchBytes;
+        }
+
+        public long getSaveBatchLatency() {
+            return saveBatchLatency;
+        }
+
+        /**
+         * @return the maximum number of image sets of a batch event processed and saved in one go
+         */
+        public int getEventBatchSize() {
+            return eventBatchSize;
+        }
+
+        /**
+         * @return whether every variant of an event is saved as soon as it is created, when not batching saves
+         */
+        public boolean isProgressiveSave() {
+            return progressiveSave && saveBatchSize <= 1;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Config)) {
+                return false;
+            }
+            final Config other = (Config) o;
+            return saveBatchSize == other.saveBatchSize && saveBatchBytes == other.saveBatchBytes
+                    && saveBatchLatency == other.saveBatchLatency && eventBatchSize == other.eventBatchSize
+                    && progressiveSave == other.progressiveSave;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(saveBatchSize, saveBatchBytes, saveBatchLatency, eventBatchSize, progressiveSave);
+        }
+
+        @Override
+        public String toString() {
+            return "saveBatchSize=" + saveBatchSize + ", saveBatchBytes=" + saveBatchBytes
+                    + ", saveBatchLatency=" + saveBatchLatency + ", eventBatchSize=" + eventBatchSize
+                    + ", progressiveSave=" + progressiveSave;
+        }
+    }
+
+    private final List<String> descriptions = new ArrayList<>();
+    private final List<BackgroundWorkerPool.SessionTask> redoTasks = new ArrayList<>();
+    private long bytes;
+    private long started;
+    private boolean flushing;
+
+    /**
+     * Adds the unsaved changes of one event.
+     *
+     * @param description description of the changes, for logging
+     * @param size number of bytes of binary data in the changes
+     * @param redo processes the event again and saves it on its own
+     */
+    public void add(final String description, final long size, final BackgroundWorkerPool.SessionTask redo) {
+        if (descriptions.isEmpty()) {
+            started = System.currentTimeMillis();
+        }
+        descriptions.add(description);
+        redoTasks.add(redo);
+        bytes += size;
+    }
+
+    public boolean isEmpty() {
+        return descriptions.isEmpty();
+    }
+
+    /**
+     * @return whether the batch is being flushed; changes made meanwhile have to be saved directly
+     */
+    public boolean isFlushing() {
+        return flushing;
+    }
+
+    /**
+     * @return whether the batch has reached one of the limits and should be saved
+     */
+    public boolean isFull(final int maxCount, final long maxBytes, final long maxLatency) {
+        return descriptions.size() >= maxCount
+                || bytes >= maxBytes
+                || System.currentTimeMillis() - started >= maxLatency;
+    }
+
+    /**
+     * Saves the batch; when that fails, processes and saves every event on its own.
+     */
+    public void flush(final Session session) {
+        if (isEmpty()) {
+            return;
+        }
+        try {
+            session.save();
+            log.debug("Saved batch of {} events", descriptions.size());
+            clear();
+        } catch (RepositoryException e) {
+            log.warn("Saving batch of {} events failed, saving them one by one: {}", descriptions.size(), e.toString());
+            redo(session);
+        }
+    }
+
+    /**
+     * Discards the unsaved changes in the session and processes and saves every event in the batch on its own.
+     */
+    public void redo(final Session session) {
+        final List<String> redoDescriptions = new ArrayList<>(descriptions);
+        final List<BackgroundWorkerPool.SessionTask> tasks = new ArrayList<>(redoTasks);
+        clear();
+
+        refresh(session);
+        flushing = true;
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                try {
+                    tasks.get(i).execute(session);
+                } catch (Exception e) {
+                    log.error("Error saving {}", redoDescriptions.get(i), e);
+                    refresh(session);
+                }
+            }
+        } finally {
+            flushing = false;
+        }
+    }
+
+    private void clear() {
+        descriptions.clear();
+        redoTasks.clear();
+        bytes = 0;
+    }
+
+    private static void refresh(final Session session) {
+        try {
+            session.refresh(false);
+        } catch (RepositoryException e) {
+            log.error("", e);
+        }
+    }
+}
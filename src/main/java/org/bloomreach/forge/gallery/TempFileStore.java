@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bloomreach.forge.gallery;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.hippoecm.repository.util.JcrUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Directory of temporary files holding encoded variants until they are stored in the repository. Keeps track of the
+ * files it created, so the ones left behind by failures can be deleted when the module shuts down; files left behind
+ * by a previous run are deleted when the store is created.
+ */
+public class TempFileStore {
+
+    private static final Logger log = LoggerFactory.getLogger(TempFileStore.class);
+
+    private static final String PREFIX = "variant-";
+    private static final String SUFFIX = ".tmp";
+
+    /**
+     * Settings of the temporary files of the module.
+     */
+    public static final class Config {
+
+        static final long DEFAULT_SPILL_THRESHOLD = 4L * 1024 * 1024;
+        static final String DEFAULT_SPILL_DIRECTORY = new File(System.getProperty("java.io.tmpdir"),
+                "gallery-background-processor").getPath();
+
+        private final long spillThreshold;
+        private final String spillDirectory;
+
+        public Config() {
+            this(DEFAULT_SPILL_THRESHOLD, DEFAULT_SPILL_DIRECTORY);
+        }
+
+        public Config(final long spillThreshold, final String spillDirectory) {
+            this.spillThreshold = spillThreshold;
+            this.spillDirectory = spillDirectory;
+        }
+
+        public static Config read(final Node node) throws RepositoryException {
+            return new Config(
+                    ConfigProperties.getLong(node, "spillThreshold", DEFAULT_SPILL_THRESHOLD),
+                    JcrUtils.getStringProperty(node, "spillDirectory", DEFAULT_SPILL_DIRECTORY));
+        }
+
+        /**
+         * @return whether encoded variants are written to temporary files
+         */
+        public boolean isEnabled() {
+            return spillThreshold > 0;
+        }
+
+        /**
+         * @return the number of bytes from which an encoded variant is written to a temporary file
+         */
+        public long getSpillThreshold() {
+            return spillThreshold;
+        }
+
+        public File getSpillDirectory() {
+            return new File(spillDirectory);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Config)) {
+                return false;
+            }
+            final Config other = (Config) o;
+            return spillThreshold == other.spillThreshold && Objects.equals(spillDirectory, other.spillDirectory);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(spillThreshold, spillDirectory);
+        }
+
+        @Override
+        public String toString() {
+            return "spillThreshold=" + spillThreshold + ", spillDirectory=" + spillDirectory;
+        }
+    }
+
+    private final File directory;
+    private final Set<File> files = ConcurrentHashMap.newKeySet();
+
+    public TempFileStore(final File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        final File[] leftovers = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                delete(leftover);
+            }
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return a new empty file
+     */
+    public File create() throws IOException {
+        final File file = File.createTempFile(PREFIX, SUFFIX, directory);
+        files.add(file);
+        return file;
+    }
+
+    public void delete(final File file) {
+        files.remove(file);
+        if (!file.delete() && file.exists()) {
+            log.warn("Cannot delete temporary file {}", file);
+        }
+    }
+
+    /**
+     * @return the number of files created and not deleted yet
+     */
+    public int getFileCount() {
+        return files.size();
+    }
+
+    /**
+     * Deletes all files created and not deleted yet.
+     */
+    public void deleteAll() {
+        final int count = files.size();
+        for (File file : files) {
+            delete(file);
+        }
+        if (count > 0) {
+            log.info("Deleted {} temporary files from {}", count, directory);
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bloomreach.forge.gallery;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.jcr.Binary;
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.io.IOUtils;
+import org.hippoecm.frontend.plugins.gallery.imageutil.ScalingParameters;
+import org.hippoecm.repository.util.JcrUtils;
+import org.onehippo.repository.util.JcrConstants;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index of scaled variants by the content hash of their original and their scaling parameters, so a variant of an
+ * original that has been scaled before with the same parameters can refer to the existing variant data instead of
+ * scaling it again. Recently used entries are kept in memory; all entries are stored below a node in the repository,
+ * one node per original, so they survive restarts.
+ * <p>
+ * The index is guarded by a lock rather than a monitor, so a worker on a virtual thread reading or writing it in the
+ * repository does not hold on to its carrier thread.
+ */
+public class VariantCache {
+
+    private static final Logger log = LoggerFactory.getLogger(VariantCache.class);
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int FAN_OUT_LENGTH = 2;
+
+    /**
+     * Settings of the variant cache of the module.
+     */
+    public static final class Config {
+
+        static final String DEFAULT_PATH = "/gallery-background-processor-cache";
+        static final int DEFAULT_SIZE = 10000;
+
+        private final boolean enabled;
+        private final String path;
+        private final int size;
+
+        public Config() {
+            this(false, DEFAULT_PATH, DEFAULT_SIZE);
+        }
+
+        public Config(final boolean enabled, final String path, final int size) {
+            this.enabled = enabled;
+            this.path = path;
+            this.size = Math.max(1, size);
+        }
+
+        public static Config read(final Node node) throws RepositoryException {
+            return new Config(
+                    JcrUtils.getBooleanProperty(node, "variantCache", false),
+                    JcrUtils.getStringProperty(node, "variantCachePath", DEFAULT_PATH),
+                    ConfigProperties.getInteger(node, "variantCacheSize", DEFAULT_SIZE));
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Config)) {
+                return false;
+            }
+            final Config other = (Config) o;
+            return enabled == other.enabled && Objects.equals(path, other.path) && size == other.size;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(enabled, path, size);
+        }
+
+        @Override
+        public String toString() {
+            return "variantCache=" + enabled + ", variantCachePath=" + path + ", variantCacheSize=" + size;
+        }
+    }
+
+    /**
+     * A variant of an original, identified by the variant node and the time its data was last modified, so variant
+     * data that has been changed since, e.g. by cropping, is not used.
+     */
+    private static class CachedVariant {
+
+        private final String identifier;
+        private final long lastModified;
+
+        private CachedVariant(final String identifier, final long lastModified) {
+            this.identifier = identifier;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final String indexPath;
+    private final Session session;
+    private final Map<String, CachedVariant> recent;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * @param indexPath path of the node holding the persistent index
+     * @param size maximum number of entries kept in memory
+     * @param session session used for reading and writing the persistent index, owned by this cache
+     */
+    public VariantCache(final String indexPath, final int size, final Session session) {
+        this.indexPath = indexPath;
+        this.session = session;
+        this.recent = new LinkedHashMap<String, CachedVariant>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, CachedVariant> eldest) {
+                return size() > size;
+            }
+        };
+    }
+
+    /**
+     * @return the hex encoded content hash of binary data
+     */
+    public static String hash(final Binary data) throws RepositoryException {
+        final InputStream stream = data.getStream();
+        try {
+            final MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            final StringBuilder hash = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hash.append(String.format("%02x", b));
+            }
+            return hash.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new RepositoryException("Cannot hash binary data", e);
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Looks up a variant scaled before from the same original with the same parameters and encoding.
+     *
+     * @param workerSession the session to read the variant with
+     * @return the variant node, or null if there is none or its data has changed since
+     */
+    public Node get(final Session workerSession, final String originalHash, final ScalingParameters parameters,
+                    final String mimeType) throws RepositoryException {
+        final String key = getKey(parameters, mimeType);
+        CachedVariant entry;
+        lock.lock();
+        try {
+            entry = recent.get(originalHash + "/" + key);
+            if (entry == null) {
+                entry = readEntry(originalHash, key);
+                if (entry != null) {
+                    recent.put(originalHash + "/" + key, entry);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (entry == null) {
+            return null;
+        }
+
+        try {
+            final Node variant = workerSession.getNodeByIdentifier(entry.identifier);
+            final Calendar lastModified = JcrUtils.getDateProperty(variant, JcrConstants.JCR_LAST_MODIFIED, null);
+            if (variant.hasProperty(JcrConstants.JCR_DATA) && lastModified != null
+                    && lastModified.getTimeInMillis() == entry.lastModified) {
+                return variant;
+            }
+            log.debug("Variant {} changed since it was cached", variant.getPath());
+        } catch (ItemNotFoundException e) {
+            log.debug("Cached variant {} no longer exists", entry.identifier);
+        }
+        lock.lock();
+        try {
+            recent.remove(originalHash + "/" + key);
+        } finally {
+            lock.unlock();
+        }
+        return null;
+    }
+
+    /**
+     * Adds scaled variants of an original. The persistent index is saved right away; an entry for a variant that is
+     * not saved in the end is ignored when it is looked up.
+     *
+     * @param variants the variant nodes by their scaling parameters
+     */
+    public void put(final String originalHash, final Map<ScalingParameters, Node> variants, final String mimeType) {
+        if (variants.isEmpty()) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (!session.isLive()) {
+                return;
+            }
+            final Node index = getIndexNode(originalHash);
+            for (Map.Entry<ScalingParameters, Node> variant : variants.entrySet()) {
+                final String key = getKey(variant.getKey(), mimeType);
+                final Node node = variant.getValue();
+                final CachedVariant entry = new CachedVariant(node.getIdentifier(),
+                        node.getProperty(JcrConstants.JCR_LAST_MODIFIED).getDate().getTimeInMillis());
+                index.setProperty(key, new String[]{entry.identifier, String.valueOf(entry.lastModified)});
+                recent.put(originalHash + "/" + key, entry);
+            }
+            session.save();
+        } catch (RepositoryException e) {
+            log.warn("Cannot store cached variants of original {}: {}", originalHash, e.toString());
+            refresh();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            if (session.isLive()) {
+                session.logout();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private CachedVariant readEntry(final String originalHash, final String key) {
+        final String path = getIndexPath(originalHash);
+        try {
+            if (!session.isLive() || !session.nodeExists(path)) {
+                return null;
+            }
+            final String[] value = JcrUtils.getMultipleStringProperty(session.getNode(path), key, null);
+            if (value == null || value.length < 2) {
+                return null;
+            }
+            return new CachedVariant(value[0], Long.parseLong(value[1]));
+        } catch (NumberFormatException e) {
+            log.debug("Ignoring invalid cache entry {} of {}", key, path);
+        } catch (RepositoryException e) {
+            // a cache that cannot be read only means scaling again
+            log.warn("Cannot read cache entry {} of {}: {}", key, path, e.toString());
+        }
+        return null;
+    }
+
+    private Node getIndexNode(final String originalHash) throws RepositoryException {
+        Node node = session.nodeExists(indexPath) ? session.getNode(indexPath) : createNode(session.getRootNode(), indexPath.substring(1));
+        for (String name : new String[]{originalHash.substring(0, FAN_OUT_LENGTH), originalHash}) {
+            node = node.hasNode(name) ? node.getNode(name) : node.addNode(name, JcrConstants.NT_UNSTRUCTURED);
+        }
+        return node;
+    }
+
+    private static Node createNode(final Node root, final String relPath) throws RepositoryException {
+        Node node = root;
+        for (String name : relPath.split("/")) {
+            node = node.hasNode(name) ? node.getNode(name) : node.addNode(name, JcrConstants.NT_UNSTRUCTURED);
+        }
+        return node;
+    }
+
+    private String getIndexPath(final String originalHash) {
+        return indexPath + "/" + originalHash.substring(0, FAN_OUT_LENGTH) + "/" + originalHash;
+    }
+
+    /**
+     * @return a property name identifying the scaling parameters and encoding of a variant
+     */
+    static String getKey(final ScalingParameters parameters, final String mimeType) {
+        return (parameters.getWidth() + "x" + parameters.getHeight()
+                + "-" + (parameters.getUpscaling() ? "upscaling" : "downscaling")
+                + "-" + parameters.getStrategy()
+                + "-" + parameters.getCompressionQuality()
+                + "-" + mimeType).toLowerCase(Locale.ENGLISH).replaceAll("[^a-z0-9.+-]", "_");
+    }
+
+    private void refresh() {
+        try {
+            session.refresh(false);
+        } catch (RepositoryException e) {
+            log.error("", e);
+        }
+    }
+}
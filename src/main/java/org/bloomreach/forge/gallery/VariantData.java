@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bloomreach.forge.gallery;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Encoded variant data, written to a staging buffer on the heap until it grows beyond a threshold, and from then on
+ * to a temporary file. Once closed, the data is kept in an array of its exact size or in the file, until disposed.
+ */
+public class VariantData extends OutputStream {
+
+    private final TempFileStore files;
+    private final long threshold;
+    private ByteArrayOutputStream staging;
+    private byte[] data;
+    private File file;
+    private OutputStream fileOutput;
+    private long size;
+
+    /**
+     * @param files the store to create the temporary file in, or null to keep all data on the heap
+     * @param threshold number of bytes from which the data is written to a temporary file
+     * @param staging the buffer to collect data in before it is known whether it goes to a file; it is reset and no
+     *                longer used once the data is closed, so the writing thread can use it again for the next data
+     */
+    public VariantData(final TempFileStore files, final long threshold, final ByteArrayOutputStream staging) {
+        this.files = files;
+        this.threshold = threshold;
+        this.staging = staging;
+        staging.reset();
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        if (fileOutput == null && files != null && staging.size() + len > threshold) {
+            spill();
+        }
+        if (fileOutput != null) {
+            fileOutput.write(b, off, len);
+        } else {
+            staging.write(b, off, len);
+        }
+        size += len;
+    }
+
+    private void spill() throws IOException {
+        file = files.create();
+        fileOutput = new BufferedOutputStream(new FileOutputStream(file));
+        staging.writeTo(fileOutput);
+        staging.reset();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (staging == null) {
+            return;
+        }
+        if (fileOutput != null) {
+            fileOutput.close();
+        } else {
+            data = staging.toByteArray();
+        }
+        staging.reset();
+        staging = null;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * @return a stream to read the data from; only valid after closing
+     */
+    public InputStream getInputStream() throws IOException {
+        return file != null ? new FileInputStream(file) : new ByteArrayInputStream(data);
+    }
+
+    /**
+     * Releases the data, deleting its file, if any.
+     */
+    public void dispose() {
+        data = null;
+        IOUtils.closeQuietly(fileOutput);
+        if (file != null) {
+            files.delete(file);
+        }
+        if (staging != null) {
+            staging.reset();
+            staging = null;
+        }
+    }
+}
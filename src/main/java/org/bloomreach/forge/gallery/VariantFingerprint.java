@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bloomreach.forge.gallery;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.hippoecm.frontend.plugins.gallery.imageutil.ScalingParameters;
+import org.hippoecm.repository.util.JcrUtils;
+
+/**
+ * Compact fingerprint of the scaling parameters a variant was created with, stored on the variant node, so variants
+ * created with parameters that have been changed since can be recognized and created again.
+ * <p>
+ * The gallery image node types do not allow properties of their own, so the fingerprint is stored on variant nodes
+ * with the relaxed mixin, which allows any property.
+ */
+public class VariantFingerprint {
+
+    public static final String PROPERTY = "scalingFingerprint";
+    public static final String MIXIN = "hippostd:relaxed";
+
+    private VariantFingerprint() {
+    }
+
+    /**
+     * @return the fingerprint of the parameters: eight hex digits that change when any of the parameters does
+     */
+    public static String of(final ScalingParameters parameters) {
+        final String key = parameters.getWidth() + "x" + parameters.getHeight()
+                + "-" + parameters.getUpscaling()
+                + "-" + parameters.getStrategy()
+                + "-" + parameters.getCompressionQuality();
+        final CRC32 crc = new CRC32();
+        crc.update(key.getBytes(StandardCharsets.UTF_8));
+        return String.format(Locale.ENGLISH, "%08x", crc.getValue());
+    }
+
+    /**
+     * Stores the fingerprint of the parameters on a variant node, adding the relaxed mixin if needed.
+     *
+     * @return whether the fingerprint was stored; false if the node cannot have the mixin
+     */
+    public static boolean stamp(final Node variant, final ScalingParameters parameters) throws RepositoryException {
+        if (!variant.isNodeType(MIXIN)) {
+            if (!variant.canAddMixin(MIXIN)) {
+                return false;
+            }
+            variant.addMixin(MIXIN);
+        }
+        variant.setProperty(PROPERTY, of(parameters));
+        return true;
+    }
+
+    /**
+     * @return the fingerprint stored on a variant node, or null if it has none
+     */
+    public static String get(final Node variant) throws RepositoryException {
+        return JcrUtils.getStringProperty(variant, PROPERTY, null);
+    }
+
+    /**
+     * @return whether a variant node has no fingerprint or one of other parameters
+     */
+    public static boolean isStale(final Node variant, final ScalingParameters parameters) throws RepositoryException {
+        return !of(parameters).equals(get(variant));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bloomreach.forge.gallery;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hippoecm.frontend.plugins.gallery.imageutil.ScalingParameters;
+import org.hippoecm.repository.gallery.HippoGalleryNodeType;
+
+/**
+ * Decides which variants of an upload are created inline, within the upload, and which in the background.
+ * <p>
+ * Variants in the list of inline variants are always created inline, variants in the list of background variants
+ * always in the background. By default, of the others only the original and the thumbnail are created inline.
+ * <p>
+ * With a limit of inline pixels, the others are instead created inline, cheapest first, as long as the estimated cost of
+ * all inline variants stays within that number of pixels; the rest goes to the background. The cost of a scaled variant
+ * is the number of pixels of the original, which is decoded for every inline variant on the thread of the upload, plus
+ * the number of pixels of the variant. When the background has a backlog, the busy limit applies instead, if set, as
+ * background variants would show up late.
+ */
+public class VariantPlacementPolicy implements Serializable {
+
+    // no limit: only the original and the thumbnail are created inline
+    static final long DEFAULT_INLINE_PIXELS = 0;
+    static final long DEFAULT_BUSY_INLINE_PIXELS = 0;
+    static final int DEFAULT_BUSY_BACKLOG = 100;
+
+    private final Set<String> inlineVariants;
+    private final Set<String> backgroundVariants;
+    private final long inlinePixels;
+    private final long busyInlinePixels;
+    private final int busyBacklog;
+
+    public VariantPlacementPolicy() {
+        this(null, null, DEFAULT_INLINE_PIXELS, DEFAULT_BUSY_INLINE_PIXELS, DEFAULT_BUSY_BACKLOG);
+    }
+
+    /**
+     * @param inlineVariants names of the variants always created inline, may be null
+     * @param backgroundVariants names of the variants always created in the background, may be null
+     * @param inlinePixels maximum estimated cost of the variants created inline, 0 or less to create only the original
+     *                     and the thumbnail inline
+     * @param busyInlinePixels maximum estimated cost of the variants created inline when the background is busy, 0 or
+     *                         less to apply the same rule as when it is not busy
+     * @param busyBacklog number of events waiting in the background from which it is considered busy
+     */
+    public VariantPlacementPolicy(final String[] inlineVariants, final String[] backgroundVariants,
+                                  final long inlinePixels, final long busyInlinePixels, final int busyBacklog) {
+        this.inlineVariants = inlineVariants == null ? Collections.emptySet() : new HashSet<>(Arrays.asList(inlineVariants));
+        this.backgroundVariants = backgroundVariants == null ? Collections.emptySet() : new HashSet<>(Arrays.asList(backgroundVariants));
+        this.inlinePixels = inlinePixels;
+        this.busyInlinePixels = busyInlinePixels;
+        this.busyBacklog = busyBacklog;
+    }
+
+    /**
+     * @param variants names of the variants to create
+     * @param parameters scaling parameters by variant name
+     * @param originalWidth width of the original, 0 if unknown
+     * @param originalHeight height of the original, 0 if unknown
+     * @param backlog number of events waiting in the background
+     * @return names of the variants to create inline
+     */
+    public Set<String> getInlineVariants(final Collection<String> variants, final Map<String, ScalingParameters> parameters,
+                                         final long originalWidth, final long originalHeight, final int backlog) {
+        final Set<String> inline = new HashSet<>();
+        final List<String> candidates = new ArrayList<>();
+        long cost = 0;
+        for (String variant : variants) {
+            if (HippoGalleryNodeType.IMAGE_SET_ORIGINAL.equals(variant) || inlineVariants.contains(variant)) {
+                inline.add(variant);
+                cost += getCost(parameters.get(variant), originalWidth, originalHeight);
+            } else if (!backgroundVariants.contains(variant)) {
+                candidates.add(variant);
+            }
+        }
+
+        final long limit = backlog >= busyBacklog && busyInlinePixels > 0 ? busyInlinePixels : inlinePixels;
+        if (limit <= 0) {
+            if (candidates.contains(HippoGalleryNodeType.IMAGE_SET_THUMBNAIL)) {
+                inline.add(HippoGalleryNodeType.IMAGE_SET_THUMBNAIL);
+            }
+            return inline;
+        }
+        candidates.sort(Comparator.comparingLong(variant -> getCost(parameters.get(variant), originalWidth, originalHeight)));
+        for (String variant : candidates) {
+            cost += getCost(parameters.get(variant), originalWidth, originalHeight);
+            if (cost > limit) {
+                break;
+            }
+            inline.add(variant);
+        }
+        return inline;
+    }
+
+    /**
+     * @return the estimated cost in pixels of creating a variant inline
+     */
+    static long getCost(final ScalingParameters parameters, final long originalWidth, final long originalHeight) {
+        if (parameters == null) {
+            // a copy of the original
+            return 0;
+        }
+        final long originalPixels = originalWidth * originalHeight;
+        if (originalPixels <= 0) {
+            // an original that could not be measured is not scaled either
+            return (long) Math.max(parameters.getWidth(), 0) * Math.max(parameters.getHeight(), 0);
+        }
+
+        double ratio = 1;
+        if (parameters.getWidth() >= 1) {
+            ratio = (double) parameters.getWidth() / originalWidth;
+        }
+        if (parameters.getHeight() >= 1) {
+            ratio = Math.min(ratio, (double) parameters.getHeight() / originalHeight);
+        }
+        if (!parameters.getUpscaling()) {
+            ratio = Math.min(ratio, 1);
+        }
+        return originalPixels + Math.round(originalPixels * ratio * ratio);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bloomreach.forge.gallery;
+
+import java.lang.reflect.Method;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates virtual threads on Java 21 and later. The methods are looked up by reflection, so the module still compiles
+ * and runs on Java 8; where virtual threads are not available, e.g. on older Java versions or on Java 19 and 20
+ * without preview features, no threads are created and callers fall back to platform threads.
+ */
+public class VirtualThreads {
+
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreads.class);
+
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+            // a preview API throws when preview features are not enabled
+            unstarted.invoke(ofVirtual.invoke(null), (Runnable) () -> {
+            });
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            log.debug("Virtual threads not available: {}", e.toString());
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return whether virtual threads can be created
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Creates a virtual thread, not started yet.
+     *
+     * @return the thread, or null if virtual threads are not available
+     */
+    public static Thread newThread(final String name, final Runnable runnable) {
+        if (OF_VIRTUAL == null) {
+            return null;
+        }
+        try {
+            return (Thread) UNSTARTED.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), name), runnable);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("Cannot create virtual thread {}, creating a platform thread: {}", name, e.toString());
+            return null;
+        }
+    }
+}
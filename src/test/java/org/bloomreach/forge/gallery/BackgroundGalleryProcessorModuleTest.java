@@ -36,4 +36,15 @@ public class BackgroundGalleryProcessorModuleTest {
             oldBackoff = backoff;
         }
     }
+
+    @Test
+    public void testJitter() throws Exception {
+        final BackgroundGalleryProcessorModule backgroundGalleryProcessorModule = new BackgroundGalleryProcessorModule();
+        for (int i = 0; i < 50; i++) {
+            final long backoff = backgroundGalleryProcessorModule.backoff(i);
+            final long jitter = backgroundGalleryProcessorModule.jitter(backoff);
+            assertTrue(jitter >= backoff);
+            assertTrue(jitter - backoff <= backoff / 5 + 1);
+        }
+    }
 }
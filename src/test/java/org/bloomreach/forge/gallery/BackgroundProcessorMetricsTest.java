@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bloomreach.forge.gallery;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BackgroundProcessorMetricsTest {
+
+    @Test
+    public void testTimers() {
+        final BackgroundProcessorMetrics metrics = new BackgroundProcessorMetrics();
+        metrics.recordScale("hippogallery:thumbnail", TimeUnit.MILLISECONDS.toNanos(10));
+        metrics.recordScale("hippogallery:thumbnail", TimeUnit.MILLISECONDS.toNanos(30));
+        metrics.recordSave(TimeUnit.MILLISECONDS.toNanos(5));
+
+        assertEquals(20.0, metrics.getScaleTimeAverage().get("hippogallery:thumbnail"), 0.001);
+        assertEquals(30.0, metrics.getScaleTimeMax().get("hippogallery:thumbnail"), 0.001);
+        assertEquals(1, metrics.getSaveCount());
+        assertEquals(5.0, metrics.getSaveTimeAverage(), 0.001);
+        assertEquals(0.0, metrics.getDecodeTimeAverage(), 0.001);
+    }
+
+    @Test
+    public void testCountersAndReset() {
+        final BackgroundProcessorMetrics metrics = new BackgroundProcessorMetrics();
+        metrics.eventReceived();
+        metrics.variantCreated("hippogallery:thumbnail");
+        metrics.variantCreated("hippogallery:thumbnail");
+        metrics.retryScheduled(1);
+        metrics.retryScheduled(1);
+        metrics.retryScheduled(2);
+        metrics.failed();
+
+        assertEquals(1, metrics.getEventsReceived());
+        assertEquals(Long.valueOf(2), metrics.getVariantsCreated().get("hippogallery:thumbnail"));
+        assertEquals(Long.valueOf(2), metrics.getRetries().get("1"));
+        assertEquals(Long.valueOf(1), metrics.getRetries().get("2"));
+        assertEquals(1, metrics.getFailures());
+
+        metrics.reset();
+        assertEquals(0, metrics.getEventsReceived());
+        assertTrue(metrics.getVariantsCreated().isEmpty());
+        assertTrue(metrics.getRetries().isEmpty());
+        assertEquals(0, metrics.getFailures());
+    }
+}
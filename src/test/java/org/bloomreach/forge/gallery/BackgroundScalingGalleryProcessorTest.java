@@ -0,0 +1,226 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bloomreach.forge.gallery;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.io.IOUtils;
+import org.hippoecm.frontend.plugins.gallery.imageutil.ImageUtils;
+import org.hippoecm.frontend.plugins.gallery.imageutil.ScalingParameters;
+import org.hippoecm.frontend.plugins.gallery.processor.ScalingGalleryProcessor;
+import org.hippoecm.repository.gallery.HippoGalleryNodeType;
+import org.junit.Test;
+import org.onehippo.repository.util.JcrConstants;
+
+import static org.junit.Assert.*;
+
+public class BackgroundScalingGalleryProcessorTest {
+
+    private static ScalingParameters variant(final int width, final int height, final boolean upscaling) {
+        return new ScalingParameters(width, height, upscaling, ImageUtils.ScalingStrategy.QUALITY, 1f);
+    }
+
+    @Test
+    public void testSubsampling() {
+        final BackgroundScalingGalleryProcessor processor = new BackgroundScalingGalleryProcessor();
+
+        // the largest variant is a tenth of the original, keep twice its pixels
+        assertEquals(5, processor.getSubsampling(8000, 6000, Arrays.asList(variant(800, 600, false), variant(100, 75, false))));
+        // variants using the original as-is do not need decoded pixels
+        assertEquals(5, processor.getSubsampling(8000, 6000, Arrays.asList(variant(800, 600, false), variant(9000, 0, false))));
+        // variants scaled up need all pixels
+        assertEquals(1, processor.getSubsampling(8000, 6000, Arrays.asList(variant(800, 600, false), variant(9000, 0, true))));
+        // variants close to the original size need all pixels
+        assertEquals(1, processor.getSubsampling(1000, 750, Collections.singletonList(variant(800, 600, false))));
+    }
+
+    @Test
+    public void testSameVariantsAsScalingGalleryProcessor() throws Exception {
+        final Map<String, ScalingParameters> variants = new LinkedHashMap<>();
+        variants.put("smaller", variant(160, 120, false));
+        variants.put("square", variant(100, 100, false));
+        variants.put("width", variant(200, 0, false));
+        variants.put("height", new ScalingParameters(0, 90, false, ImageUtils.ScalingStrategy.SPEED, 0.5f));
+        variants.put("larger", variant(1280, 960, false));
+        variants.put("upscaled", variant(1280, 960, true));
+
+        final BackgroundScalingGalleryProcessor processor = new BackgroundScalingGalleryProcessor();
+        final ScalingGalleryProcessor reference = new ScalingGalleryProcessor();
+        for (Map.Entry<String, ScalingParameters> variant : variants.entrySet()) {
+            processor.addScalingParameters(variant.getKey(), variant.getValue());
+            reference.addScalingParameters(variant.getKey(), variant.getValue());
+        }
+
+        for (String format : Arrays.asList("jpeg", "png")) {
+            final String mimeType = "image/" + format;
+            final BufferedImage image = new BufferedImage(640, 480, BufferedImage.TYPE_INT_RGB);
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    image.setRGB(x, y, (x % 256) << 16 | (y % 256) << 8 | (x * y) % 256);
+                }
+            }
+            final ByteArrayOutputStream data = new ByteArrayOutputStream();
+            ImageIO.write(image, format, data);
+
+            final InMemoryRepository repository = new InMemoryRepository();
+            final Calendar lastModified = Calendar.getInstance();
+            for (String name : variants.keySet()) {
+                // one variant at a time, so the original is decoded for that variant alone
+                final Node imageSet = repository.getRootNode().addNode(name, HippoGalleryNodeType.IMAGE_SET);
+                final Node original = imageSet.addNode(HippoGalleryNodeType.IMAGE_SET_ORIGINAL, HippoGalleryNodeType.IMAGE);
+                original.setProperty(JcrConstants.JCR_DATA, InMemoryRepository.createBinary(data.toByteArray()));
+                processor.initGalleryResources(imageSet, original, Collections.singletonMap(name, HippoGalleryNodeType.IMAGE),
+                        mimeType, "image." + format, lastModified);
+                final Node created = imageSet.getNode(name);
+
+                final Node expected = repository.getRootNode().addNode("expected-" + name, HippoGalleryNodeType.IMAGE_SET)
+                        .addNode(name, HippoGalleryNodeType.IMAGE);
+                reference.initGalleryResource(expected, new ByteArrayInputStream(data.toByteArray()), mimeType,
+                        "image." + format, lastModified);
+
+                assertArrayEquals(format + " " + name, getData(expected), getData(created));
+                assertEquals(format + " " + name, expected.getProperty(HippoGalleryNodeType.IMAGE_WIDTH).getLong(),
+                        created.getProperty(HippoGalleryNodeType.IMAGE_WIDTH).getLong());
+                assertEquals(format + " " + name, expected.getProperty(HippoGalleryNodeType.IMAGE_HEIGHT).getLong(),
+                        created.getProperty(HippoGalleryNodeType.IMAGE_HEIGHT).getLong());
+            }
+        }
+    }
+
+    @Test
+    public void testScaleTimeExcludesWriting() throws Exception {
+        final BackgroundScalingGalleryProcessor processor = new BackgroundScalingGalleryProcessor() {
+            @Override
+            protected long initScaledGalleryResource(final Node node, final Binary originalData, final ScaledImage scaled,
+                                                     final String mimeType, final Calendar lastModified) throws RepositoryException {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.initScaledGalleryResource(node, originalData, scaled, mimeType, lastModified);
+            }
+        };
+        processor.addScalingParameters("small", variant(160, 120, false));
+        processor.addScalingParameters("medium", variant(320, 240, false));
+        final BackgroundProcessorMetrics metrics = new BackgroundProcessorMetrics();
+        processor.setMetrics(metrics);
+
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(640, 480, BufferedImage.TYPE_INT_RGB), "png", data);
+        final Node imageSet = new InMemoryRepository().getRootNode().addNode("image", HippoGalleryNodeType.IMAGE_SET);
+        final Node original = imageSet.addNode(HippoGalleryNodeType.IMAGE_SET_ORIGINAL, HippoGalleryNodeType.IMAGE);
+        original.setProperty(JcrConstants.JCR_DATA, InMemoryRepository.createBinary(data.toByteArray()));
+        final Map<String, String> variants = new LinkedHashMap<>();
+        variants.put("small", HippoGalleryNodeType.IMAGE);
+        variants.put("medium", HippoGalleryNodeType.IMAGE);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            processor.setParallelScaling(executor, 2);
+            processor.initGalleryResources(imageSet, original, variants, "image/png", "image.png", Calendar.getInstance());
+        } finally {
+            executor.shutdown();
+        }
+
+        // the medium variant waits for the small one to be written, which is no time spent scaling it
+        assertEquals(2, metrics.getScaleTimeMax().size());
+        for (double millis : metrics.getScaleTimeMax().values()) {
+            assertTrue(String.valueOf(millis), millis < 1000);
+        }
+    }
+
+    private static byte[] getData(final Node variant) throws Exception {
+        try (InputStream stream = variant.getProperty(JcrConstants.JCR_DATA).getBinary().getStream()) {
+            return IOUtils.toByteArray(stream);
+        }
+    }
+
+    @Test
+    public void testReadImageSize() throws Exception {
+        final BackgroundScalingGalleryProcessor processor = new BackgroundScalingGalleryProcessor();
+
+        // the original of a new upload does not exist yet, its size is read from the uploaded image itself
+        final ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(640, 480, BufferedImage.TYPE_INT_RGB), "png", png);
+        assertEquals(new Dimension(640, 480), processor.readImageSize(new ByteArrayInputStream(png.toByteArray()), "image/png"));
+
+        assertEquals(new Dimension(), processor.readImageSize(new ByteArrayInputStream(new byte[16]), "image/png"));
+        assertEquals(new Dimension(), processor.readImageSize(new ByteArrayInputStream(png.toByteArray()), null));
+    }
+
+    @Test
+    public void testEstimateMemory() {
+        final BackgroundScalingGalleryProcessor processor = new BackgroundScalingGalleryProcessor();
+
+        assertEquals((1600L * 1200 + 800 * 600) * 4,
+                processor.estimateMemory(8000, 6000, 5, Collections.singletonList(variant(800, 600, false))));
+        assertEquals(8000L * 6000 * 4,
+                processor.estimateMemory(8000, 6000, 1, Collections.singletonList(variant(9000, 0, false))));
+
+        // variants scaled in parallel need memory at the same time
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            processor.setParallelScaling(executor, 2);
+            assertEquals((1600L * 1200 + 800 * 600 + 400 * 300) * 4, processor.estimateMemory(8000, 6000, 5,
+                    Arrays.asList(variant(100, 75, false), variant(800, 600, false), variant(400, 300, false))));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testMemoryBudget() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(100);
+
+        final long first = budget.reserve(60);
+        assertEquals(60, first);
+        // a job larger than the whole budget gets all of it once it runs alone
+        final Thread large = new Thread(() -> {
+            try {
+                budget.release(budget.reserve(500));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        large.start();
+        large.join(200);
+        assertTrue(large.isAlive());
+
+        budget.release(first);
+        large.join(5000);
+        assertFalse(large.isAlive());
+        assertEquals(0, budget.getReserved());
+
+        assertEquals(0, new MemoryBudget(0).reserve(500));
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bloomreach.forge.gallery;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BackgroundWorkerPoolTest {
+
+    private static List<String> runInOrder(final long bulkAging) throws InterruptedException {
+        final BackgroundWorkerPool pool = new BackgroundWorkerPool("test", 1, 10,
+                BackgroundWorkerPool.OverflowPolicy.BLOCK, bulkAging, () -> null);
+        final List<String> executed = new CopyOnWriteArrayList<>();
+        final CountDownLatch busy = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        // keep the only worker busy while the other tasks are queued
+        pool.submit("busy", session -> {
+            busy.countDown();
+            release.await();
+        });
+        busy.await();
+        pool.submit("bulk 1", BackgroundWorkerPool.Lane.BULK, session -> executed.add("bulk 1"));
+        pool.submit("bulk 2", BackgroundWorkerPool.Lane.BULK, session -> executed.add("bulk 2"));
+        pool.submit("interactive", BackgroundWorkerPool.Lane.INTERACTIVE, session -> executed.add("interactive"));
+        release.countDown();
+
+        pool.shutdown(10, TimeUnit.SECONDS);
+        return executed;
+    }
+
+    @Test
+    public void testInteractiveTasksGoFirst() throws InterruptedException {
+        assertEquals(Arrays.asList("interactive", "bulk 1", "bulk 2"), runInOrder(60000));
+    }
+
+    @Test
+    public void testAgedBulkTasksAreNotPassed() throws InterruptedException {
+        assertEquals(Arrays.asList("bulk 1", "bulk 2", "interactive"), runInOrder(0));
+    }
+
+    @Test
+    public void testWorkerLimit() throws InterruptedException {
+        final BackgroundWorkerPool pool = new BackgroundWorkerPool("test", 2, 10,
+                BackgroundWorkerPool.OverflowPolicy.BLOCK, 0, () -> null);
+        pool.setWorkerLimit(1);
+        assertEquals(1, pool.getWorkerLimit());
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 2; i++) {
+            pool.submit("task " + i, session -> {
+                started.countDown();
+                release.await();
+            });
+        }
+
+        // the second task waits for the first one, until the limit is raised
+        assertFalse(started.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(1, started.getCount());
+        pool.setWorkerLimit(5);
+        assertEquals(2, pool.getWorkerLimit());
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        release.countDown();
+        pool.shutdown(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testVirtualThreads() throws InterruptedException {
+        final BackgroundWorkerPool pool = new BackgroundWorkerPool("test", 2, 10,
+                BackgroundWorkerPool.OverflowPolicy.BLOCK, 0, true, () -> null);
+        // falls back to platform threads before Java 21
+        assertEquals(VirtualThreads.isSupported(), pool.isVirtualThreads());
+
+        final AtomicReference<Thread> worker = new AtomicReference<>();
+        final CountDownLatch executed = new CountDownLatch(1);
+        pool.submit("task", session -> {
+            assertTrue(BackgroundWorkerPool.isWorkerThread());
+            worker.set(Thread.currentThread());
+            executed.countDown();
+        });
+        assertTrue(executed.await(10, TimeUnit.SECONDS));
+        assertTrue(worker.get().getName().startsWith("test-"));
+        assertTrue(worker.get().isDaemon());
+        pool.shutdown(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testHandOver() throws InterruptedException {
+        final BackgroundWorkerPool pool = new BackgroundWorkerPool("old", 1, 10,
+                BackgroundWorkerPool.OverflowPolicy.BLOCK, 0, () -> null);
+        final BackgroundWorkerPool successor = new BackgroundWorkerPool("new", 1, 10,
+                BackgroundWorkerPool.OverflowPolicy.BLOCK, 0, () -> null);
+        final List<String> executed = new CopyOnWriteArrayList<>();
+        final CountDownLatch busy = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+
+        pool.submit("busy", session -> {
+            busy.countDown();
+            release.await();
+            done.countDown();
+        });
+        busy.await();
+        pool.submit("waiting", session -> {
+            executed.add(Thread.currentThread().getName().replaceAll("-.*", ""));
+            done.countDown();
+        });
+
+        // the waiting task moves to the new pool, without waiting for the busy worker
+        pool.handOver(successor);
+        pool.submit("late", session -> {
+            executed.add(Thread.currentThread().getName().replaceAll("-.*", ""));
+            done.countDown();
+        });
+        assertEquals(0, pool.getQueueSize());
+        release.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("new", "new"), executed);
+        assertEquals(0, pool.getDroppedCount());
+        successor.shutdown(10, TimeUnit.SECONDS);
+    }
+}
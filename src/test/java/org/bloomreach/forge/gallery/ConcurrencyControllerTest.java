@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bloomreach.forge.gallery;
+
+import java.time.LocalTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConcurrencyControllerTest {
+
+    private static final LocalTime NOON = LocalTime.of(12, 0);
+
+    private static class TestController extends ConcurrencyController {
+
+        private double cpuLoad;
+        private double gcTime;
+
+        private TestController(final int workers, final int minWorkers, final int maxWorkers,
+                               final List<Window> schedule) {
+            super(workers, minWorkers, maxWorkers, schedule, 0.8, 0.1, 1000);
+        }
+
+        @Override
+        protected double getCpuLoad() {
+            return cpuLoad;
+        }
+
+        @Override
+        protected double getGcTime() {
+            return gcTime;
+        }
+    }
+
+    @Test
+    public void testAdditiveIncreaseMultiplicativeDecrease() {
+        final TestController controller = new TestController(2, 1, 8, Collections.emptyList());
+        assertEquals(8, controller.getMaxWorkers());
+
+        // no backlog, no need for more workers
+        assertEquals(2, controller.adjust(0, NOON));
+        assertEquals(3, controller.adjust(10, NOON));
+        assertEquals(4, controller.adjust(10, NOON));
+        assertEquals("backlog of 10", controller.getReason());
+
+        controller.cpuLoad = 0.9;
+        assertEquals(2, controller.adjust(10, NOON));
+        assertEquals("CPU load 0.90 above 0.80", controller.getReason());
+        assertEquals(1, controller.adjust(10, NOON));
+        assertEquals(1, controller.adjust(10, NOON));
+
+        controller.cpuLoad = 0.5;
+        assertEquals(2, controller.adjust(10, NOON));
+        controller.gcTime = 0.2;
+        assertEquals(1, controller.adjust(10, NOON));
+        assertTrue(controller.getReason().startsWith("GC time"));
+
+        controller.gcTime = 0;
+        assertEquals(2, controller.adjust(10, NOON));
+        controller.recordLatency(TimeUnit.SECONDS.toNanos(3));
+        assertEquals(1, controller.adjust(10, NOON));
+        assertEquals("latency 3000 ms above 1000 ms", controller.getReason());
+    }
+
+    @Test
+    public void testSchedule() {
+        final ConcurrencyController.Window day = ConcurrencyController.Window.parse("08:00-18:00=1-2", 1);
+        final ConcurrencyController.Window night = ConcurrencyController.Window.parse("22:00-06:00=6", 4);
+        assertEquals("08:00-18:00=1-2", day.toString());
+        assertEquals("22:00-06:00=4-6", night.toString());
+
+        final TestController controller = new TestController(4, 1, 4, Arrays.asList(day, night));
+        assertEquals(6, controller.getMaxWorkers());
+        assertEquals(2, controller.adjust(0, NOON));
+        assertEquals("schedule 08:00-18:00=1-2", controller.getReason());
+        assertEquals(2, controller.adjust(10, NOON));
+
+        assertEquals(4, controller.adjust(0, LocalTime.of(23, 0)));
+        assertEquals(5, controller.adjust(10, LocalTime.of(1, 0)));
+        assertEquals(6, controller.adjust(10, LocalTime.of(2, 0)));
+        assertEquals(6, controller.adjust(10, LocalTime.of(3, 0)));
+        controller.cpuLoad = 1;
+        assertEquals(4, controller.adjust(10, LocalTime.of(4, 0)));
+
+        // outside the windows the configured bounds apply
+        controller.cpuLoad = 0;
+        assertEquals(4, controller.adjust(10, LocalTime.of(7, 0)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidWindow() {
+        ConcurrencyController.Window.parse("08:00=2", 1);
+    }
+}
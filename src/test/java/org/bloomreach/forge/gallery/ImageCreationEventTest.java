@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bloomreach.forge.gallery;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ImageCreationEventTest {
+
+    @SuppressWarnings("unchecked")
+    private static ImageCreationEvent event(final String nodePath, final Long lastModified) {
+        return new ImageCreationEvent("cms")
+                .nodePath(nodePath)
+                .mimeType("image/jpeg")
+                .fileName("image.jpg")
+                .lastModified(lastModified)
+                .variants(Collections.singletonMap("small", "hippogallery:image"));
+    }
+
+    @Test
+    public void testSingleEvent() {
+        final ImageCreationEvent event = event("/image", 1L);
+        assertFalse(event.isBatch());
+        assertEquals(Collections.singletonList(event), event.assets());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testBatchEvent() {
+        final ImageCreationEvent batch = new ImageCreationEvent("cms")
+                .asset(event("/image", 1L))
+                .asset(event("/other", null));
+        batch.sealEvent();
+        assertTrue(batch.isBatch());
+
+        final List<ImageCreationEvent> assets = batch.assets();
+        assertEquals(2, assets.size());
+        assertEquals("/image", assets.get(0).nodePath());
+        assertEquals("cms", assets.get(0).application());
+        assertEquals("image/jpeg", assets.get(0).mimeType());
+        assertEquals("image.jpg", assets.get(0).fileName());
+        assertEquals(Long.valueOf(1L), assets.get(0).lastModified());
+        assertEquals("hippogallery:image", assets.get(0).variants().get("small"));
+        assertEquals("/other", assets.get(1).nodePath());
+        assertNull(assets.get(1).lastModified());
+    }
+}
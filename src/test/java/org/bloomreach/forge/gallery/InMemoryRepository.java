@@ -0,0 +1,684 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bloomreach.forge.gallery;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.jcr.Binary;
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.ItemExistsException;
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+import javax.jcr.Workspace;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Minimal in-memory stand-in for a JCR repository: just enough of {@link Session}, {@link Node}, {@link Property},
+ * {@link ValueFactory} and {@link Binary} for the gallery processor to read an original and write variants, and for
+ * the job queue to add, query and lease jobs.
+ * <p>
+ * Every session keeps its changes to itself until it saves them. Saving fails with an
+ * {@link InvalidItemStateException} when another session saved changes to the same node meanwhile, and with an
+ * {@link ItemExistsException} when another session added a node with the same name, like a repository shared by
+ * cluster nodes. Queries see the saved state and support the simple XPath of the job queue: a path ending in
+ * {@code /*}, a predicate of comparisons of properties with literals combined with {@code and} and {@code or}, and
+ * an optional {@code order by}.
+ */
+class InMemoryRepository {
+
+    private static final String ROOT_ID = "cafebabe-cafe-babe-cafe-babecafebabe";
+    private static final Pattern QUERY = Pattern.compile(
+            "/jcr:root(.*)/\\*(?:\\[(.*)\\])?(?: order by @([\\w:]+)(?: (ascending|descending))?)?");
+    private static final Pattern COMPARISON = Pattern.compile("@([\\w:]+) (<=|>=|=|<|>) (?:'((?:[^']|'')*)'|(-?\\d+))");
+
+    // saved state of the nodes, by identifier
+    private final Map<String, NodeState> saved = new HashMap<>();
+    private final ValueFactory valueFactory = proxy(ValueFactory.class, (proxy, method, args) -> {
+        if (method.getName().equals("createBinary")) {
+            return new InMemoryBinary(IOUtils.toByteArray((InputStream) args[0]));
+        }
+        throw new UnsupportedOperationException("ValueFactory." + method.getName());
+    });
+    private final Session session;
+    private Runnable beforeNextSave;
+
+    InMemoryRepository() {
+        saved.put(ROOT_ID, new NodeState(ROOT_ID, null, ""));
+        session = login();
+    }
+
+    /**
+     * @return the session of this repository used when no other one is needed
+     */
+    Session getSession() {
+        return session;
+    }
+
+    Node getRootNode() {
+        return ((SessionHandler) Proxy.getInvocationHandler(session)).getNode(ROOT_ID);
+    }
+
+    /**
+     * @return a new session, with changes of its own
+     */
+    Session login() {
+        final SessionHandler handler = new SessionHandler();
+        handler.proxy = proxy(Session.class, handler);
+        return handler.proxy;
+    }
+
+    /**
+     * Runs an action once, right before the next save of any session is checked and applied, to save changes of
+     * another session concurrently.
+     */
+    void beforeNextSave(final Runnable action) {
+        beforeNextSave = action;
+    }
+
+    static Binary createBinary(final byte[] data) {
+        return new InMemoryBinary(data);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(final Class<T> type, final InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(InMemoryRepository.class.getClassLoader(), new Class[]{type}, handler);
+    }
+
+    private static NodeIterator iterator(final List<Node> nodes) {
+        final Iterator<Node> iterator = nodes.iterator();
+        return proxy(NodeIterator.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "hasNext":
+                    return iterator.hasNext();
+                case "next":
+                case "nextNode":
+                    return iterator.next();
+                case "getSize":
+                    return (long) nodes.size();
+                default:
+                    throw new UnsupportedOperationException("NodeIterator." + method.getName());
+            }
+        });
+    }
+
+    private static final class NodeState {
+
+        private final String id;
+        private final String parentId;
+        private final String name;
+        private final Map<String, Object> properties = new LinkedHashMap<>();
+        private final Map<String, String> children = new LinkedHashMap<>();
+        private long version;
+
+        private NodeState(final String id, final String parentId, final String name) {
+            this.id = id;
+            this.parentId = parentId;
+            this.name = name;
+        }
+
+        private NodeState copy() {
+            final NodeState copy = new NodeState(id, parentId, name);
+            copy.properties.putAll(properties);
+            copy.children.putAll(children);
+            copy.version = version;
+            return copy;
+        }
+    }
+
+    private class SessionHandler implements InvocationHandler {
+
+        // nodes this session changed or added, with the version of the saved node they were changed from
+        private final Map<String, NodeState> changed = new HashMap<>();
+        private final Map<String, Long> baseVersions = new HashMap<>();
+        private final Set<String> changedProperties = new HashSet<>();
+        private final Set<String> removed = new HashSet<>();
+        private final List<NodeState> added = new ArrayList<>();
+        private Session proxy;
+        private boolean live = true;
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            synchronized (saved) {
+                switch (method.getName()) {
+                    case "getNode":
+                        return resolve(ROOT_ID, (String) args[0]);
+                    case "nodeExists":
+                    case "itemExists":
+                        try {
+                            resolve(ROOT_ID, (String) args[0]);
+                            return true;
+                        } catch (PathNotFoundException e) {
+                            return false;
+                        }
+                    case "getNodeByIdentifier":
+                        if (get((String) args[0]) == null) {
+                            throw new ItemNotFoundException((String) args[0]);
+                        }
+                        return getNode((String) args[0]);
+                    case "getRootNode":
+                        return getNode(ROOT_ID);
+                    case "getValueFactory":
+                        return valueFactory;
+                    case "getWorkspace":
+                        return getWorkspace();
+                    case "save":
+                        save();
+                        return null;
+                    case "refresh":
+                        if (!(Boolean) args[0]) {
+                            discard();
+                        }
+                        return null;
+                    case "hasPendingChanges":
+                        return !changed.isEmpty() || !removed.isEmpty();
+                    case "logout":
+                        live = false;
+                        return null;
+                    case "isLive":
+                        return live;
+                    case "getUserID":
+                        return "admin";
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return "session@" + Integer.toHexString(System.identityHashCode(proxy));
+                    default:
+                        throw new UnsupportedOperationException("Session." + method.getName());
+                }
+            }
+        }
+
+        private Node getNode(final String id) {
+            return proxy(Node.class, new NodeHandler(this, id));
+        }
+
+        private NodeState get(final String id) {
+            if (removed.contains(id)) {
+                return null;
+            }
+            final NodeState state = changed.get(id);
+            return state != null ? state : saved.get(id);
+        }
+
+        private NodeState getExisting(final String id) throws InvalidItemStateException {
+            final NodeState state = get(id);
+            if (state == null) {
+                throw new InvalidItemStateException("Node " + id + " does not exist anymore");
+            }
+            return state;
+        }
+
+        private NodeState change(final String id) throws InvalidItemStateException {
+            final NodeState state = getExisting(id);
+            if (!changed.containsKey(id)) {
+                final NodeState copy = state.copy();
+                changed.put(id, copy);
+                baseVersions.put(id, state.version);
+                return copy;
+            }
+            return state;
+        }
+
+        private Node resolve(final String startId, final String relPath) throws RepositoryException {
+            NodeState current = getExisting(startId);
+            for (String segment : relPath.split("/")) {
+                if (segment.isEmpty()) {
+                    continue;
+                }
+                final String childId = current.children.get(segment);
+                current = childId == null ? null : get(childId);
+                if (current == null) {
+                    throw new PathNotFoundException(relPath);
+                }
+            }
+            return getNode(current.id);
+        }
+
+        private String getPath(final NodeState state) throws RepositoryException {
+            if (state.parentId == null) {
+                return "/";
+            }
+            final NodeState parent = getExisting(state.parentId);
+            return (parent.parentId == null ? "" : getPath(parent)) + "/" + state.name;
+        }
+
+        private Node addNode(final String parentId, final String name) throws RepositoryException {
+            final NodeState parent = change(parentId);
+            if (parent.children.containsKey(name) && get(parent.children.get(name)) != null) {
+                throw new ItemExistsException(name);
+            }
+            final NodeState child = new NodeState(UUID.randomUUID().toString(), parentId, name);
+            changed.put(child.id, child);
+            added.add(child);
+            parent.children.put(name, child.id);
+            return getNode(child.id);
+        }
+
+        private void remove(final String id) throws RepositoryException {
+            final NodeState state = getExisting(id);
+            for (String childId : new ArrayList<>(state.children.values())) {
+                if (get(childId) != null) {
+                    remove(childId);
+                }
+            }
+            change(state.parentId).children.remove(state.name);
+            if (!baseVersions.containsKey(id) && saved.containsKey(id)) {
+                baseVersions.put(id, saved.get(id).version);
+            }
+            changed.remove(id);
+            added.remove(state);
+            removed.add(id);
+        }
+
+        private void setProperty(final String id, final String name, final Object value) throws RepositoryException {
+            final NodeState state = change(id);
+            if (value == null) {
+                state.properties.remove(name);
+            } else {
+                state.properties.put(name, value);
+            }
+            changedProperties.add(id);
+        }
+
+        private void save() throws RepositoryException {
+            final Runnable action = beforeNextSave;
+            beforeNextSave = null;
+            if (action != null) {
+                action.run();
+            }
+
+            // check everything first, so a save that fails changes nothing
+            for (String id : changedProperties) {
+                checkVersion(id);
+            }
+            for (String id : removed) {
+                checkVersion(id);
+            }
+            for (NodeState child : added) {
+                final NodeState parent = saved.get(child.parentId);
+                if (parent == null && !changed.containsKey(child.parentId)) {
+                    throw new InvalidItemStateException("Parent of " + child.name + " does not exist anymore");
+                }
+                if (parent != null && parent.children.containsKey(child.name)
+                        && !removed.contains(parent.children.get(child.name))) {
+                    throw new ItemExistsException(child.name);
+                }
+            }
+
+            for (String id : removed) {
+                final NodeState state = saved.remove(id);
+                if (state != null && saved.containsKey(state.parentId)) {
+                    saved.get(state.parentId).children.remove(state.name);
+                }
+            }
+            for (NodeState child : added) {
+                saved.put(child.id, child.copy());
+            }
+            for (NodeState child : added) {
+                saved.get(child.parentId).children.put(child.name, child.id);
+            }
+            for (String id : changedProperties) {
+                final NodeState state = saved.get(id);
+                if (state != null && !isAdded(id)) {
+                    state.properties.clear();
+                    state.properties.putAll(changed.get(id).properties);
+                    state.version++;
+                }
+            }
+            discard();
+        }
+
+        private void checkVersion(final String id) throws InvalidItemStateException {
+            if (!baseVersions.containsKey(id)) {
+                return;
+            }
+            final NodeState state = saved.get(id);
+            if (state == null || state.version != baseVersions.get(id)) {
+                throw new InvalidItemStateException("Node " + id + " was changed by another session");
+            }
+        }
+
+        private boolean isAdded(final String id) {
+            for (NodeState child : added) {
+                if (child.id.equals(id)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void discard() {
+            changed.clear();
+            baseVersions.clear();
+            changedProperties.clear();
+            removed.clear();
+            added.clear();
+        }
+
+        private Workspace getWorkspace() {
+            final QueryManager queryManager = proxy(QueryManager.class, (proxy, method, args) -> {
+                if (method.getName().equals("createQuery") && Query.XPATH.equals(args[1])) {
+                    return createQuery((String) args[0]);
+                }
+                throw new UnsupportedOperationException("QueryManager." + method.getName());
+            });
+            return proxy(Workspace.class, (proxy, method, args) -> {
+                if (method.getName().equals("getQueryManager")) {
+                    return queryManager;
+                }
+                throw new UnsupportedOperationException("Workspace." + method.getName());
+            });
+        }
+
+        private Query createQuery(final String statement) {
+            final Matcher matcher = QUERY.matcher(statement);
+            if (!matcher.matches()) {
+                throw new UnsupportedOperationException("Query " + statement);
+            }
+            final long[] limit = {Long.MAX_VALUE};
+            return proxy(Query.class, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "setLimit":
+                        limit[0] = (Long) args[0];
+                        return null;
+                    case "execute":
+                        synchronized (saved) {
+                            final List<Node> nodes = execute(matcher.group(1), matcher.group(2), matcher.group(3),
+                                    "descending".equals(matcher.group(4)), limit[0]);
+                            return proxy(QueryResult.class, (result, getNodes, none) -> iterator(nodes));
+                        }
+                    default:
+                        throw new UnsupportedOperationException("Query." + method.getName());
+                }
+            });
+        }
+
+        private List<Node> execute(final String parentPath, final String predicate, final String orderBy,
+                                   final boolean descending, final long limit) {
+            // queries see the saved state, like a search index
+            NodeState parent = saved.get(ROOT_ID);
+            for (String segment : parentPath.split("/")) {
+                if (!segment.isEmpty()) {
+                    parent = parent == null || !parent.children.containsKey(segment) ? null
+                            : saved.get(parent.children.get(segment));
+                }
+            }
+            final List<NodeState> matches = new ArrayList<>();
+            if (parent != null) {
+                for (String childId : parent.children.values()) {
+                    final NodeState child = saved.get(childId);
+                    if (predicate == null || matches(child, predicate)) {
+                        matches.add(child);
+                    }
+                }
+            }
+            if (orderBy != null) {
+                final Comparator<NodeState> order = (first, second) -> compareValues(
+                        first.properties.get(orderBy), second.properties.get(orderBy));
+                matches.sort(descending ? order.reversed() : order);
+            }
+            final List<Node> nodes = new ArrayList<>();
+            for (NodeState match : matches) {
+                if (nodes.size() < limit && get(match.id) != null) {
+                    nodes.add(getNode(match.id));
+                }
+            }
+            return nodes;
+        }
+
+        @SuppressWarnings("unchecked")
+        private int compareValues(final Object first, final Object second) {
+            if (first == null || second == null) {
+                return first == null ? (second == null ? 0 : -1) : 1;
+            }
+            return ((Comparable<Object>) first).compareTo(second);
+        }
+
+        private boolean matches(final NodeState state, final String predicate) {
+            for (String conjunct : predicate.split(" and ")) {
+                final String condition = conjunct.startsWith("(") && conjunct.endsWith(")")
+                        ? conjunct.substring(1, conjunct.length() - 1) : conjunct;
+                boolean any = false;
+                for (String disjunct : condition.split(" or ")) {
+                    any |= compare(state, disjunct.trim());
+                }
+                if (!any) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean compare(final NodeState state, final String comparison) {
+            final Matcher matcher = COMPARISON.matcher(comparison);
+            if (!matcher.matches()) {
+                throw new UnsupportedOperationException("Condition " + comparison);
+            }
+            final Object value = state.properties.get(matcher.group(1));
+            if (value == null) {
+                return false;
+            }
+            final int result;
+            if (matcher.group(3) != null) {
+                result = String.valueOf(value).compareTo(matcher.group(3).replace("''", "'"));
+            } else if (value instanceof Number) {
+                result = Long.compare(((Number) value).longValue(), Long.parseLong(matcher.group(4)));
+            } else {
+                return false;
+            }
+            switch (matcher.group(2)) {
+                case "<=":
+                    return result <= 0;
+                case ">=":
+                    return result >= 0;
+                case "<":
+                    return result < 0;
+                case ">":
+                    return result > 0;
+                default:
+                    return result == 0;
+            }
+        }
+    }
+
+    private class NodeHandler implements InvocationHandler {
+
+        private final SessionHandler session;
+        private final String id;
+
+        private NodeHandler(final SessionHandler session, final String id) {
+            this.session = session;
+            this.id = id;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            synchronized (saved) {
+                switch (method.getName()) {
+                    case "getName":
+                        return session.getExisting(id).name;
+                    case "getPath":
+                        return session.getPath(session.getExisting(id));
+                    case "getIdentifier":
+                        return id;
+                    case "getParent": {
+                        final String parentId = session.getExisting(id).parentId;
+                        if (parentId == null) {
+                            throw new ItemNotFoundException("Root node has no parent");
+                        }
+                        return session.getNode(parentId);
+                    }
+                    case "getSession":
+                        return session.proxy;
+                    case "addNode":
+                        return session.addNode(id, (String) args[0]);
+                    case "getNode":
+                        return session.resolve(id, (String) args[0]);
+                    case "hasNode":
+                        try {
+                            session.resolve(id, (String) args[0]);
+                            return true;
+                        } catch (PathNotFoundException e) {
+                            return false;
+                        }
+                    case "hasProperty":
+                        return session.getExisting(id).properties.containsKey(args[0]);
+                    case "setProperty":
+                        session.setProperty(id, (String) args[0], args[1]);
+                        return null;
+                    case "getProperty": {
+                        final Object value = session.getExisting(id).properties.get(args[0]);
+                        if (value == null) {
+                            throw new PathNotFoundException((String) args[0]);
+                        }
+                        return proxy(Property.class, new PropertyHandler(value));
+                    }
+                    case "remove":
+                        session.remove(id);
+                        return null;
+                    case "isNode":
+                        return true;
+                    case "isNodeType":
+                        return false;
+                    case "canAddMixin":
+                        return true;
+                    case "addMixin":
+                        return null;
+                    case "hashCode":
+                        return id.hashCode();
+                    case "equals":
+                        return args[0] instanceof Node && Proxy.isProxyClass(args[0].getClass())
+                                && Proxy.getInvocationHandler(args[0]) instanceof NodeHandler
+                                && ((NodeHandler) Proxy.getInvocationHandler(args[0])).session == session
+                                && ((NodeHandler) Proxy.getInvocationHandler(args[0])).id.equals(id);
+                    case "toString":
+                        return session.get(id) == null ? id : session.getPath(session.get(id));
+                    default:
+                        throw new UnsupportedOperationException("Node." + method.getName());
+                }
+            }
+        }
+    }
+
+    private static class PropertyHandler implements InvocationHandler {
+
+        private final Object value;
+
+        private PropertyHandler(final Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "getBinary":
+                    return value;
+                case "getString":
+                    return String.valueOf(value);
+                case "getLong":
+                    return ((Number) value).longValue();
+                case "getDouble":
+                    return ((Number) value).doubleValue();
+                case "getBoolean":
+                    return value;
+                case "getDate":
+                    return (Calendar) value;
+                case "isMultiple":
+                    return value instanceof String[];
+                case "getValues": {
+                    final String[] strings = (String[]) value;
+                    final Value[] values = new Value[strings.length];
+                    for (int i = 0; i < strings.length; i++) {
+                        final String string = strings[i];
+                        values[i] = proxy(Value.class, (valueProxy, valueMethod, valueArgs) -> {
+                            if (valueMethod.getName().equals("getString")) {
+                                return string;
+                            }
+                            throw new UnsupportedOperationException("Value." + valueMethod.getName());
+                        });
+                    }
+                    return values;
+                }
+                default:
+                    throw new UnsupportedOperationException("Property." + method.getName());
+            }
+        }
+    }
+
+    private static class InMemoryBinary implements Binary {
+
+        private final byte[] data;
+
+        private InMemoryBinary(final byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public InputStream getStream() {
+            return new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public int read(final byte[] b, final long position) throws IOException, RepositoryException {
+            if (position >= data.length) {
+                return -1;
+            }
+            final int length = (int) Math.min(b.length, data.length - position);
+            System.arraycopy(data, (int) position, b, 0, length);
+            return length;
+        }
+
+        @Override
+        public long getSize() {
+            return data.length;
+        }
+
+        @Override
+        public void dispose() {
+        }
+    }
+}
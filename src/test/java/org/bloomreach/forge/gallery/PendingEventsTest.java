@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bloomreach.forge.gallery;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PendingEventsTest {
+
+    @SuppressWarnings("unchecked")
+    private static ImageCreationEvent event(final String nodePath, final String variant, final Long lastModified) {
+        return new ImageCreationEvent("test")
+                .nodePath(nodePath)
+                .mimeType("image/jpeg")
+                .fileName("image.jpg")
+                .lastModified(lastModified)
+                .variants(Collections.singletonMap(variant, "hippogallery:image"));
+    }
+
+    @Test
+    public void testMergeWaitingEvents() {
+        final PendingEvents pendingEvents = new PendingEvents();
+
+        assertTrue(pendingEvents.add(event("/image", "small", 1L), 2));
+        assertFalse(pendingEvents.add(event("/image", "large", 3L), 0));
+        assertFalse(pendingEvents.add(event("/image", "small", 2L), 1));
+        assertTrue(pendingEvents.add(event("/other", "small", 1L), 0));
+        assertEquals(2, pendingEvents.size());
+
+        final PendingEvents.Pending pending = pendingEvents.take("/image");
+        assertEquals(0, pending.getAttempt());
+        final ImageCreationEvent merged = pending.getEvent();
+        assertEquals("/image", merged.nodePath());
+        assertEquals(Long.valueOf(3L), merged.lastModified());
+        assertEquals(2, merged.variants().size());
+        assertTrue(merged.variants().containsKey("small"));
+        assertTrue(merged.variants().containsKey("large"));
+        assertFalse(merged.regenerate());
+
+        // once taken by a worker, a new event has to be handed to a worker again
+        assertNull(pendingEvents.take("/image"));
+        assertTrue(pendingEvents.add(event("/image", "small", 4L), 0));
+    }
+
+    @Test
+    public void testMergeRegenerate() {
+        final PendingEvents pendingEvents = new PendingEvents();
+        assertTrue(pendingEvents.add(event("/image", "small", 1L), 0));
+        assertFalse(pendingEvents.add(event("/image", "large", 1L).regenerate(true), 0));
+        assertFalse(pendingEvents.add(event("/image", "small", 1L), 0));
+        assertTrue(pendingEvents.take("/image").getEvent().regenerate());
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bloomreach.forge.gallery;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+
+import org.hippoecm.frontend.plugins.gallery.imageutil.ImageUtils;
+import org.hippoecm.frontend.plugins.gallery.imageutil.ScalingParameters;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PooledScalingGalleryProcessorTest {
+
+    @Test
+    public void testReuseWriterAndBuffers() throws Exception {
+        final PooledScalingGalleryProcessor processor = new PooledScalingGalleryProcessor();
+        processor.addScalingParameters("small", new ScalingParameters(100, 75, false, ImageUtils.ScalingStrategy.QUALITY, 1f));
+
+        final ImageWriter writer = processor.getImageWriter("image/jpeg");
+        processor.releaseImageWriter("image/jpeg", writer);
+        assertSame(writer, processor.getImageWriter("image/jpeg"));
+        processor.releaseImageWriter("image/jpeg", writer);
+
+        final byte[] data = processor.writeImage(new BufferedImage(400, 300, BufferedImage.TYPE_3BYTE_BGR), "image/jpeg", 0.9f);
+        final BufferedImage encoded = ImageIO.read(new ByteArrayInputStream(data));
+        assertEquals(400, encoded.getWidth());
+        assertEquals(300, encoded.getHeight());
+
+        // decoded with subsampling for the largest variant, the image fits in the decode buffer
+        BufferedImage previous = null;
+        for (int i = 0; i < 2; i++) {
+            final ImageReader reader = processor.getImageReader("image/jpeg");
+            reader.setInput(ImageIO.createImageInputStream(new ByteArrayInputStream(data)));
+            final ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(2, 2, 0, 0);
+            processor.setDestination(reader, param, 200, 150);
+            final BufferedImage decoded = reader.read(0, param);
+            processor.releaseImageReader("image/jpeg", reader);
+
+            assertSame(param.getDestination(), decoded);
+            assertEquals(200, decoded.getWidth());
+            assertEquals(150, decoded.getHeight());
+            if (previous != null) {
+                assertSame(((DataBufferByte) previous.getRaster().getDataBuffer()).getData(),
+                        ((DataBufferByte) decoded.getRaster().getDataBuffer()).getData());
+            }
+            previous = decoded;
+        }
+    }
+}
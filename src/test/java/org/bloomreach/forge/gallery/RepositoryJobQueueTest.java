@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bloomreach.forge.gallery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RepositoryJobQueueTest {
+
+    private static final String JOBS_PATH = "/jobs";
+
+    private final InMemoryRepository repository = new InMemoryRepository();
+
+    @SuppressWarnings("unchecked")
+    private static ImageCreationEvent event(final String application, final String nodePath, final String variant) {
+        return new ImageCreationEvent(application)
+                .nodePath(nodePath)
+                .mimeType("image/jpeg")
+                .fileName("image.jpg")
+                .lastModified(1L)
+                .variants(Collections.singletonMap(variant, "hippogallery:image"));
+    }
+
+    private RepositoryJobQueue queue(final String owner, final long leaseTimeout) {
+        return new RepositoryJobQueue(JOBS_PATH, owner, leaseTimeout, repository.login());
+    }
+
+    private Node getJob(final String nodePath) throws RepositoryException {
+        final Session session = repository.login();
+        final String path = JOBS_PATH + "/" + RepositoryJobQueue.getJobName(nodePath);
+        return session.nodeExists(path) ? session.getNode(path) : null;
+    }
+
+    @Test
+    public void testClaim() throws RepositoryException {
+        final RepositoryJobQueue queue = queue("node1", 60000);
+        queue.setInteractiveApplications(Collections.singleton("cms"));
+
+        assertFalse(queue.add(event("site", "/a", "small")));
+        assertFalse(queue.add(event("cms", "/b", "small")));
+        assertTrue(queue.add(event("site", "/a", "large")));
+        assertFalse(queue.add(event("site", "/c", "small")));
+
+        final List<RepositoryJobQueue.Job> claimed = queue.claim(2);
+        assertEquals(2, claimed.size());
+        // the job of the interactive application comes first
+        assertEquals("/b", claimed.get(0).getEvent().nodePath());
+        assertEquals("cms", claimed.get(0).getEvent().application());
+        final ImageCreationEvent merged = claimed.get(1).getEvent();
+        assertEquals("/a", merged.nodePath());
+        assertEquals(2, merged.variants().size());
+        assertTrue(merged.variants().containsKey("small"));
+        assertTrue(merged.variants().containsKey("large"));
+        assertEquals(0, claimed.get(1).getAttempts());
+        assertEquals("node1", getJob("/a").getProperty(RepositoryJobQueue.LEASE_OWNER).getString());
+
+        final List<RepositoryJobQueue.Job> rest = queue.claim(2);
+        assertEquals(1, rest.size());
+        assertEquals("/c", rest.get(0).getEvent().nodePath());
+        assertTrue(queue.claim(2).isEmpty());
+
+        // a job being processed is not merged into
+        assertFalse(queue.add(event("site", "/a", "small")));
+        assertEquals(1, queue.claim(2).size());
+    }
+
+    @Test
+    public void testClaimOneByOneWhenClaimedConcurrently() throws RepositoryException {
+        final RepositoryJobQueue queue1 = queue("node1", 60000);
+        final RepositoryJobQueue queue2 = queue("node2", 60000);
+        queue1.add(event("cms", "/a", "small"));
+        queue1.add(event("cms", "/b", "small"));
+        queue1.add(event("cms", "/c", "small"));
+
+        final List<RepositoryJobQueue.Job> claimedByOther = new ArrayList<>();
+        repository.beforeNextSave(() -> {
+            try {
+                claimedByOther.addAll(queue2.claim(1));
+            } catch (RepositoryException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        final List<RepositoryJobQueue.Job> claimed = queue1.claim(3);
+
+        assertEquals(1, claimedByOther.size());
+        assertEquals(2, claimed.size());
+        final Set<String> paths = new HashSet<>();
+        for (RepositoryJobQueue.Job job : claimed) {
+            paths.add(job.getEvent().nodePath());
+        }
+        assertFalse(paths.contains(claimedByOther.get(0).getEvent().nodePath()));
+        paths.add(claimedByOther.get(0).getEvent().nodePath());
+        assertEquals(3, paths.size());
+        assertEquals("node2", getJob(claimedByOther.get(0).getEvent().nodePath())
+                .getProperty(RepositoryJobQueue.LEASE_OWNER).getString());
+    }
+
+    @Test
+    public void testExpiredLease() throws RepositoryException {
+        final RepositoryJobQueue queue1 = queue("node1", 0);
+        final RepositoryJobQueue queue2 = queue("node2", 60000);
+        queue1.add(event("cms", "/a", "small"));
+
+        final RepositoryJobQueue.Job expired = queue1.claim(1).get(0);
+        final Session worker1 = repository.login();
+        assertTrue(queue1.isLeased(expired, worker1));
+
+        // another cluster node takes over the job whose lease expired
+        final RepositoryJobQueue.Job job = queue2.claim(1).get(0);
+        assertEquals(expired.getId(), job.getId());
+        assertFalse(queue1.isLeased(expired, worker1));
+        assertFalse(queue1.complete(expired, worker1));
+        assertFalse(worker1.hasPendingChanges());
+
+        final Session worker2 = repository.login();
+        assertTrue(queue2.isLeased(job, worker2));
+        assertTrue(queue2.complete(job, worker2));
+        // the job is only gone when the worker saves its variants
+        assertNotNull(getJob("/a"));
+        worker2.save();
+        assertNull(getJob("/a"));
+        assertFalse(queue2.isLeased(job, repository.login()));
+    }
+
+    @Test
+    public void testRescheduleAndFail() throws RepositoryException {
+        final RepositoryJobQueue queue = queue("node1", 60000);
+        queue.add(event("cms", "/a", "small"));
+
+        final RepositoryJobQueue.Job job = queue.claim(1).get(0);
+        queue.reschedule(job, 0);
+        final RepositoryJobQueue.Job retried = queue.claim(1).get(0);
+        assertEquals(job.getId(), retried.getId());
+        assertEquals(1, retried.getAttempts());
+
+        queue.reschedule(retried, 60000);
+        assertTrue(queue.claim(1).isEmpty());
+        assertEquals(2L, getJob("/a").getProperty(RepositoryJobQueue.ATTEMPTS).getLong());
+
+        queue.add(event("cms", "/b", "small"));
+        final RepositoryJobQueue.Job failing = queue.claim(1).get(0);
+        assertEquals("/b", failing.getEvent().nodePath());
+        queue.fail(failing, new IllegalArgumentException("broken image"));
+        final Node failed = getJob("/b");
+        assertTrue(failed.getProperty(RepositoryJobQueue.FAILED).getBoolean());
+        assertTrue(failed.getProperty(RepositoryJobQueue.ERROR).getString().contains("broken image"));
+        assertTrue(queue.claim(1).isEmpty());
+
+        // a failed job is kept, a new event for its image set becomes a job of its own
+        assertFalse(queue.add(event("cms", "/b", "large")));
+        final RepositoryJobQueue.Job added = queue.claim(1).get(0);
+        assertNotEquals(failing.getId(), added.getId());
+        assertEquals(0, added.getAttempts());
+        assertEquals(Collections.singleton("large"), added.getEvent().variants().keySet());
+
+        // a failed job no longer holds its lease, so it is not rescheduled
+        queue.reschedule(failing, 0);
+        assertTrue(getJob("/b").getProperty(RepositoryJobQueue.FAILED).getBoolean());
+        assertTrue(queue.claim(1).isEmpty());
+    }
+}
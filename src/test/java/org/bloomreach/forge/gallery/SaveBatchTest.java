@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bloomreach.forge.gallery;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.Session;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SaveBatchTest {
+
+    private final List<String> calls = new ArrayList<>();
+
+    private Session createSession(final boolean failFirstSave) {
+        return (Session) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Session.class}, (proxy, method, args) -> {
+            calls.add(method.getName());
+            if (failFirstSave && method.getName().equals("save") && calls.indexOf("save") == calls.size() - 1) {
+                throw new InvalidItemStateException("conflict");
+            }
+            return null;
+        });
+    }
+
+    @Test
+    public void testIsFull() {
+        final SaveBatch batch = new SaveBatch();
+        assertTrue(batch.isEmpty());
+        batch.add("first", 10, session -> calls.add("redo first"));
+        assertFalse(batch.isFull(2, 100, 60000));
+        batch.add("second", 10, session -> calls.add("redo second"));
+        assertTrue(batch.isFull(2, 100, 60000));
+        assertTrue(batch.isFull(3, 20, 60000));
+        assertFalse(batch.isFull(3, 100, 60000));
+    }
+
+    @Test
+    public void testFlushSavesOnce() {
+        final SaveBatch batch = new SaveBatch();
+        batch.add("first", 10, session -> calls.add("redo first"));
+        batch.add("second", 10, session -> calls.add("redo second"));
+        batch.flush(createSession(false));
+
+        assertEquals(1, calls.size());
+        assertEquals("save", calls.get(0));
+        assertTrue(batch.isEmpty());
+    }
+
+    @Test
+    public void testFailedFlushRedoesEachEvent() {
+        final SaveBatch batch = new SaveBatch();
+        batch.add("first", 10, session -> calls.add("redo first " + batch.isFlushing()));
+        batch.add("second", 10, session -> calls.add("redo second " + batch.isFlushing()));
+        batch.flush(createSession(true));
+
+        assertEquals("save", calls.get(0));
+        assertEquals("refresh", calls.get(1));
+        assertEquals("redo first true", calls.get(2));
+        assertEquals("redo second true", calls.get(3));
+        assertTrue(batch.isEmpty());
+        assertFalse(batch.isFlushing());
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bloomreach.forge.gallery;
+
+import org.hippoecm.frontend.plugins.gallery.imageutil.ImageUtils;
+import org.hippoecm.frontend.plugins.gallery.imageutil.ScalingParameters;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VariantCacheTest {
+
+    @Test
+    public void testKeyIdentifiesParametersAndEncoding() {
+        final ScalingParameters small = new ScalingParameters(100, 50, false, ImageUtils.ScalingStrategy.QUALITY, 1f);
+
+        final String key = VariantCache.getKey(small, "image/jpeg");
+        assertTrue(key.matches("[a-z0-9.+_-]+"));
+        assertEquals(key, VariantCache.getKey(
+                new ScalingParameters(100, 50, false, ImageUtils.ScalingStrategy.QUALITY, 1f), "image/jpeg"));
+        assertNotEquals(key, VariantCache.getKey(small, "image/png"));
+        assertNotEquals(key, VariantCache.getKey(
+                new ScalingParameters(100, 50, true, ImageUtils.ScalingStrategy.QUALITY, 1f), "image/jpeg"));
+        assertNotEquals(key, VariantCache.getKey(
+                new ScalingParameters(100, 50, false, ImageUtils.ScalingStrategy.QUALITY, 0.9f), "image/jpeg"));
+    }
+}
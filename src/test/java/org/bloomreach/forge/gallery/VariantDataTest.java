@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bloomreach.forge.gallery;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VariantDataTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("spill").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testSpillAboveThreshold() throws Exception {
+        final File leftover = new File(directory, "variant-1.tmp");
+        assertTrue(leftover.createNewFile());
+        final TempFileStore store = new TempFileStore(directory);
+        assertFalse(leftover.exists());
+
+        final ByteArrayOutputStream staging = new ByteArrayOutputStream();
+        final VariantData small = new VariantData(store, 10, staging);
+        small.write(new byte[]{1, 2, 3}, 0, 3);
+        small.close();
+        assertFalse(small.isSpilled());
+        assertEquals(0, staging.size());
+        assertArrayEquals(new byte[]{1, 2, 3}, read(small));
+
+        final VariantData large = new VariantData(store, 10, staging);
+        large.write(new byte[8], 0, 8);
+        large.write(new byte[8], 0, 8);
+        large.close();
+        assertTrue(large.isSpilled());
+        assertEquals(16, large.getSize());
+        assertEquals(16, read(large).length);
+        assertEquals(1, store.getFileCount());
+        assertEquals(1, directory.list().length);
+
+        large.dispose();
+        assertEquals(0, store.getFileCount());
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void testDeleteAll() throws Exception {
+        final TempFileStore store = new TempFileStore(directory);
+        final VariantData failed = new VariantData(store, 0, new ByteArrayOutputStream());
+        failed.write(new byte[4], 0, 4);
+        assertEquals(1, store.getFileCount());
+
+        store.deleteAll();
+        assertEquals(0, store.getFileCount());
+        assertEquals(0, Files.list(directory.toPath()).count());
+    }
+
+    private static byte[] read(final VariantData data) throws Exception {
+        try (InputStream stream = data.getInputStream()) {
+            return IOUtils.toByteArray(stream);
+        }
+    }
+}
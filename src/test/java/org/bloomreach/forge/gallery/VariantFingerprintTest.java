@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bloomreach.forge.gallery;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+
+import org.hippoecm.frontend.plugins.gallery.imageutil.ImageUtils;
+import org.hippoecm.frontend.plugins.gallery.imageutil.ScalingParameters;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VariantFingerprintTest {
+
+    private final Map<String, String> properties = new HashMap<>();
+    private final Set<String> mixins = new HashSet<>();
+
+    private Node createNode(final boolean canAddMixin) {
+        return (Node) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Node.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "isNodeType":
+                    return mixins.contains(args[0]);
+                case "canAddMixin":
+                    return canAddMixin;
+                case "addMixin":
+                    mixins.add((String) args[0]);
+                    return null;
+                case "setProperty":
+                    properties.put((String) args[0], (String) args[1]);
+                    return null;
+                case "hasProperty":
+                    return properties.containsKey(args[0]);
+                case "getProperty":
+                    final String value = properties.get(args[0]);
+                    return Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Property.class},
+                            (property, propertyMethod, propertyArgs) -> value);
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    @Test
+    public void testFingerprint() {
+        final ScalingParameters small = new ScalingParameters(400, 400, false, ImageUtils.ScalingStrategy.QUALITY, 1f);
+        final String fingerprint = VariantFingerprint.of(small);
+        assertEquals(8, fingerprint.length());
+        assertEquals(fingerprint, VariantFingerprint.of(new ScalingParameters(400, 400, false, ImageUtils.ScalingStrategy.QUALITY, 1f)));
+
+        assertNotEquals(fingerprint, VariantFingerprint.of(new ScalingParameters(400, 300, false, ImageUtils.ScalingStrategy.QUALITY, 1f)));
+        assertNotEquals(fingerprint, VariantFingerprint.of(new ScalingParameters(400, 400, true, ImageUtils.ScalingStrategy.QUALITY, 1f)));
+        assertNotEquals(fingerprint, VariantFingerprint.of(new ScalingParameters(400, 400, false, ImageUtils.ScalingStrategy.SPEED, 1f)));
+        assertNotEquals(fingerprint, VariantFingerprint.of(new ScalingParameters(400, 400, false, ImageUtils.ScalingStrategy.QUALITY, 0.8f)));
+    }
+
+    @Test
+    public void testStamp() throws Exception {
+        final ScalingParameters small = new ScalingParameters(400, 400, false, ImageUtils.ScalingStrategy.QUALITY, 1f);
+        final ScalingParameters larger = new ScalingParameters(600, 600, false, ImageUtils.ScalingStrategy.QUALITY, 1f);
+        final Node variant = createNode(true);
+        assertNull(VariantFingerprint.get(variant));
+        assertTrue(VariantFingerprint.isStale(variant, small));
+
+        assertTrue(VariantFingerprint.stamp(variant, small));
+        assertTrue(mixins.contains(VariantFingerprint.MIXIN));
+        assertFalse(VariantFingerprint.isStale(variant, small));
+        assertTrue(VariantFingerprint.isStale(variant, larger));
+    }
+
+    @Test
+    public void testStampWithoutMixin() throws Exception {
+        final Node variant = createNode(false);
+        assertFalse(VariantFingerprint.stamp(variant, new ScalingParameters(400, 400, false, ImageUtils.ScalingStrategy.QUALITY, 1f)));
+        assertTrue(properties.isEmpty());
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017-2019 BloomReach Inc (https://www.bloomreach.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bloomreach.forge.gallery;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.hippoecm.frontend.plugins.gallery.imageutil.ImageUtils;
+import org.hippoecm.frontend.plugins.gallery.imageutil.ScalingParameters;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VariantPlacementPolicyTest {
+
+    private static final List<String> VARIANTS = Arrays.asList("hippogallery:thumbnail", "small", "large");
+
+    private static Map<String, ScalingParameters> parameters() {
+        final Map<String, ScalingParameters> parameters = new HashMap<>();
+        parameters.put("hippogallery:thumbnail", new ScalingParameters(60, 60, false, ImageUtils.ScalingStrategy.QUALITY, 1f));
+        parameters.put("small", new ScalingParameters(400, 400, false, ImageUtils.ScalingStrategy.QUALITY, 1f));
+        parameters.put("large", new ScalingParameters(2000, 2000, false, ImageUtils.ScalingStrategy.QUALITY, 1f));
+        return parameters;
+    }
+
+    @Test
+    public void testThumbnailInlineByDefault() {
+        final VariantPlacementPolicy policy = new VariantPlacementPolicy();
+
+        assertEquals(new HashSet<>(Arrays.asList("hippogallery:thumbnail")),
+                policy.getInlineVariants(VARIANTS, parameters(), 1000, 1000, 0));
+        assertEquals(new HashSet<>(Arrays.asList("hippogallery:thumbnail")),
+                policy.getInlineVariants(VARIANTS, parameters(), 8000, 6000, 1000));
+
+        final VariantPlacementPolicy busyOnly = new VariantPlacementPolicy(null, null, 0, 16000000L, 100);
+        assertEquals(new HashSet<>(Arrays.asList("hippogallery:thumbnail")),
+                busyOnly.getInlineVariants(VARIANTS, parameters(), 1000, 1000, 0));
+        assertEquals(new HashSet<>(VARIANTS), busyOnly.getInlineVariants(VARIANTS, parameters(), 1000, 1000, 100));
+    }
+
+    @Test
+    public void testCheapVariantsInlineWithinLimit() {
+        final VariantPlacementPolicy policy = new VariantPlacementPolicy(null, null, 16000000L, 48000000L, 100);
+
+        // small image: every variant inline
+        assertEquals(new HashSet<>(VARIANTS), policy.getInlineVariants(VARIANTS, parameters(), 1000, 1000, 0));
+
+        // 12 megapixels: only the cheapest fits
+        assertEquals(new HashSet<>(Arrays.asList("hippogallery:thumbnail")),
+                policy.getInlineVariants(VARIANTS, parameters(), 4000, 3000, 0));
+
+        // huge image: nothing inline; with a busy background more is created inline
+        assertTrue(policy.getInlineVariants(VARIANTS, parameters(), 8000, 6000, 0).isEmpty());
+        assertEquals(new HashSet<>(VARIANTS), policy.getInlineVariants(VARIANTS, parameters(), 4000, 3000, 100));
+    }
+
+    @Test
+    public void testVariantLists() {
+        final VariantPlacementPolicy policy = new VariantPlacementPolicy(
+                new String[]{"large"}, new String[]{"hippogallery:thumbnail"}, 10000000L, 10000000L, 100);
+
+        assertEquals(new HashSet<>(Arrays.asList("small", "large")),
+                policy.getInlineVariants(VARIANTS, parameters(), 1000, 1000, 0));
+        assertEquals(new HashSet<>(Arrays.asList("large")),
+                policy.getInlineVariants(VARIANTS, parameters(), 8000, 6000, 0));
+    }
+}